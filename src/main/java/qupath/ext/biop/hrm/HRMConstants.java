@@ -1,5 +1,7 @@
 package qupath.ext.biop.hrm;
 
+import java.util.regex.Pattern;
+
 public class HRMConstants {
 
     public static final String DECONVOLVED_FOLDER = "Deconvolved";
@@ -7,4 +9,14 @@ public class HRMConstants {
     public static final String OMERO_FOLDER = "omero";
     public static final String LOCAL_FOLDER = "Local";
     public static final String HRM_TAG = "hrm";
+
+    /** metadata keys of the origin of a region sent to HRM, in the raw image */
+    public static final String REGION_ORIGIN_X = "Region origin x";
+    public static final String REGION_ORIGIN_Y = "Region origin y";
+
+    /** name of the deconvolved images : raw image name, HRM code of the job and HRM suffix */
+    public static final Pattern DECONVOLVED_NAME_PATTERN = Pattern.compile("(?<name>.*)_(?<hrmcode>.{13})_hrm.*");
+
+    /** default number of images transferred in parallel */
+    public static final int DEFAULT_NB_WORKERS = 4;
 }
@@ -2,6 +2,7 @@ package qupath.ext.biop.hrm;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qupath.ext.biop.hrm.retrievers.QPHRMAutoRetrieveCommand;
 import qupath.ext.biop.hrm.retrievers.QPHRMRetrieveFromHRMCommand;
 import qupath.ext.biop.hrm.senders.QPHRMSendToHRMCommand;
 import qupath.lib.gui.QuPathGUI;
@@ -30,11 +31,13 @@ public class QPHRMExtension implements QuPathExtension, GitHubProject {
         // for HRM extension
         var sendToHRMMenu = ActionTools.createAction(new QPHRMSendToHRMCommand(qupath), "Send to HRM");
         var retrieveFromHRMMenu = ActionTools.createAction(new QPHRMRetrieveFromHRMCommand(qupath), "Retrieve from HRM");
+        var autoRetrieveFromHRMMenu = ActionTools.createSelectableAction(new QPHRMAutoRetrieveCommand(qupath).activeProperty(), "Auto-retrieve from HRM");
 
         MenuTools.addMenuItems(qupath.getMenu("Extensions", false),
                 MenuTools.createMenu("HRM",
                         sendToHRMMenu,
-                        retrieveFromHRMMenu
+                        retrieveFromHRMMenu,
+                        autoRetrieveFromHRMMenu
                 )
         );
     }
@@ -0,0 +1,126 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.StringProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.hrm.utils.QPHRMJobListener;
+import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
+import qupath.fx.dialogs.Dialogs;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.projects.Project;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+/**
+ * Toggle of the automatic retrieval of finished HRM jobs in the current project, with {@link QPHRMAutoRetriever}.
+ * Deconvolved images are not deleted from HRM by the automatic retrieval.
+ * The watcher is stopped when the project is closed or changed.
+ */
+public class QPHRMAutoRetrieveCommand {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMAutoRetrieveCommand.class);
+    private final QuPathGUI qupath;
+    private final BooleanProperty activeProperty = new SimpleBooleanProperty(false);
+    private QPHRMAutoRetriever autoRetriever;
+
+    private static StringProperty defaultUsername;
+    private static StringProperty omeroDefaultServerAddress;
+
+    public QPHRMAutoRetrieveCommand(QuPathGUI qupath) {
+        this.qupath = qupath;
+        defaultUsername = PathPrefs.createPersistentPreference("defaultUsername", "");
+        omeroDefaultServerAddress = PathPrefs.createPersistentPreference("omeroDefaultServer", "https://omero-server.epfl.ch");
+
+        this.activeProperty.addListener((v, o, n) -> {
+            if (n && !start())
+                this.activeProperty.set(false);
+            else if (!n)
+                stop();
+        });
+        qupath.projectProperty().addListener((v, o, n) -> this.activeProperty.set(false));
+    }
+
+    /**
+     * @return the property to bind to the menu toggle
+     */
+    public BooleanProperty activeProperty() {
+        return this.activeProperty;
+    }
+
+    /**
+     * start watching the HRM-Share folder of the default user
+     *
+     * @return true if the watcher is started
+     */
+    private boolean start() {
+        Project<BufferedImage> project = qupath.getProject();
+
+        // check if a project is open
+        if (project == null) {
+            Dialogs.showErrorMessage("No project", "No project is available!");
+            return false;
+        }
+
+        // username is mandatory
+        String username = defaultUsername.get();
+        if (username.equals(""))
+            username = Dialogs.showInputDialog("Auto-retrieve from HRM", "HRM Username", "");
+        if (username == null || username.equals("")) {
+            Dialogs.showErrorNotification("Invalid username", "Please fill the username field");
+            return false;
+        }
+        defaultUsername.set(username);
+
+        String rootFolder = QPHRMRetrieveFromHRMCommand.getRootFolder();
+        File deconvolvedFolder = QPHRMRetrieveEngine.getDeconvolvedFolder(rootFolder, username);
+        if (deconvolvedFolder == null) {
+            Dialogs.showErrorNotification("Auto-retrieve from HRM", "Cannot access " + rootFolder + File.separator + username);
+            return false;
+        }
+
+        // connect to OMERO only if the user has sent OMERO images
+        OmeroRawClient client = null;
+        String[] omeroContent = new File(deconvolvedFolder, HRMConstants.OMERO_FOLDER).list();
+        if (omeroContent != null && omeroContent.length > 0) {
+            client = QPHRMRetrieveFromHRM.askForOmeroConnection(omeroDefaultServerAddress.get());
+            if (client == null)
+                Dialogs.showWarningNotification("Auto-retrieve from HRM", "No OMERO connection ; OMERO images will not be retrieved");
+        }
+
+        this.autoRetriever = new QPHRMAutoRetriever(rootFolder, username, project)
+                .setOmeroClient(client)
+                .setListener(new QPHRMJobListener() {
+                    @Override
+                    public void onProjectChanged() {
+                        // show the new images in the project
+                        Platform.runLater(qupath::refreshProject);
+                    }
+
+                    @Override
+                    public void onMessage(String message) {
+                        Platform.runLater(() -> Dialogs.showInfoNotification("Auto-retrieve from HRM", message));
+                    }
+                })
+                .start();
+
+        if (this.autoRetriever == null) {
+            Dialogs.showErrorNotification("Auto-retrieve from HRM", "Cannot watch " + deconvolvedFolder);
+            return false;
+        }
+        Dialogs.showInfoNotification("Auto-retrieve from HRM", "Finished HRM jobs are retrieved in the current project");
+        return true;
+    }
+
+    private void stop() {
+        if (this.autoRetriever != null) {
+            this.autoRetriever.close();
+            this.autoRetriever = null;
+            logger.info("Auto-retrieve from HRM is stopped");
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.hrm.utils.QPHRMJob;
+import qupath.ext.biop.hrm.utils.QPHRMJobListener;
+import qupath.ext.biop.hrm.utils.QPHRMJobSummary;
+import qupath.ext.biop.hrm.utils.QPHRMScanCache;
+import qupath.ext.biop.hrm.utils.QPHRMShareIndex;
+import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.projects.Project;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background watcher of the Deconvolved folder of a user, retrieving finished HRM jobs automatically
+ * with {@link QPHRMRetrieveEngine}.
+ * <p>
+ * Folders are watched with a {@link WatchService}. As events are not always delivered on network shares,
+ * the modification time of the known folders is also polled ; only the modified folders are listed again.
+ * A job is considered as finished when the deconvolved image (.ids) and its .parameters.txt and .log.txt files
+ * are present and their sizes have not changed between two checks. Images already retrieved in the project,
+ * according to its {@link QPHRMScanCache}, are ignored.
+ * <pre>
+ *     def autoRetriever = new QPHRMAutoRetriever(rootFolder, "username", getProject()).start()
+ *     ...
+ *     autoRetriever.close()
+ * </pre>
+ */
+public class QPHRMAutoRetriever implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMAutoRetriever.class);
+
+    /** default delay between two checks of the finished jobs */
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 10_000;
+
+    /** default delay between two polls of the folders modification times */
+    public static final long DEFAULT_POLL_INTERVAL_MS = 60_000;
+
+    /** result files written by HRM at the end of a job */
+    private static final List<String> REQUIRED_SUFFIXES = List.of(".parameters.txt", ".log.txt");
+
+    private final String root;
+    private final String owner;
+    private final Project<BufferedImage> project;
+    private OmeroRawClient client = null;
+    private boolean deleteDeconvolved = false;
+    private boolean deleteRaw = false;
+    private long checkInterval = DEFAULT_CHECK_INTERVAL_MS;
+    private long pollInterval = DEFAULT_POLL_INTERVAL_MS;
+    private QPHRMJobListener listener = new QPHRMJobListener() {};
+
+    // state of the watcher, only accessed by the watcher thread
+    private File deconvolvedFolder;
+    private WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final Map<File, Long> directoryTimes = new HashMap<>();
+    private final Set<File> dirtyDirectories = new HashSet<>();
+    private final Map<File, Long> candidateSizes = new LinkedHashMap<>();
+    private final Set<File> handledImages = new HashSet<>();
+    private long lastPoll = 0;
+    private QPHRMScanCache scanCache;
+
+    private ScheduledExecutorService executor;
+    private volatile QPHRMJob currentJob;
+
+    /**
+     * @param root HRM-Share folder
+     * @param owner HRM username
+     * @param project QuPath project where to add the deconvolved images
+     */
+    public QPHRMAutoRetriever(String root, String owner, Project<BufferedImage> project) {
+        this.root = root;
+        this.owner = owner;
+        this.project = project;
+    }
+
+    /**
+     * @param client OMERO client used to upload images deconvolved from OMERO raw images
+     * @return
+     */
+    public QPHRMAutoRetriever setOmeroClient(OmeroRawClient client) {
+        this.client = client;
+        return this;
+    }
+
+    /**
+     * @param deleteDeconvolved delete deconvolved images from HRM once retrieved
+     * @return
+     */
+    public QPHRMAutoRetriever setDeleteDeconvolved(boolean deleteDeconvolved) {
+        this.deleteDeconvolved = deleteDeconvolved;
+        return this;
+    }
+
+    /**
+     * @param deleteRaw delete raw images from HRM once retrieved
+     * @return
+     */
+    public QPHRMAutoRetriever setDeleteRaw(boolean deleteRaw) {
+        this.deleteRaw = deleteRaw;
+        return this;
+    }
+
+    /**
+     * @param checkInterval delay between two checks of the finished jobs, in milliseconds
+     * @return
+     */
+    public QPHRMAutoRetriever setCheckInterval(long checkInterval) {
+        this.checkInterval = Math.max(1000, checkInterval);
+        return this;
+    }
+
+    /**
+     * @param pollInterval delay between two polls of the folders modification times, in milliseconds
+     * @return
+     */
+    public QPHRMAutoRetriever setPollInterval(long pollInterval) {
+        this.pollInterval = Math.max(1000, pollInterval);
+        return this;
+    }
+
+    /**
+     * @param listener notified of the progress and the messages of each retrieve job
+     * @return
+     */
+    public QPHRMAutoRetriever setListener(QPHRMJobListener listener) {
+        this.listener = listener == null ? new QPHRMJobListener() {} : listener;
+        return this;
+    }
+
+    /**
+     * start watching the Deconvolved folder of the user
+     *
+     * @return this watcher, or null if the Deconvolved folder does not exist
+     */
+    public synchronized QPHRMAutoRetriever start() {
+        if (this.executor != null)
+            return this;
+
+        this.deconvolvedFolder = QPHRMRetrieveEngine.getDeconvolvedFolder(this.root, this.owner);
+        if (this.deconvolvedFolder == null)
+            return null;
+        this.scanCache = QPHRMScanCache.load(this.project);
+
+        try {
+            this.watchService = this.deconvolvedFolder.toPath().getFileSystem().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warn("Auto-retrieve from HRM : cannot watch " + this.deconvolvedFolder + " ; the folder is polled every "
+                    + this.pollInterval / 1000 + " s", e);
+            this.watchService = null;
+        }
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("hrm-auto-retrieve-", true));
+        this.executor.execute(() -> registerTree(this.deconvolvedFolder.toPath()));
+        this.executor.scheduleWithFixedDelay(this::check, 0, this.checkInterval, TimeUnit.MILLISECONDS);
+        logger.info("Auto-retrieve from HRM : watching " + this.deconvolvedFolder);
+        return this;
+    }
+
+    /**
+     * @return true if the watcher is running
+     */
+    public synchronized boolean isRunning() {
+        return this.executor != null;
+    }
+
+    /**
+     * stop watching ; the running retrieve job is cancelled
+     */
+    @Override
+    public synchronized void close() {
+        if (this.executor == null)
+            return;
+        QPHRMJob job = this.currentJob;
+        if (job != null)
+            job.cancel();
+        this.executor.shutdownNow();
+        this.executor = null;
+        if (this.watchService != null) {
+            try {
+                this.watchService.close();
+            } catch (IOException e) {
+                logger.warn("Auto-retrieve from HRM : cannot close the watch service", e);
+            }
+        }
+        logger.info("Auto-retrieve from HRM : stop watching " + this.deconvolvedFolder);
+    }
+
+    /**
+     * look for finished jobs and retrieve them
+     */
+    private void check() {
+        try {
+            processEvents();
+
+            // fallback for file systems that do not deliver events
+            long now = System.currentTimeMillis();
+            if (now - this.lastPoll >= this.pollInterval) {
+                pollDirectories();
+                this.lastPoll = now;
+            }
+
+            while (!this.dirtyDirectories.isEmpty()) {
+                List<File> directories = new ArrayList<>(this.dirtyDirectories);
+                this.dirtyDirectories.clear();
+                directories.forEach(this::findCandidates);
+            }
+
+            List<File> finishedImages = getFinishedImages();
+            if (!finishedImages.isEmpty())
+                retrieve(finishedImages);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // the watcher keeps running
+            logger.error("Auto-retrieve from HRM : error while checking " + this.deconvolvedFolder, e);
+        }
+    }
+
+    /**
+     * watch a folder and its sub-folders, and mark them to be listed
+     *
+     * @param start
+     */
+    private void registerTree(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    File directory = dir.toFile();
+                    if (directoryTimes.containsKey(directory))
+                        return FileVisitResult.CONTINUE;
+                    directoryTimes.put(directory, attrs.lastModifiedTime().toMillis());
+                    dirtyDirectories.add(directory);
+                    if (watchService != null) {
+                        try {
+                            watchedDirectories.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                        } catch (IOException | UnsupportedOperationException e) {
+                            logger.debug("Auto-retrieve from HRM : cannot watch " + dir, e);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    logger.debug("Auto-retrieve from HRM : cannot read " + file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Auto-retrieve from HRM : cannot read " + start, e);
+        }
+    }
+
+    /**
+     * mark the folders with new or modified files
+     */
+    private void processEvents() {
+        if (this.watchService == null)
+            return;
+        WatchKey key;
+        while ((key = this.watchService.poll()) != null) {
+            Path dir = this.watchedDirectories.get(key);
+            if (dir != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() != StandardWatchEventKinds.OVERFLOW && event.context() instanceof Path) {
+                        Path child = dir.resolve((Path) event.context());
+                        if (Files.isDirectory(child))
+                            registerTree(child);
+                    }
+                    this.dirtyDirectories.add(dir.toFile());
+                }
+            }
+            if (!key.reset())
+                this.watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * mark the folders whose modification time has changed since the last poll ; forget deleted folders
+     */
+    private void pollDirectories() {
+        Iterator<Map.Entry<File, Long>> iterator = this.directoryTimes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<File, Long> directory = iterator.next();
+            long lastModified = directory.getKey().lastModified();
+            if (lastModified == 0) {
+                iterator.remove();
+            } else if (lastModified != directory.getValue()) {
+                directory.setValue(lastModified);
+                this.dirtyDirectories.add(directory.getKey());
+            }
+        }
+    }
+
+    /**
+     * list a folder and keep the deconvolved images that have not been handled yet
+     *
+     * @param directory
+     */
+    private void findCandidates(File directory) {
+        if (!directory.isDirectory()) {
+            this.directoryTimes.remove(directory);
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+            for (Path path : stream) {
+                File file = path.toFile();
+                if (Files.isDirectory(path)) {
+                    if (!this.directoryTimes.containsKey(file))
+                        registerTree(path);
+                } else if (file.getName().endsWith(QPHRMShareIndex.IMAGE_EXTENSION) && !this.handledImages.contains(file)
+                        && !this.scanCache.isRetrieved(file.getName())) {
+                    this.candidateSizes.putIfAbsent(file, -1L);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Auto-retrieve from HRM : cannot list " + directory, e);
+        }
+    }
+
+    /**
+     * @return the deconvolved images with all their result files, whose sizes have not changed since the last check
+     */
+    private List<File> getFinishedImages() {
+        List<File> finishedImages = new ArrayList<>();
+        Iterator<Map.Entry<File, Long>> iterator = this.candidateSizes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<File, Long> candidate = iterator.next();
+            File image = candidate.getKey();
+            if (!image.exists()) {
+                iterator.remove();
+                continue;
+            }
+            long size = getJobSize(image);
+            if (size >= 0 && size == candidate.getValue()) {
+                finishedImages.add(image);
+                iterator.remove();
+            } else {
+                candidate.setValue(size);
+            }
+        }
+        return finishedImages;
+    }
+
+    /**
+     * @param image deconvolved image
+     * @return the total size of the image and its result files ; -1 if a result file is missing
+     */
+    private static long getJobSize(File image) {
+        // result files are named after the image without its extension, i.e. "name_hrmcode_hrm"
+        String name = image.getName();
+        String stem = name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+        long size = image.length();
+        for (String suffix : REQUIRED_SUFFIXES) {
+            File resultFile = new File(image.getParentFile(), stem + suffix);
+            if (!resultFile.isFile())
+                return -1;
+            size += resultFile.length();
+        }
+        // header of the deconvolved image
+        size += new File(image.getParentFile(), stem + ".ics").length();
+        return size;
+    }
+
+    /**
+     * retrieve finished images through the retrieve engine ; images are handled only once
+     *
+     * @param finishedImages
+     */
+    private void retrieve(List<File> finishedImages) throws InterruptedException {
+        Map<File, String> imageTypes = new LinkedHashMap<>();
+        Path deconvolvedPath = this.deconvolvedFolder.toPath();
+        for (File image : finishedImages) {
+            // the category is the first folder in the Deconvolved folder
+            Path relativePath = deconvolvedPath.relativize(image.toPath());
+            if (relativePath.getNameCount() > 1)
+                imageTypes.put(image, relativePath.getName(0).toString());
+        }
+        this.handledImages.addAll(finishedImages);
+        if (imageTypes.isEmpty())
+            return;
+
+        logger.info("Auto-retrieve from HRM : " + imageTypes.size() + " finished job(s) found");
+        QPHRMRetrieveEngine engine = new QPHRMRetrieveEngine(this.root, this.owner, this.project)
+                .setOmeroClient(this.client)
+                .setDeleteDeconvolved(this.deleteDeconvolved)
+                .setDeleteRaw(this.deleteRaw)
+                .setScanCache(this.scanCache)
+                .setListener(this.listener);
+        this.currentJob = engine.start(QPHRMShareIndex.of(imageTypes));
+        try {
+            QPHRMJobSummary summary = this.currentJob.waitForCompletion();
+            logger.info("Auto-retrieve from HRM : " + summary);
+            this.listener.onMessage("Retrieved from HRM : " + summary);
+        } catch (ExecutionException e) {
+            logger.error("Auto-retrieve from HRM : error during the retrieval of images", e.getCause());
+        } finally {
+            this.currentJob = null;
+        }
+    }
+}
@@ -1,15 +1,15 @@
 package qupath.ext.biop.hrm.retrievers;
 
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.biop.hrm.HRMConstants;
-import qupath.ext.biop.servers.omero.raw.OmeroRawImageServerBuilder;
+import qupath.ext.biop.hrm.senders.QPHRMRegionSender;
+import qupath.ext.biop.hrm.utils.QPHRMFileTransfer;
 import qupath.ext.biop.servers.omero.raw.utils.Utils;
-import qupath.lib.gui.QuPathGUI;
-import qupath.lib.gui.scripting.QPEx;
+import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
-import qupath.lib.scripting.QP;
+import qupath.lib.projects.Projects;
+import qupath.lib.regions.ImageRegion;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -40,6 +40,18 @@ public class QPHRMLocalRetriever implements QPHRMRetriever {
     /** Image and restoration parameters of the deconvolution */
     private Map<String, Map<String, String>> metadata;
 
+    /** Deconvolved image and its result files ; if null, they are listed from the image folder */
+    private List<File> resultFiles;
+
+    /** QuPath project where to add the deconvolved image */
+    private Project<BufferedImage> project;
+
+    /** Registrar adding the image to the project */
+    private QPHRMProjectRegistrar registrar;
+
+    /** Index of the project image names, shared by the images of a retrieve job */
+    private QPHRMRawImageIndex rawImageIndex;
+
     @Override
     public boolean sendBack() {
         try {
@@ -51,6 +63,13 @@ public class QPHRMLocalRetriever implements QPHRMRetriever {
 
             // create the deconvolved folder
             if (this.target.mkdirs()){
+                if(this.resultFiles != null) {
+                    // copy the result files of the image, known from the HRM-Share index
+                    for (File sourceImage : this.resultFiles)
+                        QPHRMFileTransfer.copyFileToDirectory(sourceImage, this.target);
+                    return true;
+                }
+
                 File[] filesToCopy = this.imageToSend.getParentFile().listFiles();
                 String imageName = this.imageToSend.getName();
                 int index = imageName.lastIndexOf(".");
@@ -60,7 +79,7 @@ public class QPHRMLocalRetriever implements QPHRMRetriever {
                 if (filesToCopy != null)
                     for (File sourceImage : filesToCopy)
                         if (sourceImage.getName().contains(imageName))
-                            FileUtils.copyFileToDirectory(sourceImage, this.target);
+                            QPHRMFileTransfer.copyFileToDirectory(sourceImage, this.target);
 
                 return true;
             }
@@ -73,7 +92,7 @@ public class QPHRMLocalRetriever implements QPHRMRetriever {
     }
 
     @Override
-    public boolean toQuPath(QuPathGUI qupath) {
+    public boolean toQuPath() {
         // get image uri
         String imageURI = this.target.getAbsolutePath() + File.separator + this.imageToSend.getName();
 
@@ -89,14 +108,16 @@ public class QPHRMLocalRetriever implements QPHRMRetriever {
             hrmKeyValues.putAll(map);
         });
 
-        try {
-            // add the image to QuPath project
-            List<ProjectImageEntry<BufferedImage>> entries = QPHRMRetrieveFromHRM.toQuPath(qupath, null, imageURI);
-
-            // add metadata
-            for(ProjectImageEntry<BufferedImage> entry:entries)
-                hrmKeyValues.forEach(entry::putMetadataValue);
+        // keep the origin of the region in the raw image, if only a region has been deconvolved
+        ImageRegion region = QPHRMRegionSender.parseRegion(this.rawName);
+        if(region != null) {
+            hrmKeyValues.put(HRMConstants.REGION_ORIGIN_X, String.valueOf(region.getX()));
+            hrmKeyValues.put(HRMConstants.REGION_ORIGIN_Y, String.valueOf(region.getY()));
+        }
 
+        try {
+            // add the image to QuPath project, with its metadata
+            getRegistrar().register(null, imageURI, this.imageToSend.getName(), hrmKeyValues, List.of());
             return true;
         }catch(IOException e){
             Utils.errorLog(logger, "Image to QuPath", "An error occurred when trying to add image "+imageURI+" to QuPath project",e,false);
@@ -115,21 +136,12 @@ public class QPHRMLocalRetriever implements QPHRMRetriever {
     @Override
     public boolean buildTarget() {
         if(this.imageToSend != null && this.imageToSend.exists()) {
-            // list all available images
-            List<ProjectImageEntry<BufferedImage>> imageList = QPEx.getQuPath().getProject().getImageList();
+            // regions are compared to their raw image
+            String rawImageName = QPHRMRegionSender.regionPattern.matcher(this.rawName).replaceFirst("");
 
             // get the closest image to the hrm image name from the current project
-            ProjectImageEntry<BufferedImage> finalImage = null;
-            double higherSimilarity = 0;
-            for(ProjectImageEntry<BufferedImage> image :imageList){
-                if(!(image.getServerBuilder().toString().contains(OmeroRawImageServerBuilder.class.getName()))) {
-                    double sim = similarity(image.getImageName(), this.rawName);
-                    if (sim > 0.7 && sim > higherSimilarity && !image.getMetadataMap().containsKey(HRMConstants.DECONVOLVED_FOLDER.toLowerCase())) {
-                        higherSimilarity = sim;
-                        finalImage = image;
-                    }
-                }
-            }
+            QPHRMRawImageIndex index = this.rawImageIndex == null ? new QPHRMRawImageIndex(this.project) : this.rawImageIndex;
+            ProjectImageEntry<BufferedImage> finalImage = index.findClosestImage(rawImageName);
 
             if(finalImage != null){
                 try {
@@ -148,7 +160,7 @@ public class QPHRMLocalRetriever implements QPHRMRetriever {
                     logger.warn("Building Local target : Error when trying to get URI from image "+finalImage.getImageName());
                 }
             }else {
-                String parentFolder = QP.buildFilePath(QP.PROJECT_BASE_DIR) +  File.separator + "HRM Deconvolution";
+                String parentFolder = Projects.getBaseDirectory(this.project).getAbsolutePath() +  File.separator + "HRM Deconvolution";
                 String deconvolvedFolderPath = parentFolder +  File.separator + this.imageToSend.getName() + "_Deconvolved_" + this.hrmCode;
                 this.target = new File(deconvolvedFolderPath);
                 logger.warn("Building Local target : No image available in your project. Create a new folder at "+deconvolvedFolderPath);
@@ -164,6 +176,44 @@ public class QPHRMLocalRetriever implements QPHRMRetriever {
         return this;
     }
 
+    /**
+     * set the deconvolved image and its result files to copy, to avoid listing the image folder
+     * @param resultFiles
+     * @return
+     */
+    public QPHRMLocalRetriever setResultFiles(List<File> resultFiles) {
+        this.resultFiles = resultFiles;
+        return this;
+    }
+
+    @Override
+    public QPHRMLocalRetriever setProject(Project<BufferedImage> project) {
+        this.project = project;
+        return this;
+    }
+
+    @Override
+    public QPHRMLocalRetriever setRegistrar(QPHRMProjectRegistrar registrar) {
+        this.registrar = registrar;
+        return this;
+    }
+
+    private QPHRMProjectRegistrar getRegistrar() {
+        if (this.registrar == null)
+            this.registrar = new QPHRMProjectRegistrar(this.project).setBatchSize(1);
+        return this.registrar;
+    }
+
+    /**
+     * set the index of the project image names used to find the raw image ; by default, an index is built for each image
+     * @param rawImageIndex
+     * @return
+     */
+    public QPHRMLocalRetriever setRawImageIndex(QPHRMRawImageIndex rawImageIndex) {
+        this.rawImageIndex = rawImageIndex;
+        return this;
+    }
+
 
 
     /**
@@ -0,0 +1,149 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import fr.igred.omero.repository.DatasetWrapper;
+import fr.igred.omero.repository.ImageWrapper;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroGateway;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the images of the OMERO datasets where deconvolved images are sent back, by dataset id.
+ * <p>
+ * Each dataset is read from OMERO once, and its images are listed once, the first time the dataset is used ;
+ * the index is then updated with the images imported meanwhile.
+ * The index is built once per retrieve job and shared by the retrievers of the job.
+ */
+public class QPHRMOmeroDatasetIndex {
+
+    private final QPHRMOmeroGateway gateway;
+    private final Map<Long, DatasetWrapper> datasets = new ConcurrentHashMap<>();
+    private final Map<Long, DatasetImages> datasetImages = new ConcurrentHashMap<>();
+    private DatasetWrapper orphanDataset;
+
+    public QPHRMOmeroDatasetIndex(QPHRMOmeroGateway gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * @return the OMERO gateway of the index
+     */
+    public QPHRMOmeroGateway getGateway() {
+        return this.gateway;
+    }
+
+    /**
+     * @param datasetId
+     * @return the dataset, read from OMERO if it has not been read yet
+     * @throws IOException
+     */
+    public DatasetWrapper getDataset(long datasetId) throws IOException {
+        DatasetWrapper dataset = this.datasets.get(datasetId);
+        if (dataset == null) {
+            dataset = this.gateway.getDataset(datasetId);
+            this.datasets.putIfAbsent(datasetId, dataset);
+        }
+        return dataset;
+    }
+
+    /**
+     * @return the dataset of the orphaned deconvolved images, created on OMERO the first time it is used
+     * @throws IOException
+     */
+    public synchronized DatasetWrapper getOrphanDataset() throws IOException {
+        if (this.orphanDataset == null) {
+            DatasetWrapper dataset = this.gateway.createDataset("HRM_" + new Date(), "");
+            this.orphanDataset = dataset;
+            this.datasets.put(dataset.getId(), dataset);
+        }
+        return this.orphanDataset;
+    }
+
+    /**
+     * @param dataset
+     * @return the images of the dataset, listed from OMERO if the dataset has not been indexed yet
+     * @throws IOException
+     */
+    public DatasetImages getImages(DatasetWrapper dataset) throws IOException {
+        DatasetImages images = this.datasetImages.get(dataset.getId());
+        if (images != null)
+            return images;
+
+        synchronized (this) {
+            images = this.datasetImages.get(dataset.getId());
+            if (images == null) {
+                images = new DatasetImages(this.gateway.getImages(dataset));
+                this.datasetImages.put(dataset.getId(), images);
+            }
+            return images;
+        }
+    }
+
+
+    /**
+     * Images of a dataset, by name and by name prefix (the name before the first dot)
+     */
+    public static class DatasetImages {
+        private final List<ImageWrapper> images = new ArrayList<>();
+        private final List<String> prefixes = new ArrayList<>();
+        private final Map<String, ImageWrapper> imagesByName = new HashMap<>();
+        private final Map<String, Integer> positionsByPrefix = new HashMap<>();
+
+        private DatasetImages(List<ImageWrapper> images) {
+            images.forEach(this::addImage);
+        }
+
+        /**
+         * @param name
+         * @return the first image of the dataset with the name ; null if there is none
+         */
+        public synchronized ImageWrapper findImage(String name) {
+            return this.imagesByName.get(name);
+        }
+
+        /**
+         * The raw image is the first image of the dataset whose name prefix is contained in the deconvolved image name.
+         * The first image whose prefix starts the deconvolved name is looked up first ; only the images before it
+         * are then scanned for a prefix contained elsewhere in the name.
+         *
+         * @param deconvolvedName name of the deconvolved image
+         * @return the raw image of the deconvolved image ; null if there is none
+         */
+        public synchronized ImageWrapper findRawImage(String deconvolvedName) {
+            int position = this.images.size();
+            for (int length = 0; length <= deconvolvedName.length(); length++) {
+                Integer prefixPosition = this.positionsByPrefix.get(deconvolvedName.substring(0, length));
+                if (prefixPosition != null)
+                    position = Math.min(position, prefixPosition);
+            }
+
+            for (int i = 0; i < position; i++) {
+                if (deconvolvedName.contains(this.prefixes.get(i)))
+                    return this.images.get(i);
+            }
+            return position < this.images.size() ? this.images.get(position) : null;
+        }
+
+        /**
+         * add an image imported in the dataset
+         *
+         * @param image
+         */
+        public synchronized void addImage(ImageWrapper image) {
+            this.imagesByName.putIfAbsent(image.getName(), image);
+            String prefix = getPrefix(image.getName());
+            this.positionsByPrefix.putIfAbsent(prefix, this.images.size());
+            this.images.add(image);
+            this.prefixes.add(prefix);
+        }
+
+        private static String getPrefix(String name) {
+            return name.split("\\.")[0];
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import fr.igred.omero.repository.DatasetWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroGateway;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+
+/**
+ * Import deconvolved images on OMERO by batch of images sent to the same dataset.
+ * <p>
+ * The first retriever importing in a dataset opens a batch and waits a short time for other retrievers to join it ;
+ * all the files of the batch are then imported in one import call, with several upload threads.
+ * The ids of the images created by the import are mapped back to the files through their HRM code.
+ * The batcher is built once per retrieve job and shared by the retrievers of the job.
+ */
+public class QPHRMOmeroImportBatcher {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMOmeroImportBatcher.class);
+
+    /** default maximum number of images imported in one call */
+    public static final int DEFAULT_BATCH_SIZE = 8;
+
+    /** default time to wait for other images before importing a batch, in ms */
+    public static final long DEFAULT_LINGER_MS = 500;
+
+    /** default number of files uploaded in parallel */
+    public static final int DEFAULT_NB_UPLOAD_THREADS = 4;
+
+    private final QPHRMOmeroGateway gateway;
+    private final Map<Long, Batch> openBatches = new HashMap<>();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long lingerMs = DEFAULT_LINGER_MS;
+    private int nUploadThreads = DEFAULT_NB_UPLOAD_THREADS;
+
+    public QPHRMOmeroImportBatcher(QPHRMOmeroGateway gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * @param batchSize maximum number of images imported in one call
+     * @return
+     */
+    public QPHRMOmeroImportBatcher setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * @param lingerMs time to wait for other images before importing a batch, in ms
+     * @return
+     */
+    public QPHRMOmeroImportBatcher setLingerMs(long lingerMs) {
+        this.lingerMs = Math.max(0, lingerMs);
+        return this;
+    }
+
+    /**
+     * @param nUploadThreads number of files uploaded in parallel
+     * @return
+     */
+    public QPHRMOmeroImportBatcher setNbUploadThreads(int nUploadThreads) {
+        this.nUploadThreads = Math.max(1, nUploadThreads);
+        return this;
+    }
+
+    /**
+     * @return the OMERO gateway of the batcher
+     */
+    public QPHRMOmeroGateway getGateway() {
+        return this.gateway;
+    }
+
+    /**
+     * import the deconvolved image in the dataset, with the other images sent to the same dataset meanwhile
+     *
+     * @param dataset target dataset
+     * @param image deconvolved image
+     * @return the id of the imported image
+     * @throws ExecutionException if the batch cannot be imported or if the image has not been imported
+     * @throws InterruptedException
+     */
+    public long importImage(DatasetWrapper dataset, File image) throws ExecutionException, InterruptedException {
+        Batch batch;
+        boolean leader = false;
+        synchronized (this) {
+            batch = this.openBatches.get(dataset.getId());
+            if (batch == null) {
+                batch = new Batch(dataset);
+                this.openBatches.put(dataset.getId(), batch);
+                leader = true;
+            }
+            batch.images.add(image);
+
+            // full batch : import it now
+            if (batch.images.size() >= this.batchSize) {
+                this.openBatches.remove(dataset.getId(), batch);
+                notifyAll();
+            }
+        }
+
+        if (leader) {
+            // wait for other images, then close the batch
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + this.lingerMs;
+                long remaining = this.lingerMs;
+                try {
+                    while (this.openBatches.get(dataset.getId()) == batch && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    // the other images of the batch are not imported
+                    batch.ids.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    this.openBatches.remove(dataset.getId(), batch);
+                }
+            }
+            importBatch(batch);
+        }
+
+        Long id = batch.ids.get().get(image);
+        if (id == null)
+            throw new ExecutionException("Image " + image + " has not been imported in dataset '" + dataset.getName() + "'",
+                    new NoSuchElementException(image.getName()));
+        return id;
+    }
+
+    /**
+     * import all the files of the batch and map the created images to the files, by HRM code.
+     * Files without created image are not mapped.
+     *
+     * @param batch
+     */
+    private void importBatch(Batch batch) {
+        List<File> images;
+        synchronized (this) {
+            images = new ArrayList<>(batch.images);
+        }
+        try {
+            logger.info("Import " + images.size() + " image(s) in dataset '" + batch.dataset.getName() + "'");
+            Map<File, List<Long>> importedIds = this.gateway.importImages(batch.dataset, images, this.nUploadThreads);
+
+            // the imported file may be a companion of the deconvolved image : map the ids through the HRM code
+            Map<String, Long> idsByHrmCode = new HashMap<>();
+            importedIds.forEach((file, fileIds) -> {
+                String hrmCode = getHrmCode(file.getName());
+                if (hrmCode != null && !fileIds.isEmpty())
+                    idsByHrmCode.put(hrmCode, fileIds.get(0));
+            });
+
+            Map<File, Long> ids = new HashMap<>();
+            for (File image : images) {
+                String hrmCode = getHrmCode(image.getName());
+                List<Long> fileIds = importedIds.getOrDefault(image, List.of());
+                Long id = hrmCode != null ? idsByHrmCode.get(hrmCode) : fileIds.isEmpty() ? null : fileIds.get(0);
+                if (id != null)
+                    ids.put(image, id);
+            }
+            if (ids.size() < images.size())
+                logger.warn((images.size() - ids.size()) + " image(s) could not be imported in dataset '" + batch.dataset.getName() + "'");
+            batch.ids.complete(ids);
+        } catch (Exception e) {
+            batch.ids.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @param name
+     * @return the HRM code of the deconvolved image name ; null if the name is not a deconvolved image name
+     */
+    private static String getHrmCode(String name) {
+        Matcher matcher = HRMConstants.DECONVOLVED_NAME_PATTERN.matcher(name);
+        return matcher.find() ? matcher.group("hrmcode") : null;
+    }
+
+
+    /**
+     * Images imported together in a dataset
+     */
+    private static class Batch {
+        private final DatasetWrapper dataset;
+        private final List<File> images = new ArrayList<>();
+        private final CompletableFuture<Map<File, Long>> ids = new CompletableFuture<>();
+
+        private Batch(DatasetWrapper dataset) {
+            this.dataset = dataset;
+        }
+    }
+}
@@ -1,41 +1,44 @@
 package qupath.ext.biop.hrm.retrievers;
 
-import fr.igred.omero.annotations.MapAnnotationWrapper;
 import fr.igred.omero.annotations.TagAnnotationWrapper;
-import fr.igred.omero.exception.AccessException;
-import fr.igred.omero.exception.OMEROServerError;
-import fr.igred.omero.exception.ServiceException;
 import fr.igred.omero.repository.DatasetWrapper;
 import fr.igred.omero.repository.ImageWrapper;
-import omero.gateway.model.TagAnnotationData;
-import omero.model.NamedValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroAnnotations;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroClientGateway;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroGateway;
 import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
-import qupath.ext.biop.servers.omero.raw.OmeroRawImageServerBuilder;
-import qupath.ext.biop.servers.omero.raw.utils.OmeroRawScripting;
 import qupath.ext.biop.servers.omero.raw.utils.Utils;
-import qupath.lib.gui.QuPathGUI;
-import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.projects.Project;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class QPHRMOmeroRetriever implements QPHRMRetriever {
     private final static Logger logger = LoggerFactory.getLogger(QPHRMOmeroRetriever.class);
 
-    /** OMERO client */
-    private OmeroRawClient client;
+    /** threads uploading the log files in background */
+    private static final ExecutorService uploadExecutor = createUploadExecutor();
+
+    /** OMERO operations, on the server of the client or on a local stand-in */
+    private QPHRMOmeroGateway gateway;
 
     /** deconvolved image */
     private File imageToSend;
@@ -64,6 +67,24 @@ public class QPHRMOmeroRetriever implements QPHRMRetriever {
     /** tags to upload */
     private List<String> imageTags = new ArrayList<>();
 
+    /** QuPath project where to add the deconvolved image */
+    private Project<BufferedImage> project;
+
+    /** Registrar adding the image to the project */
+    private QPHRMProjectRegistrar registrar;
+
+    /** Index of the OMERO tags, shared by the images of a retrieve job */
+    private QPHRMOmeroTagIndex tagIndex;
+
+    /** Index of the images of the OMERO datasets, shared by the images of a retrieve job */
+    private QPHRMOmeroDatasetIndex datasetIndex;
+
+    /** Upload of the log file, running in background */
+    private CompletableFuture<Boolean> logFileUpload;
+
+    /** Batcher of the OMERO imports, shared by the images of a retrieve job ; if null, images are imported one by one */
+    private QPHRMOmeroImportBatcher importBatcher;
+
     public QPHRMOmeroRetriever(){
 
     }
@@ -73,88 +94,83 @@ public class QPHRMOmeroRetriever implements QPHRMRetriever {
         // read the target dataset
         DatasetWrapper dataset;
         try {
-            dataset = this.client.getSimpleClient().getDataset(this.target);
-        }catch(ServiceException | ExecutionException | AccessException e){
+            dataset = getDatasetIndex().getDataset(this.target);
+        }catch(IOException e){
             Utils.errorLog(logger, "Send back", "Un-existing object : The dataset '"+this.target+"' does not exist on OMERO", e, false);
             return false;
         }
 
         // read child images and check if it already exists on OMERO.
         // if not, the image is not uploaded
-        List<ImageWrapper> imagesWithinDataset = new ArrayList<>();
-        boolean imageRead = false;
+        QPHRMOmeroDatasetIndex.DatasetImages imagesWithinDataset = null;
         try {
-          imagesWithinDataset = dataset.getImages(this.client.getSimpleClient());
-          imageRead = true;
-        }catch(AccessException | ServiceException | ExecutionException e){
+          imagesWithinDataset = getDatasetIndex().getImages(dataset);
+        }catch(IOException e){
             Utils.errorLog(logger, "Send back", "Cannot get images from dataset '"+dataset.getName()+"' ; Import new images anyway", e, false);
         }
 
-        if(!imageRead || imagesWithinDataset.stream().noneMatch(e -> e.getName().equals(this.imageToSend.getName()))) {
+        ImageWrapper existingImage = imagesWithinDataset == null ? null : imagesWithinDataset.findImage(this.imageToSend.getName());
+        if(existingImage == null) {
+            // annotations of the raw and deconvolved images, saved together once the image is imported
+            QPHRMOmeroAnnotations annotations = new QPHRMOmeroAnnotations();
+
             // read raw image if exists
             try{
-                ImageWrapper rawImage = imagesWithinDataset.stream().filter(e -> this.imageToSend.getName().contains(e.getName().split("\\.")[0])).findFirst().get();
-                this.imageTags = rawImage.getTags(this.client.getSimpleClient()).stream().map(TagAnnotationWrapper::getName).collect(Collectors.toList());
+                ImageWrapper rawImage = imagesWithinDataset == null ? null : imagesWithinDataset.findRawImage(this.imageToSend.getName());
+                if(rawImage == null)
+                    throw new NoSuchElementException("No raw image found");
+                this.imageTags = new ArrayList<>(this.gateway.getTagNames(rawImage));
                 List<String> additionalRawTags = new ArrayList<>();
                 additionalRawTags.add(HRMConstants.HRM_TAG);
                 additionalRawTags.add(HRMConstants.RAW_FOLDER.toLowerCase());
-                if(!sendTags(additionalRawTags, rawImage))
+                if(!addTags(annotations, additionalRawTags, rawImage.getId(), this.imageTags))
                     Utils.errorLog(logger, "Send tags", "Cannot send tags to raw image '"+rawImage.getId()+"'", false);
-            }catch (ServiceException | AccessException | ExecutionException | NoSuchElementException e){
+            }catch (IOException | NoSuchElementException e){
                 Utils.warnLog(logger, "Send back", "The raw image of '"+this.imageToSend.toString()+"' cannot be retrieved in dataset '"+dataset.getName()+"'", e, false);
             }
 
-            // import image
-            List<Long> ids;
+            // import image, with the other images sent to the same dataset if images are imported by batch
             try{
-                ids = dataset.importImage(this.client.getSimpleClient(), this.imageToSend.toString());
-            }catch(OMEROServerError | ServiceException | AccessException | ExecutionException e){
+                if(this.importBatcher != null && this.importBatcher.getGateway() == this.gateway)
+                    this.imageId = this.importBatcher.importImage(dataset, this.imageToSend);
+                else
+                    this.imageId = this.gateway.importImage(dataset, this.imageToSend);
+            }catch(IOException | ExecutionException e){
                 Utils.errorLog(logger, "Send back", "Cannot import image '"+this.imageToSend.toString()+"' on OMERO", e, false);
                 return false;
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                Utils.errorLog(logger, "Send back", "Import of image '"+this.imageToSend.toString()+"' has been interrupted", e, false);
+                return false;
             }
 
             // get image
-            this.imageId = ids.get(0);
             try{
-                this.imageWrapper = this.client.getSimpleClient().getImage(this.imageId);
-            }catch(ServiceException | AccessException | ExecutionException e){
+                this.imageWrapper = this.gateway.getImage(this.imageId);
+            }catch(IOException e){
                 Utils.errorLog(logger, "Send back", "Cannot read image '"+this.imageId+"' from OMERO", e, false);
                 return false;
             }
+            if(imagesWithinDataset != null)
+                imagesWithinDataset.addImage(this.imageWrapper);
+
+            // add the logFile as attachment to the image, in background
+            if(this.logFile != null)
+                this.logFileUpload = CompletableFuture.supplyAsync(this::attachLogFile, uploadExecutor);
 
-            // send tags
+            // tags
             this.imageTags.add(HRMConstants.HRM_TAG);
             this.imageTags.add(HRMConstants.DECONVOLVED_FOLDER.toLowerCase());
-            if(!sendTags(this.imageTags, this.imageWrapper))
+            if(!addTags(annotations, this.imageTags, this.imageId, List.of()))
                 Utils.errorLog(logger, "Send tags", "Cannot send tags to deconvolved image '"+this.imageId+"'", false);
 
-            // convert key value pairs to omero-compatible object NamedValue
-            this.metadata.forEach((header,map)->{
-                List<NamedValue> omeroKeyValues = new ArrayList<>();
-                map.forEach((key, value)->omeroKeyValues.add(new NamedValue(key,value)));
+            // key-value pairs, with their header as namespace
+            this.metadata.forEach((header,map)-> annotations.addKeyValues(this.imageId, header, map));
 
-                // set annotation map
-                MapAnnotationWrapper mapAnnotationWrapper = new MapAnnotationWrapper();
-                mapAnnotationWrapper.setContent(omeroKeyValues);
+            // send tags and key-values on OMERO, in one update
+            saveAnnotations(annotations);
 
-                // set namespace
-                mapAnnotationWrapper.setNameSpace(header);
-
-                // send key-values on OMERO
-                try {
-                    this.imageWrapper.link(this.client.getSimpleClient(), mapAnnotationWrapper);
-                }catch(ServiceException | AccessException | ExecutionException e){
-                    Utils.errorLog(logger, "Send back", "Cannot attach metadata as key-values pairs to image '"+this.imageId+"'", e, false);
-                }
-            });
-
-            // add the logFile as attachment to the image
             if(this.logFile != null) {
-                try {
-                    this.imageWrapper.addFile(this.client.getSimpleClient(), this.logFile);
-                } catch (ExecutionException | InterruptedException e) {
-                    Utils.errorLog(logger, "Send back", "Cannot attach the log file to image '" + this.imageId + "'", e, false);
-                }
                 return true;
             }else{
                 Utils.warnLog(logger, "Send back", "The log file is not available in HRM folder", false);
@@ -162,62 +178,89 @@ public class QPHRMOmeroRetriever implements QPHRMRetriever {
             }
         } else {
             logger.warn("Existing images on OMERO : Image "+this.imageToSend.toString()+" already exists on OMERO. It is not uploaded");
-            this.imageWrapper = imagesWithinDataset.stream().filter(e -> e.getName().equals(this.imageToSend.getName())).collect(Collectors.toList()).get(0);
+            this.imageWrapper = existingImage;
             this.imageId = this.imageWrapper.getId();
             return true;
         }
     }
 
     /**
-     * Check if tags are already existing / linked and add / link them to the image
+     * Check if tags are already existing / linked and add the missing tags of the image to the annotations
      *
+     * @param annotations annotations to save, completed with the tags
      * @param tags
-     * @param imageWrapper
+     * @param imageId
+     * @param linkedTags names of the tags already linked to the image
      * @return
      */
-    private boolean sendTags(List<String> tags, ImageWrapper imageWrapper){
-        List<TagAnnotationWrapper> tagsToAdd = new ArrayList<>();
-        List<TagAnnotationWrapper> groupTags;
+    private boolean addTags(QPHRMOmeroAnnotations annotations, List<String> tags, long imageId, List<String> linkedTags){
+        List<String> tagsToLink = tags.stream()
+                .filter(tag -> linkedTags.stream().noneMatch(linkedTag -> linkedTag.equalsIgnoreCase(tag)))
+                .collect(Collectors.toList());
+        if(tagsToLink.isEmpty())
+            return true;
+
+        List<TagAnnotationWrapper> tagsToAdd;
         try {
-            groupTags= this.client.getSimpleClient().getTags();
-        }catch(ServiceException  | OMEROServerError e){
+            tagsToAdd = getTagIndex().getOrCreateTags(tagsToLink);
+        }catch(IOException e){
             Utils.errorLog(logger,"OMERO - tags",
-                    "Cannot read tags from the current user '"+this.client.getSimpleClient().getUser().getUserName()+"'", e, true);
+                    "Cannot read tags from the current user '"+this.gateway.getUserName()+"'", e, true);
             return false;
         }
 
-        for(String tag:tags) {
-            if(tagsToAdd.stream().noneMatch(e-> e.getName().equalsIgnoreCase(tag))){
-                TagAnnotationWrapper newOmeroTagAnnotation;
-                List<TagAnnotationWrapper> matchedTags = groupTags.stream().filter(e -> e.getName().equalsIgnoreCase(tag)).collect(Collectors.toList());
-                if(matchedTags.isEmpty()){
-                    newOmeroTagAnnotation = new TagAnnotationWrapper(new TagAnnotationData(tag));
-                } else {
-                    newOmeroTagAnnotation = matchedTags.get(0);
-                }
-                // find if the requested tag already exists
-                tagsToAdd.add(newOmeroTagAnnotation);
-            }
+        annotations.addTags(imageId, tagsToAdd);
+        return true;
+    }
+
+    /**
+     * save all the annotations in a single update on OMERO
+     *
+     * @param annotations
+     * @return
+     */
+    private boolean saveAnnotations(QPHRMOmeroAnnotations annotations){
+        try {
+            this.gateway.link(annotations);
+            return true;
+        }catch(IOException e){
+            Utils.errorLog(logger, "Send back", "Cannot attach tags and key-values pairs to image '"+this.imageId+"'", e, false);
+            return false;
         }
+    }
 
+    /**
+     * upload the log file and attach it to the image
+     *
+     * @return
+     */
+    private boolean attachLogFile(){
         try {
-            imageWrapper.link(this.client.getSimpleClient(), tagsToAdd.toArray(TagAnnotationWrapper[]::new));
-        }catch(ServiceException | AccessException | ExecutionException e){
-            Utils.errorLog(logger,"OMERO - tags", "Cannot add tags to the image '"+imageWrapper.getId()+"'", e, true);
+            this.gateway.addFile(this.imageWrapper, this.logFile);
+            return true;
+        } catch (IOException e) {
+            Utils.errorLog(logger, "Send back", "Cannot attach the log file to image '" + this.imageId + "'", e, false);
             return false;
         }
-        return true;
     }
 
-    //TODO ask Pete if there is a way to import an image in a qp project by scripting
     @Override
-    public boolean toQuPath(QuPathGUI qupath) {
-        // get the image uri
-        String serverUri = this.client.getServerURI().toString();
-        String imageURI = serverUri + String.format("/webclient/?show=image-%d", this.imageId);
+    public boolean waitForTransfers() {
+        return this.logFileUpload == null || this.logFileUpload.join();
+    }
 
-        // define the builder
-        OmeroRawImageServerBuilder omeroBuilder = new OmeroRawImageServerBuilder();
+    //TODO ask Pete if there is a way to import an image in a qp project by scripting
+    @Override
+    public boolean toQuPath() {
+        // get the image uri and its builder from the gateway
+        String imageURI;
+        try {
+            imageURI = this.gateway.getImageURI(this.imageId);
+        } catch (IOException e) {
+            Utils.errorLog(logger, "Image to QuPath", "Cannot read the URI of image " + this.imageId, e, false);
+            return false;
+        }
+        ImageServerBuilder<BufferedImage> imageServerBuilder = this.gateway.getImageServerBuilder();
 
         // add all key-values independently of their parent namespace
         Map<String,String> hrmKeyValues = new TreeMap<>();
@@ -225,15 +268,12 @@ public class QPHRMOmeroRetriever implements QPHRMRetriever {
             hrmKeyValues.putAll(map);
         });
 
+        // name of the imported image, without reading it back
+        String imageName = this.imageWrapper != null ? this.imageWrapper.getName() : this.imageToSend.getName();
+
         try {
-            // add the current image to the QuPath project
-            List<ProjectImageEntry<BufferedImage>> entries = QPHRMRetrieveFromHRM.toQuPath(qupath, omeroBuilder, imageURI);
-            for(ProjectImageEntry<BufferedImage> entry:entries) {
-                // add hrm KVPs
-                hrmKeyValues.forEach(entry::putMetadataValue);
-                // add tags
-                OmeroRawScripting.addTagsToQuPath(entry, this.imageTags, Utils.UpdatePolicy.UPDATE_KEYS, true);
-            }
+            // add the current image to the QuPath project, with hrm KVPs and tags
+            getRegistrar().register(imageServerBuilder, imageURI, imageName, hrmKeyValues, this.imageTags);
             return true;
         }catch(IOException e){
             Utils.errorLog(logger, "Image to QuPath", "An error occurred when trying to add image \"+this.imageId+\" to QuPath project",e,false);
@@ -250,7 +290,17 @@ public class QPHRMOmeroRetriever implements QPHRMRetriever {
     }
 
     public QPHRMOmeroRetriever setClient(OmeroRawClient client){
-        this.client = client;
+        this.gateway = client == null ? null : new QPHRMOmeroClientGateway(client);
+        return this;
+    }
+
+    /**
+     * set the OMERO operations of the retriever, e.g. a local stand-in of OMERO ; replaces the client
+     * @param gateway
+     * @return
+     */
+    public QPHRMOmeroRetriever setGateway(QPHRMOmeroGateway gateway){
+        this.gateway = gateway;
         return this;
     }
 
@@ -261,13 +311,11 @@ public class QPHRMOmeroRetriever implements QPHRMRetriever {
 
             // if orphaned image
             if(omeroDataset.equals("None")){
-                // create a new orphaned dataset and retrieve its id
-                DatasetWrapper datasetWrapper = new DatasetWrapper("HRM_"+ new Date(), "");
+                // create a new orphaned dataset, once for all the orphaned images of the job, and retrieve its id
                 try {
-                    datasetWrapper.saveAndUpdate(this.client.getSimpleClient());
-                    this.target = datasetWrapper.getId();
-                }catch (AccessException | ExecutionException | ServiceException e){
-                    Utils.errorLog(logger, "Build target", "Cannot create OMERO dataset '"+datasetWrapper.getName()+"'", e, false);
+                    this.target = getDatasetIndex().getOrphanDataset().getId();
+                }catch (IOException e){
+                    Utils.errorLog(logger, "Build target", "Cannot create OMERO dataset for orphaned images", e, false);
                 }
                 return this.target > 0;
             }else
@@ -285,6 +333,76 @@ public class QPHRMOmeroRetriever implements QPHRMRetriever {
         return this;
     }
 
+    @Override
+    public QPHRMOmeroRetriever setProject(Project<BufferedImage> project) {
+        this.project = project;
+        return this;
+    }
+
+    @Override
+    public QPHRMOmeroRetriever setRegistrar(QPHRMProjectRegistrar registrar) {
+        this.registrar = registrar;
+        return this;
+    }
+
+    private QPHRMProjectRegistrar getRegistrar() {
+        if (this.registrar == null)
+            this.registrar = new QPHRMProjectRegistrar(this.project).setBatchSize(1);
+        return this.registrar;
+    }
+
+    /**
+     * set the index of the OMERO tags of the client ; by default, tags are read from OMERO for each image
+     * @param tagIndex
+     * @return
+     */
+    public QPHRMOmeroRetriever setTagIndex(QPHRMOmeroTagIndex tagIndex) {
+        this.tagIndex = tagIndex;
+        return this;
+    }
+
+    /**
+     * set the index of the OMERO datasets images ; by default, dataset images are listed from OMERO for each image
+     * @param datasetIndex
+     * @return
+     */
+    public QPHRMOmeroRetriever setDatasetIndex(QPHRMOmeroDatasetIndex datasetIndex) {
+        this.datasetIndex = datasetIndex;
+        return this;
+    }
+
+    /**
+     * set the batcher importing the images sent to the same dataset together ; by default, each image is imported alone
+     * @param importBatcher
+     * @return
+     */
+    public QPHRMOmeroRetriever setImportBatcher(QPHRMOmeroImportBatcher importBatcher) {
+        this.importBatcher = importBatcher;
+        return this;
+    }
+
+    private QPHRMOmeroDatasetIndex getDatasetIndex() {
+        if (this.datasetIndex == null || this.datasetIndex.getGateway() != this.gateway)
+            this.datasetIndex = new QPHRMOmeroDatasetIndex(this.gateway);
+        return this.datasetIndex;
+    }
+
+    private QPHRMOmeroTagIndex getTagIndex() {
+        if (this.tagIndex == null || this.tagIndex.getGateway() != this.gateway)
+            this.tagIndex = new QPHRMOmeroTagIndex(this.gateway);
+        return this.tagIndex;
+    }
+
+    /**
+     * @return a pool of daemon threads, stopped when idle
+     */
+    private static ExecutorService createUploadExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(HRMConstants.DEFAULT_NB_WORKERS, HRMConstants.DEFAULT_NB_WORKERS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), ThreadTools.createThreadFactory("hrm-omero-upload-", true));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public QPHRMOmeroRetriever setLogFile(File logFile) {
         this.logFile = logFile;
         return this;
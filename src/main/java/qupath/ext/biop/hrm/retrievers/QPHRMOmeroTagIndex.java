@@ -0,0 +1,91 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import fr.igred.omero.annotations.TagAnnotationWrapper;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroGateway;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the OMERO tags visible to the user, by case-insensitive name.
+ * <p>
+ * Tags are read from OMERO once, at the first lookup ; tags created through the index are added to it.
+ * The index is built once per retrieve job and shared by the retrievers of the job.
+ */
+public class QPHRMOmeroTagIndex {
+
+    private final QPHRMOmeroGateway gateway;
+
+    /** tags by lower-case name ; the first tag read from OMERO is kept for names differing by case only */
+    private final Map<String, TagAnnotationWrapper> tags = new ConcurrentHashMap<>();
+    private volatile boolean loaded = false;
+
+    public QPHRMOmeroTagIndex(QPHRMOmeroGateway gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * @return the OMERO gateway of the index
+     */
+    public QPHRMOmeroGateway getGateway() {
+        return this.gateway;
+    }
+
+    /**
+     * get the tags with the given names, case-insensitive. Tags that do not exist yet are created on OMERO.
+     *
+     * @param names tag names ; names differing by case only give one tag
+     * @return the tags, in the order of the names
+     * @throws IOException
+     */
+    public List<TagAnnotationWrapper> getOrCreateTags(Collection<String> names) throws IOException {
+        load();
+        Map<String, TagAnnotationWrapper> result = new LinkedHashMap<>();
+        for (String name : names) {
+            String key = name.toLowerCase(Locale.ROOT);
+            if (result.containsKey(key))
+                continue;
+            TagAnnotationWrapper tag = this.tags.get(key);
+            if (tag == null)
+                tag = createTag(name);
+            result.put(key, tag);
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    /**
+     * read the tags of the user from OMERO, if not done yet
+     *
+     * @throws IOException
+     */
+    private synchronized void load() throws IOException {
+        if (this.loaded)
+            return;
+        for (TagAnnotationWrapper tag : this.gateway.getTags())
+            this.tags.putIfAbsent(tag.getName().toLowerCase(Locale.ROOT), tag);
+        this.loaded = true;
+    }
+
+    /**
+     * create the tag on OMERO, unless another retriever has just created it
+     *
+     * @param name
+     * @return the tag
+     * @throws IOException
+     */
+    private synchronized TagAnnotationWrapper createTag(String name) throws IOException {
+        String key = name.toLowerCase(Locale.ROOT);
+        TagAnnotationWrapper tag = this.tags.get(key);
+        if (tag == null) {
+            tag = this.gateway.createTag(name);
+            this.tags.put(key, tag);
+        }
+        return tag;
+    }
+}
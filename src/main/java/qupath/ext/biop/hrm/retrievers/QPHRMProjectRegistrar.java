@@ -0,0 +1,328 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.servers.omero.raw.OmeroRawImageServerBuilder;
+import qupath.ext.biop.servers.omero.raw.utils.OmeroRawScripting;
+import qupath.ext.biop.servers.omero.raw.utils.Utils;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.io.GsonTools;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Register deconvolved images in a QuPath project by batch.
+ * <p>
+ * Images are added to the project with their metadata and tags in memory ; the project file is written once
+ * every batch of images, and when {@link #commit()} is called at the end of the retrieval.
+ * Before being added, each image is recorded in a write-ahead journal saved in the project folder.
+ * Each registrar has its own journal, cleared once the project is written ; images left in the journals of
+ * previous registrars after a crash are registered again with {@link #recover()}.
+ * <p>
+ * With fast registration, images are named from their deconvolved file and their servers are initialized in
+ * background, instead of reading each image before adding it ; see {@link #setOnAdded(Consumer)}.
+ * <p>
+ * Methods have to be called by one thread at a time, while the project is not modified by other threads.
+ */
+public class QPHRMProjectRegistrar {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMProjectRegistrar.class);
+
+    /** prefix of the journals of pending images in the QuPath project folder */
+    public static final String JOURNAL_PREFIX = ".qphrm-pending-entries";
+
+    /** extension of the journals of pending images */
+    public static final String JOURNAL_EXTENSION = ".jsonl";
+
+    /** default number of images registered before writing the project */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    private final Project<BufferedImage> project;
+    private final File journalFile;
+    private final List<PendingEntry> pendingEntries = new ArrayList<>();
+    private final List<File> recoveredJournals = new ArrayList<>();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean fastRegistration = true;
+    private Runnable onCommit = () -> {};
+    private Consumer<List<ProjectImageEntry<BufferedImage>>> onAdded = entries -> {};
+
+    /**
+     * @param project QuPath project where to add the deconvolved images
+     */
+    public QPHRMProjectRegistrar(Project<BufferedImage> project) {
+        this.project = project;
+        File projectFolder = Projects.getBaseDirectory(project);
+        this.journalFile = projectFolder == null ? null : new File(projectFolder,
+                JOURNAL_PREFIX + "-" + UUID.randomUUID() + JOURNAL_EXTENSION);
+    }
+
+    /**
+     * @param batchSize number of images registered before writing the project ; 1 to write it for each image
+     * @return
+     */
+    public QPHRMProjectRegistrar setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * @param fastRegistration add the images without initializing their server first ; true by default
+     * @return
+     */
+    public QPHRMProjectRegistrar setFastRegistration(boolean fastRegistration) {
+        this.fastRegistration = fastRegistration;
+        return this;
+    }
+
+    /**
+     * @param onCommit called each time the project is written, e.g. to refresh the project in the UI
+     * @return
+     */
+    public QPHRMProjectRegistrar setOnCommit(Runnable onCommit) {
+        this.onCommit = onCommit == null ? () -> {} : onCommit;
+        return this;
+    }
+
+    /**
+     * @param onAdded called with the entries of each image added to the project, registered or recovered
+     * @return
+     */
+    public QPHRMProjectRegistrar setOnAdded(Consumer<List<ProjectImageEntry<BufferedImage>>> onAdded) {
+        this.onAdded = onAdded == null ? entries -> {} : onAdded;
+        return this;
+    }
+
+    /**
+     * add an image to the project, with its metadata and tags. The project is written if the batch is full.
+     *
+     * @param imageServerBuilder builder of the image ; null to use the default one
+     * @param imageURI URI of the deconvolved image
+     * @param imageName name of the deconvolved image, i.e. its file name with the HRM code ;
+     *                  null to read it from the image server
+     * @param keyValues metadata of the image
+     * @param tags tags of the image ; may be empty
+     * @return the entries added to the project
+     * @throws IOException if the image cannot be recorded in the journal
+     */
+    public synchronized List<ProjectImageEntry<BufferedImage>> register(ImageServerBuilder<BufferedImage> imageServerBuilder,
+                                                                         String imageURI, String imageName,
+                                                                         Map<String, String> keyValues, List<String> tags) throws IOException {
+        // write-ahead record
+        PendingEntry pendingEntry = new PendingEntry(imageServerBuilder, imageURI,
+                this.fastRegistration ? imageName : null, keyValues, tags);
+        appendToJournal(pendingEntry);
+        this.pendingEntries.add(pendingEntry);
+
+        List<ProjectImageEntry<BufferedImage>> entries = addEntries(pendingEntry);
+        if (this.pendingEntries.size() >= this.batchSize)
+            commit();
+        return entries;
+    }
+
+    /**
+     * write the project and clear the journal of the registrar, and the journals it has recovered
+     */
+    public synchronized void commit() {
+        if (this.pendingEntries.isEmpty())
+            return;
+        try {
+            this.project.syncChanges();
+        } catch (IOException e) {
+            // the journal is kept to register the images again
+            logger.error("Cannot sync the project", e);
+            return;
+        }
+        this.pendingEntries.clear();
+        if (this.journalFile != null && this.journalFile.exists())
+            deleteJournal(this.journalFile);
+        this.recoveredJournals.forEach(QPHRMProjectRegistrar::deleteJournal);
+        this.recoveredJournals.clear();
+        this.onCommit.run();
+    }
+
+    /**
+     * register the images left in the journals of previous registrars of the project that have not been committed.
+     * The journals are deleted once the recovered images are saved.
+     *
+     * @return the number of images registered again
+     */
+    public synchronized int recover() {
+        if (this.journalFile == null)
+            return 0;
+        String journalName = this.journalFile.getName();
+        File[] journalFiles = this.journalFile.getParentFile().listFiles((dir, name) -> name.startsWith(JOURNAL_PREFIX)
+                && name.endsWith(JOURNAL_EXTENSION) && !name.equals(journalName));
+        if (journalFiles == null || journalFiles.length == 0)
+            return 0;
+
+        int nRecovered = 0;
+        for (File journalFile : journalFiles) {
+            List<PendingEntry> journal = readJournal(journalFile);
+            if (journal == null)
+                continue;
+            for (PendingEntry pendingEntry : journal) {
+                if (pendingEntry == null || pendingEntry.imageURI == null || isInProject(pendingEntry.imageURI))
+                    continue;
+                this.pendingEntries.add(pendingEntry);
+                if (!addEntries(pendingEntry).isEmpty())
+                    nRecovered++;
+                else
+                    logger.warn("Cannot recover image " + pendingEntry.imageURI + " ; it is removed from the journal");
+            }
+            this.recoveredJournals.add(journalFile);
+        }
+        if (nRecovered > 0)
+            logger.info("Recovered " + nRecovered + " image(s) not saved in the project by a previous retrieval");
+
+        // the journals are cleared once the recovered images are saved
+        if (this.pendingEntries.isEmpty()) {
+            this.recoveredJournals.forEach(QPHRMProjectRegistrar::deleteJournal);
+            this.recoveredJournals.clear();
+        } else {
+            commit();
+        }
+        return nRecovered;
+    }
+
+    /**
+     * @param journalFile
+     * @return the records of the journal ; null if it cannot be read
+     */
+    private static List<PendingEntry> readJournal(File journalFile) {
+        List<PendingEntry> journal = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    if (!line.isBlank())
+                        journal.add(GsonTools.getInstance().fromJson(line, PendingEntry.class));
+                } catch (JsonParseException e) {
+                    // last record partially written
+                    logger.warn("Ignore a corrupted record of the journal " + journalFile);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot read the journal of pending images " + journalFile, e);
+            return null;
+        }
+        return journal;
+    }
+
+    private static void deleteJournal(File journalFile) {
+        if (!journalFile.delete())
+            logger.warn("Cannot delete the journal of pending images " + journalFile);
+    }
+
+    /**
+     * add the image to the project in memory
+     *
+     * @param pendingEntry
+     * @return the added entries
+     */
+    private List<ProjectImageEntry<BufferedImage>> addEntries(PendingEntry pendingEntry) {
+        try {
+            List<ProjectImageEntry<BufferedImage>> entries = QPHRMRetrieveEngine.toQuPath(this.project,
+                    pendingEntry.getBuilder(), pendingEntry.imageURI, pendingEntry.imageName);
+            for (ProjectImageEntry<BufferedImage> entry : entries) {
+                if (pendingEntry.keyValues != null)
+                    pendingEntry.keyValues.forEach(entry::putMetadataValue);
+                if (pendingEntry.tags != null && !pendingEntry.tags.isEmpty())
+                    OmeroRawScripting.addTagsToQuPath(entry, pendingEntry.tags, Utils.UpdatePolicy.UPDATE_KEYS, true);
+            }
+            if (!entries.isEmpty())
+                this.onAdded.accept(entries);
+            return entries;
+        } catch (IOException e) {
+            logger.error("Cannot add image " + pendingEntry.imageURI + " to the project", e);
+            return List.of();
+        }
+    }
+
+    /**
+     * @param imageURI
+     * @return true if an image of the project has the URI
+     */
+    private boolean isInProject(String imageURI) {
+        URI uri;
+        try {
+            uri = GeneralTools.toURI(imageURI);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        for (ProjectImageEntry<BufferedImage> entry : this.project.getImageList()) {
+            try {
+                if (entry.getURIs().contains(uri))
+                    return true;
+            } catch (IOException e) {
+                logger.debug("Cannot read the URIs of " + entry.getImageName(), e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * append a record to the journal and force it to the disk
+     *
+     * @param pendingEntry
+     * @throws IOException
+     */
+    private void appendToJournal(PendingEntry pendingEntry) throws IOException {
+        if (this.journalFile == null)
+            return;
+        byte[] record = (GsonTools.getInstance().toJson(pendingEntry) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(record));
+            channel.force(false);
+        }
+    }
+
+
+    /**
+     * Image added to the project but not written yet
+     */
+    private static class PendingEntry {
+        private String imageURI;
+        private boolean omero;
+        private String imageName;
+        private Map<String, String> keyValues;
+        private List<String> tags;
+
+        private PendingEntry() {}
+
+        private PendingEntry(ImageServerBuilder<BufferedImage> imageServerBuilder, String imageURI, String imageName,
+                             Map<String, String> keyValues, List<String> tags) {
+            this.imageURI = imageURI;
+            this.omero = imageServerBuilder instanceof OmeroRawImageServerBuilder;
+            this.imageName = imageName;
+            this.keyValues = keyValues;
+            this.tags = tags;
+        }
+
+        /**
+         * @return the builder of the image ; null for the default one
+         */
+        private ImageServerBuilder<BufferedImage> getBuilder() {
+            return this.omero ? new OmeroRawImageServerBuilder() : null;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.servers.omero.raw.OmeroRawImageServerBuilder;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Index of the names of the project images, to find the raw image of a deconvolved image.
+ * <p>
+ * The result is the same as comparing the raw name to each local image of the project with
+ * {@link QPHRMLocalRetriever#similarity(String, String)} : the first image with the highest similarity above 0.7 is kept,
+ * ignoring OMERO images and images already tagged as deconvolved. Images with the same name (case-insensitive)
+ * are found with a hash lookup ; the others are filtered by length and by the number of common bigrams before
+ * computing a bounded edit distance.
+ * <p>
+ * The index is built once per retrieve job and updated with the images added to the project meanwhile.
+ */
+public class QPHRMRawImageIndex {
+
+    /** minimal similarity between the raw name and the project image name */
+    public static final double SIMILARITY_THRESHOLD = 0.7;
+
+    private final Project<BufferedImage> project;
+
+    /** indexed images, in the order of the project */
+    private final List<IndexedImage> images = new ArrayList<>();
+
+    /** positions of the images by lower-case name */
+    private final Map<String, List<Integer>> exactNames = new HashMap<>();
+
+    /** positions and number of occurrences of the images, by bigram of their lower-case name */
+    private final Map<String, List<int[]>> bigramPostings = new HashMap<>();
+
+    public QPHRMRawImageIndex(Project<BufferedImage> project) {
+        this.project = project;
+    }
+
+    /**
+     * @param rawName name of the raw image
+     * @return the project image closest to the raw name, or null if no image is similar enough
+     */
+    public synchronized ProjectImageEntry<BufferedImage> findClosestImage(String rawName) {
+        refresh();
+        String lowerName = rawName.toLowerCase();
+
+        // same name : highest possible similarity
+        for (int position : this.exactNames.getOrDefault(lowerName, List.of())) {
+            IndexedImage image = this.images.get(position);
+            if (!image.isOmero && !isDeconvolved(image.entry))
+                return image.entry;
+        }
+
+        // count the bigrams shared with each image
+        int[] commonBigrams = new int[this.images.size()];
+        getBigrams(lowerName).forEach((bigram, count) -> {
+            for (int[] posting : this.bigramPostings.getOrDefault(bigram, List.of()))
+                commonBigrams[posting[0]] += Math.min(count, posting[1]);
+        });
+
+        ProjectImageEntry<BufferedImage> closestImage = null;
+        double higherSimilarity = 0;
+        for (int i = 0; i < this.images.size(); i++) {
+            IndexedImage image = this.images.get(i);
+            if (image.isOmero)
+                continue;
+
+            int longerLength = Math.max(image.name.length(), rawName.length());
+            if (longerLength == 0)
+                continue;
+
+            // each edit changes at most two bigrams ; skip images that cannot reach the threshold
+            int maxThresholdDistance = getMaxDistance(longerLength, SIMILARITY_THRESHOLD);
+            int minCommonBigrams = Math.max(image.lowerName.length(), lowerName.length()) - 1 - 2 * maxThresholdDistance;
+            if (minCommonBigrams > 0 && commonBigrams[i] < minCommonBigrams)
+                continue;
+
+            // only images more similar than the current closest image are computed
+            int maxDistance = getMaxDistance(longerLength, Math.max(SIMILARITY_THRESHOLD, higherSimilarity));
+            int distance = boundedEditDistance(image.lowerName, lowerName, maxDistance);
+            if (distance > maxDistance)
+                continue;
+
+            double sim = (longerLength - distance) / (double) longerLength;
+            if (sim > SIMILARITY_THRESHOLD && sim > higherSimilarity && !isDeconvolved(image.entry)) {
+                higherSimilarity = sim;
+                closestImage = image.entry;
+            }
+        }
+        return closestImage;
+    }
+
+    /**
+     * index the images added to the project since the last search ; the whole index is rebuilt if images
+     * have been removed, moved or renamed
+     */
+    private void refresh() {
+        List<ProjectImageEntry<BufferedImage>> entries = this.project.getImageList();
+
+        int start = this.images.size();
+        boolean unchanged = entries.size() >= start;
+        for (int i = 0; i < start && unchanged; i++) {
+            IndexedImage image = this.images.get(i);
+            unchanged = entries.get(i) == image.entry && Objects.equals(image.name, entries.get(i).getImageName());
+        }
+        if (!unchanged) {
+            this.images.clear();
+            this.exactNames.clear();
+            this.bigramPostings.clear();
+            start = 0;
+        }
+
+        for (int i = start; i < entries.size(); i++) {
+            IndexedImage image = new IndexedImage(entries.get(i));
+            this.images.add(image);
+            if (image.isOmero)
+                continue;
+            int position = i;
+            this.exactNames.computeIfAbsent(image.lowerName, k -> new ArrayList<>()).add(position);
+            getBigrams(image.lowerName).forEach((bigram, count) ->
+                    this.bigramPostings.computeIfAbsent(bigram, k -> new ArrayList<>()).add(new int[]{position, count}));
+        }
+    }
+
+    /**
+     * @param entry
+     * @return true if the image is already a deconvolved image
+     */
+    private static boolean isDeconvolved(ProjectImageEntry<BufferedImage> entry) {
+        return entry.getMetadataMap().containsKey(HRMConstants.DECONVOLVED_FOLDER.toLowerCase());
+    }
+
+    /**
+     * @param longerLength
+     * @param similarity
+     * @return an upper bound of the edit distance giving a similarity higher than the given one
+     */
+    private static int getMaxDistance(int longerLength, double similarity) {
+        return (int) Math.ceil(longerLength * (1 - similarity));
+    }
+
+    /**
+     * @param text
+     * @return the number of occurrences of each bigram of the text
+     */
+    private static Map<String, Integer> getBigrams(String text) {
+        Map<String, Integer> bigrams = new HashMap<>();
+        for (int i = 0; i < text.length() - 1; i++)
+            bigrams.merge(text.substring(i, i + 2), 1, Integer::sum);
+        return bigrams;
+    }
+
+    /**
+     * Levenshtein distance computed in a band around the diagonal, stopping as soon as the distance exceeds the bound
+     *
+     * @param s1
+     * @param s2
+     * @param maxDistance
+     * @return the edit distance if it is lower or equal to maxDistance ; maxDistance + 1 otherwise
+     */
+    static int boundedEditDistance(String s1, String s2, int maxDistance) {
+        int n = s1.length();
+        int m = s2.length();
+        int outOfBound = maxDistance + 1;
+        if (Math.abs(n - m) > maxDistance)
+            return outOfBound;
+
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++)
+            previous[j] = Math.min(j, outOfBound);
+
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - maxDistance);
+            int to = Math.min(m, i + maxDistance);
+            current[0] = Math.min(i, outOfBound);
+            if (from > 1)
+                current[from - 1] = outOfBound;
+            int rowMin = from == 1 ? current[0] : outOfBound;
+
+            char c1 = s1.charAt(i - 1);
+            for (int j = from; j <= to; j++) {
+                int cost = c1 == s2.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                current[j] = Math.min(value, outOfBound);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (to < m)
+                current[to + 1] = outOfBound;
+
+            // early exit : the distance can only grow
+            if (rowMin > maxDistance)
+                return outOfBound;
+
+            int[] tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+        return previous[m];
+    }
+
+
+    /**
+     * Project image with its normalized name
+     */
+    private static class IndexedImage {
+        private final ProjectImageEntry<BufferedImage> entry;
+        private final String name;
+        private final String lowerName;
+        private final boolean isOmero;
+
+        private IndexedImage(ProjectImageEntry<BufferedImage> entry) {
+            this.entry = entry;
+            this.name = entry.getImageName();
+            this.lowerName = this.name.toLowerCase();
+            this.isOmero = entry.getServerBuilder().toString().contains(OmeroRawImageServerBuilder.class.getName());
+        }
+    }
+}
@@ -0,0 +1,973 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.hrm.utils.QPHRMJob;
+import qupath.ext.biop.hrm.utils.QPHRMJobListener;
+import qupath.ext.biop.hrm.utils.QPHRMJobSummary;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroClientGateway;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroGateway;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroSessionPool;
+import qupath.ext.biop.hrm.utils.QPHRMParametersParser;
+import qupath.ext.biop.hrm.utils.QPHRMScanCache;
+import qupath.ext.biop.hrm.utils.QPHRMShareIndex;
+import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.gui.commands.ProjectCommands;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.ServerTools;
+import qupath.lib.images.servers.bioformats.BioFormatsServerBuilder;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectIO;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+
+/**
+ * Retrieve deconvolved images from HRM, without any user interface.
+ * <p>
+ * The engine can be used from scripts for unattended batch retrieves, e.g.
+ * <pre>
+ *     def job = new QPHRMRetrieveEngine(rootFolder, "username", getProject())
+ *             .setOmeroClient(client)
+ *             .start()
+ *     println job.waitForCompletion()
+ * </pre>
+ * Deconvolved images are sent back to the location of their raw image (locally or on OMERO) and added to the project.
+ * Images go through a pipeline of stages (parsing, transfer, registration, cleanup), so that I/O, OMERO imports
+ * and project updates of different images overlap.
+ * <p>
+ * Retrievals of the same project, manual or automatic, run one at a time : a job waits for the running one to finish.
+ */
+public class QPHRMRetrieveEngine {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMRetrieveEngine.class);
+
+    /** default number of threads parsing the result files */
+    public static final int DEFAULT_NB_PARSE_THREADS = 2;
+
+    /** default number of threads deleting retrieved images from HRM */
+    public static final int DEFAULT_NB_CLEANUP_THREADS = 2;
+
+    /** extensions of the HRM result files opened with Bio-Formats */
+    private static final List<String> BIOFORMATS_EXTENSIONS = List.of(".ids", ".ics");
+
+    /** default maximum number of images in the retrieval pipeline */
+    public static final int DEFAULT_MAX_IMAGES_IN_FLIGHT = 16;
+
+    /** locks of the projects being retrieved, by project folder ; one retrieval at a time registers images in a project */
+    private static final Map<Object, ReentrantLock> PROJECT_LOCKS = new ConcurrentHashMap<>();
+
+    private final String root;
+    private final String owner;
+    private final Project<BufferedImage> project;
+    private OmeroRawClient client = null;
+    private QPHRMOmeroGateway omeroGateway = null;
+    private boolean deleteDeconvolved = false;
+    private boolean deleteRaw = false;
+    private int nParseThreads = DEFAULT_NB_PARSE_THREADS;
+    private int nTransferThreads = HRMConstants.DEFAULT_NB_WORKERS;
+    private int nCleanupThreads = DEFAULT_NB_CLEANUP_THREADS;
+    private int maxImagesInFlight = DEFAULT_MAX_IMAGES_IN_FLIGHT;
+    private int registrationBatchSize = QPHRMProjectRegistrar.DEFAULT_BATCH_SIZE;
+    private boolean fastRegistration = true;
+    private int nOmeroSessions = HRMConstants.DEFAULT_NB_WORKERS;
+    private QPHRMJobListener listener;
+    private QPHRMScanCache scanCache;
+
+    /**
+     * @param root HRM-Share folder
+     * @param owner HRM username
+     * @param project QuPath project where to add the deconvolved images
+     */
+    public QPHRMRetrieveEngine(String root, String owner, Project<BufferedImage> project) {
+        this.root = root;
+        this.owner = owner;
+        this.project = project;
+    }
+
+    /**
+     * @param client OMERO client used to upload images deconvolved from OMERO raw images
+     * @return
+     */
+    public QPHRMRetrieveEngine setOmeroClient(OmeroRawClient client) {
+        this.client = client;
+        return this;
+    }
+
+    /**
+     * @param omeroGateway OMERO operations used instead of the client, e.g. a {@link qupath.ext.biop.hrm.utils.QPHRMLocalOmeroGateway}
+     *                     to run the retrieval without OMERO server ; null to use the client
+     * @return
+     */
+    public QPHRMRetrieveEngine setOmeroGateway(QPHRMOmeroGateway omeroGateway) {
+        this.omeroGateway = omeroGateway;
+        return this;
+    }
+
+    /**
+     * @param deleteDeconvolved delete deconvolved images from HRM once retrieved
+     * @return
+     */
+    public QPHRMRetrieveEngine setDeleteDeconvolved(boolean deleteDeconvolved) {
+        this.deleteDeconvolved = deleteDeconvolved;
+        return this;
+    }
+
+    /**
+     * @param deleteRaw delete raw images from HRM once retrieved
+     * @return
+     */
+    public QPHRMRetrieveEngine setDeleteRaw(boolean deleteRaw) {
+        this.deleteRaw = deleteRaw;
+        return this;
+    }
+
+    /**
+     * @param nParseThreads number of threads parsing the result files
+     * @return
+     */
+    public QPHRMRetrieveEngine setNbParseThreads(int nParseThreads) {
+        this.nParseThreads = Math.max(1, nParseThreads);
+        return this;
+    }
+
+    /**
+     * @param nTransferThreads number of images copied or imported on OMERO in parallel
+     * @return
+     */
+    public QPHRMRetrieveEngine setNbTransferThreads(int nTransferThreads) {
+        this.nTransferThreads = Math.max(1, nTransferThreads);
+        return this;
+    }
+
+    /**
+     * @param nCleanupThreads number of threads deleting retrieved images from HRM
+     * @return
+     */
+    public QPHRMRetrieveEngine setNbCleanupThreads(int nCleanupThreads) {
+        this.nCleanupThreads = Math.max(1, nCleanupThreads);
+        return this;
+    }
+
+    /**
+     * @param maxImagesInFlight maximum number of images in the retrieval pipeline
+     * @return
+     */
+    public QPHRMRetrieveEngine setMaxImagesInFlight(int maxImagesInFlight) {
+        this.maxImagesInFlight = Math.max(1, maxImagesInFlight);
+        return this;
+    }
+
+    /**
+     * @param registrationBatchSize number of images added to the project before saving it
+     * @return
+     */
+    public QPHRMRetrieveEngine setRegistrationBatchSize(int registrationBatchSize) {
+        this.registrationBatchSize = Math.max(1, registrationBatchSize);
+        return this;
+    }
+
+    /**
+     * @param fastRegistration add images to the project without initializing their server first ; their name is
+     *                         the name of the deconvolved file and servers are initialized in background. True by default.
+     * @return
+     */
+    public QPHRMRetrieveEngine setFastRegistration(boolean fastRegistration) {
+        this.fastRegistration = fastRegistration;
+        return this;
+    }
+
+    /**
+     * @param nOmeroSessions number of OMERO sessions opened for the imports, joining the session of the client ;
+     *                       0 to import with the client session only
+     * @return
+     */
+    public QPHRMRetrieveEngine setNbOmeroSessions(int nOmeroSessions) {
+        this.nOmeroSessions = Math.max(0, nOmeroSessions);
+        return this;
+    }
+
+    public QPHRMRetrieveEngine setListener(QPHRMJobListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @param scanCache cache of the previous scans, updated with the retrieved images
+     * @return
+     */
+    public QPHRMRetrieveEngine setScanCache(QPHRMScanCache scanCache) {
+        this.scanCache = scanCache;
+        return this;
+    }
+
+    /**
+     * @return the scan cache of the engine ; by default, the cache saved in the project folder
+     */
+    public synchronized QPHRMScanCache getScanCache() {
+        if (this.scanCache == null)
+            this.scanCache = QPHRMScanCache.load(this.project);
+        return this.scanCache;
+    }
+
+    /**
+     * scan the deconvolved images and start retrieving them in background, while the scan goes on
+     *
+     * @return the job handle
+     */
+    public QPHRMJob start() {
+        return start(scanShare(this.root, this.owner, getScanCache()));
+    }
+
+    /**
+     * start retrieving the deconvolved images of the index in background.
+     * Images are retrieved as soon as they are found by the scan ; the total number of images of the job
+     * is updated until the end of the scan.
+     *
+     * @param shareIndex index of the user HRM-Share folder
+     * @return the job handle
+     */
+    public QPHRMJob start(QPHRMShareIndex shareIndex) {
+        QPHRMJob job = new QPHRMJob(shareIndex.getNbImages(), this.listener);
+        return job.start("hrm-retrieve-job", () -> run(job, shareIndex));
+    }
+
+    /**
+     * retrieve the images once no other retrieval of the project is running
+     *
+     * @param job
+     * @param shareIndex
+     * @return the job summary
+     */
+    private QPHRMJobSummary run(QPHRMJob job, QPHRMShareIndex shareIndex) {
+        // manual and automatic retrievals of the same project share its journal and its scan cache
+        ReentrantLock projectLock = getProjectLock(this.project);
+        if (!projectLock.tryLock()) {
+            job.message("Waiting for another retrieval in the project to finish");
+            try {
+                projectLock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                logger.warn("Retrieving from HRM has been interrupted");
+                shareIndex.close();
+                job.getSummary().setCancelled(true);
+                return job.getSummary();
+            }
+        }
+        try {
+            return retrieve(job, shareIndex);
+        } finally {
+            projectLock.unlock();
+        }
+    }
+
+    /**
+     * @param project
+     * @return the lock of the retrievals of the project
+     */
+    private static ReentrantLock getProjectLock(Project<BufferedImage> project) {
+        File projectFolder = Projects.getBaseDirectory(project);
+        Object key = projectFolder == null ? project : projectFolder.getAbsoluteFile();
+        return PROJECT_LOCKS.computeIfAbsent(key, k -> new ReentrantLock());
+    }
+
+    /**
+     * retrieve images through a pipeline of stages, each one with its own threads :
+     * parsing of the result files, transfer (copy or OMERO import), registration in the QuPath project and cleanup on HRM.
+     * Registration is done on a single thread, so that the project is modified by one thread only ;
+     * the project is saved by batch of images.
+     * The number of images in the pipeline is bounded ; images enter the pipeline as they are found by the scan.
+     * With fast registration, the servers of the registered images are initialized in background ; the job ends
+     * once they are all initialized.
+     *
+     * @param job
+     * @param shareIndex
+     * @return the job summary
+     */
+    private QPHRMJobSummary retrieve(QPHRMJob job, QPHRMShareIndex shareIndex) {
+        QPHRMJobSummary summary = job.getSummary();
+        ExecutorService parseExecutor = Executors.newFixedThreadPool(this.nParseThreads, ThreadTools.createThreadFactory("hrm-retrieve-parse-", true));
+        ExecutorService transferExecutor = Executors.newFixedThreadPool(this.nTransferThreads, ThreadTools.createThreadFactory("hrm-retrieve-transfer-", true));
+        ExecutorService registerExecutor = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("hrm-retrieve-register-", true));
+        ExecutorService cleanupExecutor = Executors.newFixedThreadPool(this.nCleanupThreads, ThreadTools.createThreadFactory("hrm-retrieve-cleanup-", true));
+        Semaphore inFlight = new Semaphore(this.maxImagesInFlight);
+        QPHRMRawImageIndex rawImageIndex = new QPHRMRawImageIndex(this.project);
+        QPHRMOmeroSessionPool sessionPool = this.omeroGateway != null || this.client == null || this.nOmeroSessions == 0 ? null :
+                QPHRMOmeroSessionPool.of(this.client, this.nOmeroSessions);
+        QPHRMOmeroGateway gateway = this.omeroGateway != null ? this.omeroGateway :
+                this.client == null ? null : new QPHRMOmeroClientGateway(this.client).setSessionPool(sessionPool);
+        QPHRMOmeroTagIndex tagIndex = gateway == null ? null : new QPHRMOmeroTagIndex(gateway);
+        QPHRMOmeroDatasetIndex datasetIndex = gateway == null ? null : new QPHRMOmeroDatasetIndex(gateway);
+        QPHRMOmeroImportBatcher importBatcher = gateway == null ? null : new QPHRMOmeroImportBatcher(gateway)
+                .setBatchSize(this.nTransferThreads);
+        ExecutorService warmUpExecutor = !this.fastRegistration ? null :
+                Executors.newFixedThreadPool(this.nParseThreads, ThreadTools.createThreadFactory("hrm-retrieve-warm-up-", true));
+        ConcurrentLinkedQueue<CompletableFuture<Void>> warmUps = new ConcurrentLinkedQueue<>();
+        QPHRMProjectRegistrar registrar = new QPHRMProjectRegistrar(this.project)
+                .setBatchSize(this.registrationBatchSize)
+                .setFastRegistration(this.fastRegistration)
+                .setOnCommit(job::projectChanged);
+        if (warmUpExecutor != null) {
+            // initialize the servers of the registered images in background
+            registrar.setOnAdded(entries -> entries.forEach(entry ->
+                    warmUps.add(CompletableFuture.runAsync(() -> warmUp(job, entry), warmUpExecutor))));
+        }
+
+        // register images left unsaved by a previous retrieval
+        synchronized (this.project) {
+            registrar.recover();
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        try {
+            File imgFile;
+            while (!job.isCancelled() && (imgFile = shareIndex.nextImage()) != null) {
+                job.setNbTotal(shareIndex.getNbImages());
+
+                // wait for a slot in the pipeline
+                inFlight.acquire();
+                if (job.isCancelled()) {
+                    inFlight.release();
+                    break;
+                }
+
+                RetrievedImage image = new RetrievedImage(imgFile, shareIndex.getImageType(imgFile));
+                futures.add(CompletableFuture.supplyAsync(() -> parse(job, shareIndex, rawImageIndex, gateway, tagIndex, datasetIndex, importBatcher, registrar, image), parseExecutor)
+                        .thenApplyAsync(i -> transfer(job, i), transferExecutor)
+                        .thenApplyAsync(i -> register(job, i), registerExecutor)
+                        .thenApplyAsync(i -> cleanup(job, shareIndex, i), cleanupExecutor)
+                        .handle((i, e) -> {
+                            if (e != null) {
+                                logger.error("Error during the retrieval of image " + image.imgFile, e);
+                                image.status = QPHRMJobSummary.Status.FAILED;
+                            }
+                            if (image.status == QPHRMJobSummary.Status.DONE)
+                                getScanCache().markRetrieved(image.imgFile.getName());
+                            summary.addResult(image.imgFile.getName(), image.status);
+                            job.imagesProcessed(1);
+                            inFlight.release();
+                            return null;
+                        }));
+            }
+
+            if (shareIndex.getNbImages() == 0)
+                logger.warn("There is not image to retrieve from " + this.root + File.separator + this.owner);
+            job.setNbTotal(shareIndex.getNbImages());
+
+            // wait for the images in the pipeline
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get();
+        } catch (InterruptedException e) {
+            logger.warn("Retrieving from HRM has been interrupted");
+            summary.setCancelled(true);
+        } catch (ExecutionException e) {
+            logger.error("Error during the retrieval of images from HRM", e.getCause());
+        } finally {
+            shareIndex.close();
+
+            // save the last images in the project
+            synchronized (this.project) {
+                registrar.commit();
+            }
+            try {
+                getScanCache().save();
+            } catch (IOException e) {
+                logger.warn("Cannot save the scan cache of the HRM-Share folder", e);
+            }
+            for (ExecutorService executor : List.of(parseExecutor, transferExecutor, registerExecutor, cleanupExecutor)) {
+                if (job.isCancelled())
+                    executor.shutdownNow();
+                else
+                    executor.shutdown();
+            }
+            if (warmUpExecutor != null)
+                finishWarmUp(job, warmUpExecutor, warmUps);
+            if (sessionPool != null)
+                sessionPool.close();
+        }
+        return summary;
+    }
+
+    /**
+     * warm-up stage of fast registration : build the server of a registered image once, and save its metadata
+     * and thumbnail in the project, so that the file headers are read and checked before the image is opened.
+     * Images that cannot be read are reported to the job.
+     *
+     * @param job
+     * @param entry
+     */
+    private void warmUp(QPHRMJob job, ProjectImageEntry<BufferedImage> entry) {
+        if (job.isCancelled())
+            return;
+        String name = entry.getImageName();
+        try (ImageServer<BufferedImage> server = entry.getServerBuilder().build()) {
+            BufferedImage thumbnail = ProjectCommands.getThumbnailRGB(server);
+            synchronized (this.project) {
+                // the image may have been removed or opened and saved in the meantime
+                if (!this.project.getImageList().contains(entry))
+                    return;
+                if (!entry.hasImageData())
+                    entry.saveImageData(new ImageData<>(server));
+                entry.setThumbnail(thumbnail);
+            }
+        } catch (Exception e) {
+            logger.warn("Cannot initialize the server of image " + name, e);
+            job.message("Cannot read image " + name + " added to the project : " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * wait for the warm-up of the registered images, unless the job is cancelled, and write the project
+     *
+     * @param job
+     * @param warmUpExecutor
+     * @param warmUps
+     */
+    private void finishWarmUp(QPHRMJob job, ExecutorService warmUpExecutor, ConcurrentLinkedQueue<CompletableFuture<Void>> warmUps) {
+        if (job.isCancelled()) {
+            warmUpExecutor.shutdownNow();
+            return;
+        }
+        warmUpExecutor.shutdown();
+        if (warmUps.isEmpty())
+            return;
+        try {
+            CompletableFuture.allOf(warmUps.toArray(CompletableFuture[]::new)).get();
+        } catch (InterruptedException e) {
+            logger.warn("Initializing the retrieved images has been interrupted");
+            job.getSummary().setCancelled(true);
+            warmUpExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Error during the initialization of the retrieved images", e.getCause());
+        }
+        synchronized (this.project) {
+            try {
+                this.project.syncChanges();
+            } catch (IOException e) {
+                logger.error("Cannot sync the project", e);
+                return;
+            }
+        }
+        job.projectChanged();
+    }
+
+    /**
+     * parsing stage : read the result files of the deconvolved image and create its retriever
+     *
+     * @param job
+     * @param shareIndex
+     * @param rawImageIndex
+     * @param gateway OMERO operations of the job ; null if there is no OMERO connection
+     * @param tagIndex
+     * @param datasetIndex
+     * @param importBatcher
+     * @param registrar
+     * @param image
+     * @return the image
+     */
+    private RetrievedImage parse(QPHRMJob job, QPHRMShareIndex shareIndex, QPHRMRawImageIndex rawImageIndex,
+                                 QPHRMOmeroGateway gateway, QPHRMOmeroTagIndex tagIndex, QPHRMOmeroDatasetIndex datasetIndex,
+                                 QPHRMOmeroImportBatcher importBatcher, QPHRMProjectRegistrar registrar,
+                                 RetrievedImage image) {
+        if (isStopped(job, image))
+            return image;
+        File imgFile = image.imgFile;
+
+        // retrieved and deleted by a previous retrieval of the project
+        if (!imgFile.isFile()) {
+            logger.info("Image " + imgFile + " has already been retrieved");
+            image.status = QPHRMJobSummary.Status.SKIPPED;
+            return image;
+        }
+
+        Matcher matcher = HRMConstants.DECONVOLVED_NAME_PATTERN.matcher(imgFile.getName());
+        if(matcher.find()){
+            image.rawName = matcher.group("name");
+            image.hrmCode = matcher.group("hrmcode");
+        }
+
+        // get the results file
+        File paramFile = getResultsFile(shareIndex, imgFile, ".parameters.txt");
+
+        // parse the parameter file and extract key-value pairs
+        Map<String, Map<String, String>> metadata = new TreeMap<>();
+        if(paramFile != null)
+            metadata = QPHRMParametersParser.parse(paramFile, image.hrmCode);
+
+        switch(image.imageServerType.toLowerCase()){
+            case "omero":
+                if(gateway == null) {
+                    reportError(job, "No OMERO connection to retrieve image " + imgFile);
+                    image.status = QPHRMJobSummary.Status.FAILED;
+                    return image;
+                }
+                // get the log file
+                File logFile = getResultsFile(shareIndex, imgFile, ".log.txt");
+                image.retriever = new QPHRMOmeroRetriever()
+                        .setImage(imgFile, image.rawName, image.hrmCode)
+                        .setGateway(gateway)
+                        .setTagIndex(tagIndex)
+                        .setDatasetIndex(datasetIndex)
+                        .setImportBatcher(importBatcher)
+                        .setMetadata(metadata)
+                        .setLogFile(logFile);
+                break;
+            case "local":
+                image.retriever = new QPHRMLocalRetriever()
+                        .setImage(imgFile, image.rawName, image.hrmCode)
+                        .setResultFiles(shareIndex.getResultFiles(imgFile))
+                        .setRawImageIndex(rawImageIndex)
+                        .setMetadata(metadata);
+                break;
+            default:
+                String smallMessage = "Type " + image.imageServerType + " is not supported for image " + imgFile;
+                logger.warn(smallMessage);
+                job.message(smallMessage);
+                image.status = QPHRMJobSummary.Status.SKIPPED;
+                return image;
+        }
+        image.retriever.setProject(this.project);
+        image.retriever.setRegistrar(registrar);
+        return image;
+    }
+
+    /**
+     * transfer stage : send back deconvolved image to the location of the raw image
+     *
+     * @param job
+     * @param image
+     * @return the image
+     */
+    private RetrievedImage transfer(QPHRMJob job, RetrievedImage image) {
+        if (isStopped(job, image))
+            return image;
+
+        // the project is read to find the raw image ; it must not be modified at the same time
+        boolean targetBuilt;
+        synchronized (this.project) {
+            targetBuilt = image.retriever.buildTarget();
+        }
+        if(!targetBuilt) {
+            job.message("Cannot build target folder for : " + image.imgFile);
+            image.status = QPHRMJobSummary.Status.FAILED;
+        } else if(!image.retriever.sendBack()) {
+            job.message("Cannot send back results for : " + image.imgFile);
+            image.status = QPHRMJobSummary.Status.FAILED;
+        }
+        return image;
+    }
+
+    /**
+     * registration stage : add the deconvolved image to the QuPath project.
+     * This stage runs on a single thread.
+     *
+     * @param job
+     * @param image
+     * @return the image
+     */
+    private RetrievedImage register(QPHRMJob job, RetrievedImage image) {
+        if (isStopped(job, image))
+            return image;
+
+        boolean added;
+        synchronized (this.project) {
+            added = image.retriever.toQuPath();
+        }
+        if(!added) {
+            job.message("Cannot add image to QuPath for" + image.imgFile);
+            image.status = QPHRMJobSummary.Status.FAILED;
+        }
+        return image;
+    }
+
+    /**
+     * cleanup stage : delete the retrieved images from HRM
+     *
+     * @param job
+     * @param shareIndex
+     * @param image
+     * @return the image
+     */
+    private RetrievedImage cleanup(QPHRMJob job, QPHRMShareIndex shareIndex, RetrievedImage image) {
+        if (image.status != null)
+            return image;
+        File imgFile = image.imgFile;
+
+        // the files must not be deleted while they are uploaded
+        if (!image.retriever.waitForTransfers()) {
+            job.message("Cannot send back all results for : " + imgFile);
+            image.status = QPHRMJobSummary.Status.FAILED;
+            return image;
+        }
+
+        if (this.deleteDeconvolved) {
+            if (deleteDeconvolvedFiles(shareIndex, imgFile))
+                logger.info("Image [" + imgFile + "] and associated files are deleted from HRM-Share folder");
+            else
+                reportError(job, "Cannot delete image [" + imgFile + "] neither associated files");
+        }
+
+        if(this.deleteRaw){
+            if (deleteRawImages(shareIndex, imgFile, image.rawName))
+                logger.info("Image [" + imgFile + "] are deleted from HRM-Share folder");
+            else
+                reportError(job, "Cannot delete image [" + imgFile +"]");
+        }
+        image.status = QPHRMJobSummary.Status.DONE;
+        return image;
+    }
+
+    /**
+     * @param job
+     * @param image
+     * @return true if the image has already failed or if the job has been cancelled
+     */
+    private static boolean isStopped(QPHRMJob job, RetrievedImage image) {
+        if (image.status == null && job.isCancelled())
+            image.status = QPHRMJobSummary.Status.SKIPPED;
+        return image.status != null;
+    }
+
+    private static void reportError(QPHRMJob job, String message) {
+        logger.error(message);
+        job.message(message);
+    }
+
+    /**
+     * deletes deconvolved image and associated files (.txt files and other) from HRM.
+     * Deletion is based on image name, that contains a unique HRM ID
+     *
+     * @param shareIndex
+     * @param imageFile
+     * @return
+     */
+    private static boolean deleteDeconvolvedFiles(QPHRMShareIndex shareIndex, File imageFile){
+        return deleteFilesAndParent(shareIndex, imageFile.getParentFile(), shareIndex.getResultFiles(imageFile));
+    }
+
+    /**
+     * deletes raw image from HRM.
+     * Deletion is based on the raw image name
+     *
+     * @param shareIndex
+     * @param imageFile
+     * @param rawImgName
+     * @return
+     */
+    private static boolean deleteRawImages(QPHRMShareIndex shareIndex, File imageFile, String rawImgName){
+        // deconvolved parent file
+        File parentFile = imageFile.getParentFile();
+
+        // change the path to point to the right folder
+        String rawParentPath = parentFile.getAbsolutePath().replace(HRMConstants.DECONVOLVED_FOLDER, HRMConstants.RAW_FOLDER);
+        File rawParentFile = new File(rawParentPath);
+
+        if(rawParentFile.exists()){
+            List<File> rawFiles = shareIndex.listFiles(rawParentFile)
+                    .stream()
+                    .filter(file -> file.getName().contains(rawImgName))
+                    .collect(Collectors.toList());
+            return deleteFilesAndParent(shareIndex, rawParentFile, rawFiles);
+        }else{
+            logger.warn("The path ["+ rawParentFile.getAbsolutePath()+"] does not exists ; raw images are not deleted");
+            return false;
+        }
+    }
+
+    /**
+     * delete files and also delete the parent folders (i.e. dataset and project folder)
+     * only if there are empty. Folder contents are read from the index ; folders are only deleted
+     * if they are still empty on disk, so that files written by HRM after the scan are kept.
+     *
+     * @param shareIndex
+     * @param parentFile
+     * @param filesToDelete
+     * @return
+     */
+    private static boolean deleteFilesAndParent(QPHRMShareIndex shareIndex, File parentFile, List<File> filesToDelete){
+        // delete files
+        boolean filesDeleted = true;
+        for(File file : filesToDelete) {
+            logger.info("Delete file [" + file.getAbsoluteFile() + "]");
+            filesDeleted = file.delete() && filesDeleted;
+        }
+        shareIndex.remove(filesToDelete);
+
+        // delete parents
+        try {
+            if (shareIndex.listFiles(parentFile).isEmpty()) {
+                // delete dataset folder
+                File parentParentFile = parentFile.getParentFile();
+                if (deleteEmptyDirectory(shareIndex, parentFile, "dataset")) {
+                    // delete project folder
+                    if (shareIndex.listFiles(parentParentFile).isEmpty())
+                        deleteEmptyDirectory(shareIndex, parentParentFile, "project");
+                }
+            }
+        }catch (IOException e){
+            logger.warn("Cannot delete the parent folders of " + filesToDelete, e);
+            filesDeleted = false;
+        }
+
+        return filesDeleted;
+    }
+
+    /**
+     * delete the folder only if it is empty on disk (non-recursive)
+     *
+     * @param shareIndex
+     * @param directory
+     * @param type type of folder, for logs
+     * @return true if the folder has been deleted, false if it contains files not seen by the index
+     * @throws IOException
+     */
+    private static boolean deleteEmptyDirectory(QPHRMShareIndex shareIndex, File directory, String type) throws IOException {
+        try {
+            Files.delete(directory.toPath());
+        } catch (DirectoryNotEmptyException e) {
+            logger.info("The " + type + " directory [" + directory.getAbsoluteFile() + "] is not empty anymore ; it is kept");
+            return false;
+        }
+        logger.info("Delete " + type + " directory [" + directory.getAbsoluteFile() + "]");
+        shareIndex.remove(List.of(directory));
+        return true;
+    }
+
+    /**
+     * returns the first result file of the image, with the specified suffix.
+     *
+     * @param shareIndex
+     * @param imageFile
+     * @param suffix
+     * @return
+     */
+    private static File getResultsFile(QPHRMShareIndex shareIndex, File imageFile, String suffix){
+        File resultFile = shareIndex.getResultFile(imageFile, suffix);
+        if(resultFile == null)
+            logger.warn("There is not file with extension "+suffix+"in the folder "+imageFile.getParentFile());
+        return resultFile;
+    }
+
+    /**
+     * Add the deconvolved image to the QuPath project, initializing its server to get the image name.
+     *
+     * @param project
+     * @param imageServerBuilder
+     * @param imageURI URI of the deconvolved image
+     * @throws IOException
+     * @see #toQuPath(Project, ImageServerBuilder, String, String)
+     */
+    protected static List<ProjectImageEntry<BufferedImage>> toQuPath(Project<BufferedImage> project, ImageServerBuilder<BufferedImage> imageServerBuilder, String imageURI)
+            throws IOException {
+        return toQuPath(project, imageServerBuilder, imageURI, null);
+    }
+
+    /**
+     * Add the deconvolved image to the QuPath project.
+     * Add to this image all metatdata parsed from the .parameters.txt file
+     *
+     * This code has been copied from qupath.lib.gui.commands.ProjectImportImagesCommand.promptToImportImages()
+     * The project is not saved ; see {@link QPHRMProjectRegistrar}
+     * <p>
+     * If the image name is given (fast registration), the server is not initialized before adding the image :
+     * the builder of HRM result files is chosen from their extension and the servers are initialized in background,
+     * once the images are added ; see {@link QPHRMProjectRegistrar#setOnAdded}.
+     *
+     * @param project
+     * @param imageServerBuilder
+     * @param imageURI URI of the deconvolved image
+     * @param imageName name of the image in the project ; null to read it from the image server
+     * @throws IOException
+     */
+    protected static List<ProjectImageEntry<BufferedImage>> toQuPath(Project<BufferedImage> project, ImageServerBuilder<BufferedImage> imageServerBuilder,
+                                                                     String imageURI, String imageName) throws IOException {
+        List<ProjectImageEntry<BufferedImage>> projectImages = new ArrayList<>();
+
+        URI uri;
+        try {
+            uri = GeneralTools.toURI(imageURI);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid image URI " + imageURI, e);
+        }
+
+        // only QuPath projects can contain images to copy
+        if (imageURI.toLowerCase().endsWith("." + ProjectIO.DEFAULT_PROJECT_EXTENSION)) {
+            try {
+                var tempProject = ProjectIO.loadProject(uri, BufferedImage.class);
+                projectImages = new ArrayList<>(tempProject.getImageList());
+            } catch (Exception e) {
+                logger.warn("Unable to add images from {} ({})", imageURI, e.getLocalizedMessage());
+            }
+        }
+
+        // If we have projects, try adding images from these first
+        if (!projectImages.isEmpty()) {
+            for (var temp : projectImages) {
+                try {
+                    project.addDuplicate(temp, true);
+                } catch (Exception e) {
+                    logger.error("Unable to copy images to the current project");
+                }
+            }
+        }
+
+        // define the builder
+        boolean fastRegistration = imageName != null && !imageName.isEmpty();
+        List<ImageServerBuilder.ServerBuilder<BufferedImage>> builders = null;
+        if (fastRegistration && imageServerBuilder == null)
+            builders = getPinnedBuilders(uri);
+        if (builders == null) {
+            ImageServerBuilder.UriImageSupport<BufferedImage> support;
+            if (imageServerBuilder == null)
+                support = ImageServers.getImageSupport(uri, "");
+            else
+                support = ImageServers.getImageSupport(imageServerBuilder, uri, "");
+            builders = support == null ? List.of() : support.getBuilders();
+        }
+
+        // Add everything in order first
+        List<ProjectImageEntry<BufferedImage>> entries = new ArrayList<>();
+        for (var builder : builders) {
+            entries.add(project.addImage(builder));
+        }
+
+        if (fastRegistration) {
+            // name the images from the deconvolved file
+            for (int i = 0; i < entries.size(); i++)
+                entries.get(i).setImageName(entries.size() == 1 ? imageName : imageName + " - " + (i + 1));
+            return entries;
+        }
+
+        // Initialize (the slow bit)
+        for (var entry : entries) {
+            // initialize entry
+            try (ImageServer<BufferedImage> server = entry.getServerBuilder().build()){
+                // Set the image name
+                String name = ServerTools.getDisplayableImageName(server);
+                entry.setImageName(name);
+                checkPyramid(server, name);
+            } catch (Exception e) {
+                logger.warn("Exception adding " + entry, e);
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * @param uri
+     * @return the builder of the image, chosen from the extension of an HRM result file without reading it ;
+     * null if the extension is not known
+     */
+    private static List<ImageServerBuilder.ServerBuilder<BufferedImage>> getPinnedBuilders(URI uri) {
+        if (!"file".equalsIgnoreCase(uri.getScheme()))
+            return null;
+        String path = uri.getPath().toLowerCase();
+        for (String extension : BIOFORMATS_EXTENSIONS) {
+            if (path.endsWith(extension))
+                return List.of(ImageServerBuilder.DefaultImageServerBuilder.createInstance(
+                        BioFormatsServerBuilder.class, uri, "--series", "0"));
+        }
+        return null;
+    }
+
+    /**
+     * Pyramidalize the server if we need to
+     *
+     * @param server
+     * @param name
+     * @throws Exception
+     */
+    private static void checkPyramid(ImageServer<BufferedImage> server, String name) throws Exception {
+        int minPyramidDimension = PathPrefs.minPyramidDimensionProperty().get();
+        if (server.nResolutions() == 1 && Math.max(server.getWidth(), server.getHeight()) > minPyramidDimension) {
+            var serverTemp = ImageServers.pyramidalize(server);
+            if (serverTemp.nResolutions() > 1)
+                logger.debug("Auto-generating image pyramid for " + name);
+            if (serverTemp != server)
+                serverTemp.close();
+        }
+    }
+
+    /**
+     * @param root
+     * @param owner
+     * @return the Deconvolved folder of the user HRM-Share folder ; null if the folders do not exist
+     */
+    public static File getDeconvolvedFolder(String root, String owner){
+        // check existence of the root folder
+        if(!new File(root).exists()){logger.error("List files to upload : Path "+root+" does not exists"); return null;}
+
+        // check user folder
+        File ownerFolder = new File(root + File.separator + owner);
+        if(!ownerFolder.exists()) {logger.error("List files to upload : Path "+ownerFolder+" does not exists"); return null;}
+
+        // check deconvolved folder
+        File deconvolvedFolder = new File(ownerFolder + File.separator + HRMConstants.DECONVOLVED_FOLDER);
+        if(!deconvolvedFolder.isDirectory()) {logger.error("List files to upload : Path "+deconvolvedFolder+" does not exists"); return null;}
+
+        return deconvolvedFolder;
+    }
+
+    /**
+     * start scanning the available deconvolved images in the QuPath folder of the user HRM-Share folder.
+     * Images within the category folders (local, omero, s3) are indexed with their result files in background.
+     *
+     * @param root
+     * @param owner
+     * @param scanCache cache of the previous scans, to skip unchanged folders and retrieved images ; may be null
+     * @return the index of the deconvolved folder ; empty if the folders do not exist
+     */
+    public static QPHRMShareIndex scanShare(String root, String owner, QPHRMScanCache scanCache){
+        File deconvolvedFolder = getDeconvolvedFolder(root, owner);
+        if(deconvolvedFolder == null)
+            return QPHRMShareIndex.empty();
+        return QPHRMShareIndex.scan(deconvolvedFolder, scanCache);
+    }
+
+
+    /**
+     * Deconvolved image going through the retrieval pipeline
+     */
+    private static class RetrievedImage {
+        private final File imgFile;
+        private final String imageServerType;
+        private String rawName = "";
+        private String hrmCode = "";
+        private QPHRMRetriever retriever;
+
+        /** final status ; null while the image is being retrieved */
+        private volatile QPHRMJobSummary.Status status;
+
+        private RetrievedImage(File imgFile, String imageServerType) {
+            this.imgFile = imgFile;
+            this.imageServerType = imageServerType;
+        }
+    }
+}
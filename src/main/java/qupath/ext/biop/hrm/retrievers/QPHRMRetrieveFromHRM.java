@@ -1,5 +1,6 @@
 package qupath.ext.biop.hrm.retrievers;
 
+import javafx.application.Platform;
 import javafx.concurrent.Task;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
@@ -17,48 +18,28 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
-import org.apache.commons.io.FileUtils;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.hrm.utils.QPHRMJob;
+import qupath.ext.biop.hrm.utils.QPHRMJobListener;
+import qupath.ext.biop.hrm.utils.QPHRMJobSummary;
+import qupath.ext.biop.hrm.utils.QPHRMShareIndex;
 import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
 import qupath.ext.biop.servers.omero.raw.client.OmeroRawClients;
 import qupath.ext.biop.servers.omero.raw.utils.OmeroRawTools;
 import qupath.fx.dialogs.Dialogs;
 import qupath.fx.utils.GridPaneUtils;
-import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
-import qupath.lib.gui.prefs.PathPrefs;
-import qupath.lib.images.servers.ImageServer;
-import qupath.lib.images.servers.ImageServerBuilder;
-import qupath.lib.images.servers.ImageServers;
-import qupath.lib.images.servers.ServerTools;
-import qupath.lib.projects.Project;
-import qupath.lib.projects.ProjectIO;
-import qupath.lib.projects.ProjectImageEntry;
-
-import java.awt.image.BufferedImage;
+
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 /**
- * List deconvolved images from HRM and select the retriever corresponding to where the raw image is located (locally
- * or on OMERO).
+ * List deconvolved images from HRM and retrieve them with {@link QPHRMRetrieveEngine}, displaying the progress
+ * of the job in a dialog.
  */
 public class QPHRMRetrieveFromHRM {
     private final static Logger logger = LoggerFactory.getLogger(QPHRMRetrieveFromHRM.class);
@@ -67,7 +48,6 @@ public class QPHRMRetrieveFromHRM {
     private static Label lblMessage = new Label();
     private static Button centralButton = new Button();
     private static String message = "";
-    private static  Pattern deconvolvedNamePattern = Pattern.compile("(?<name>.*)_(?<hrmcode>.{13})_hrm.*");
 
 
     /**
@@ -81,18 +61,19 @@ public class QPHRMRetrieveFromHRM {
      * @return
      */
     public static void retrieve(QuPathGUI qupath, String root, String owner, boolean deleteDeconvolved, boolean deleteRaw, String omeroHost){
-        // list all files retrieve in QuPath
-        Map<File, String> imageTypeMap = listFileToUpload(root, owner);
-        if(imageTypeMap.isEmpty())
+        // check the folder to retrieve in QuPath
+        File deconvolvedFolder = QPHRMRetrieveEngine.getDeconvolvedFolder(root, owner);
+        if(deconvolvedFolder == null) {
+            Dialogs.showErrorNotification("List files to upload", "There is not image to retrieve from " + root + File.separator + owner);
             return;
+        }
 
-        // check if there is an OMERO connection to get and ask for one in case
-        List<Map.Entry<File, String>> omeroList = imageTypeMap.entrySet()
-                .stream()
-                .filter(e -> e.getValue().equalsIgnoreCase("omero"))
-                .collect(Collectors.toList());
+        // check if there is an OMERO connection to get and ask for one in case ;
+        // the omero folder is checked before the scan, so that images are retrieved as soon as they are found
+        String[] omeroContent = new File(deconvolvedFolder, HRMConstants.OMERO_FOLDER).list();
+        boolean hasOmeroImages = omeroContent != null && omeroContent.length > 0;
         OmeroRawClient client = null;
-        if(!omeroList.isEmpty()) {
+        if(hasOmeroImages) {
             client = askForOmeroConnection(omeroHost);
             if (client == null) {
                 Dialogs.showErrorMessage("OMERO Connection issue", "Cannot connect to OMERO server. No image will be retrieved from HRM");
@@ -100,133 +81,72 @@ public class QPHRMRetrieveFromHRM {
             }
         }
 
-        Task<Void> task = startProcess(qupath, imageTypeMap, deleteDeconvolved, deleteRaw, imageTypeMap.size(), client);
+        QPHRMRetrieveEngine engine = new QPHRMRetrieveEngine(root, owner, qupath.getProject())
+                .setOmeroClient(client)
+                .setDeleteDeconvolved(deleteDeconvolved)
+                .setDeleteRaw(deleteRaw);
+        Task<Void> task = startProcess(qupath, engine, QPHRMShareIndex.scan(deconvolvedFolder, engine.getScanCache()));
         buildDialog(task);
     }
 
 
     /**
-     * Background task that retrieve images from HRM
+     * Background task following the retrieve job, to display its progress.
      *
      * @param qupath
-     * @param imageTypeMap
-     * @param deleteDeconvolved
-     * @param nbImagesToRetrieve
-     * @param client
+     * @param engine
+     * @param shareIndex
      * @return
      */
-    private static Task<Void> startProcess(QuPathGUI qupath, Map<File, String> imageTypeMap,
-                                           boolean deleteDeconvolved, boolean deleteRaw, int nbImagesToRetrieve,
-                                           OmeroRawClient client) {
+    private static Task<Void> startProcess(QuPathGUI qupath, QPHRMRetrieveEngine engine, QPHRMShareIndex shareIndex) {
         // Create a background Task
         Task<Void> task = new Task<Void>() {
-            int nRetrievedImages = 0;
-            @Override
-            protected Void call() {
+            QPHRMJob job;
+            QPHRMJobSummary summary;
 
-                List<File> paths = new ArrayList<>(imageTypeMap.keySet());
+            @Override
+            protected Void call() throws Exception {
                 message += "\n--- Minimal log window - Please look at the log file for more details ---";
                 updateTitle(message);
-
-                // select the type of connection and choose the correct retriever
-                for(int i = 0; i < paths.size(); i++){
-                    // Update our progress and message properties
-                    updateMessage(i + 1 + " / " + nbImagesToRetrieve);
-                    updateProgress(i, nbImagesToRetrieve);
-
-                    File imgFile = paths.get(i);
-                    String imageServerType = imageTypeMap.get(imgFile);
-
-                    // get the results file
-                    File paramFile = getResultsFile(imgFile, ".parameters.txt");
-
-                    // parse the parameter file and extract key-value pairs
-                    Map<String, Map<String, String>> metadata = new TreeMap<>();
-                    if(paramFile != null)
-                        metadata = parseSummaryFile(paramFile);
-
-                    String rawName = "";
-                    String hrmCode = "";
-                    Matcher matcher = deconvolvedNamePattern.matcher(imgFile.getName());
-                    if(matcher.find()){
-                        rawName = matcher.group("name");
-                        hrmCode = matcher.group("hrmcode");
+                updateMessage("Scanning HRM-Share folder...");
+
+                job = engine.setListener(new QPHRMJobListener() {
+                    @Override
+                    public void onProgress(int nProcessed, int nTotal, long nBytes) {
+                        // Update our progress and message properties
+                        updateMessage(Math.min(nProcessed + 1, nTotal) + " / " + nTotal);
+                        updateProgress(nProcessed, nTotal);
                     }
 
-                    QPHRMRetriever retriever;
-                    switch(imageServerType.toLowerCase()){
-                        case "omero":
-                            // get the log file
-                            File logFile = getResultsFile(imgFile, ".log.txt");
-                            retriever = new QPHRMOmeroRetriever()
-                                    .setImage(imgFile, rawName, hrmCode)
-                                    .setClient(client)
-                                    .setMetadata(metadata)
-                                    .setLogFile(logFile);
-
-                            break;
-                        case "local":
-                            retriever = new QPHRMLocalRetriever()
-                                    .setImage(imgFile, rawName, hrmCode)
-                                    .setMetadata(metadata);
-                            break;
-                        default:
-                            String smallMessage = "Type " + imageServerType + " is not supported for image " + imgFile;
-                            logger.warn(smallMessage);
-                            message += "\n" + smallMessage;
-                            updateTitle(message);
-                            continue;
+                    @Override
+                    public void onProjectChanged() {
+                        // show the new images in the project
+                        Platform.runLater(qupath::refreshProject);
                     }
 
-                    // send back deconvolved image to their location and to QuPath project
-                    if(retriever.buildTarget()) {
-                        if (retriever.sendBack()) {
-                            if (retriever.toQuPath(qupath)) {
-                                if (deleteDeconvolved) {
-                                    if (deleteDeconvolvedFiles(imgFile))
-                                        logger.info("Image [" + imgFile + "] and associated files are deleted from HRM-Share folder");
-                                    else {
-                                        String smallMessage = "Cannot delete image [" + imgFile + "] neither associated files";
-                                        message += "\n" + smallMessage;
-                                        updateTitle(message);
-                                        logger.error(smallMessage);
-                                    }
-                                }
-
-                                if(deleteRaw){
-                                    if (deleteRawImages(imgFile, rawName))
-                                        logger.info("Image [" + imgFile + "] are deleted from HRM-Share folder");
-                                    else {
-                                        String smallMessage = "Cannot delete image [" + imgFile +"]";
-                                        message += "\n" + smallMessage;
-                                        updateTitle(message);
-                                        logger.error(smallMessage);
-                                    }
-                                }
-
-                                nRetrievedImages += 1;
-                            }else{
-                                String smallMessage = "Cannot add image to QuPath for" +imgFile;
-                                message += "\n" + smallMessage;
-                                updateTitle(message);
-                            }
-                        }else{
-                            String smallMessage = "Cannot send back results for : " +imgFile;
-                            message += "\n" + smallMessage;
-                            updateTitle(message);
-                        }
-                    }else{
-                        String smallMessage = "Cannot build target folder for : " +imgFile;
+                    @Override
+                    public void onMessage(String smallMessage) {
                         message += "\n" + smallMessage;
                         updateTitle(message);
                     }
+                }).start(shareIndex);
+
+                try {
+                    summary = job.waitForCompletion();
+                } catch (InterruptedException e) {
+                    logger.warn("Retrieving from HRM has been interrupted");
+                    job.cancel();
                 }
                 return null;
             }
 
             @Override protected void succeeded() {
                 super.succeeded();
+                int nbImagesToRetrieve = summary == null ? shareIndex.getNbImages() : summary.getNbImages();
                 updateProgress(nbImagesToRetrieve, nbImagesToRetrieve);
+                if(nbImagesToRetrieve == 0)
+                    Dialogs.showWarningNotification("Retrieving from HRM", "There is not image to retrieve");
+                int nRetrievedImages = summary == null ? 0 : summary.getCount(QPHRMJobSummary.Status.DONE);
                 String finalMessage = "\n" + String.format("Retrieved %s : %d/%d",
                         (nRetrievedImages == 1 ? "image" : "images"),
                         nRetrievedImages,
@@ -237,6 +157,9 @@ public class QPHRMRetrieveFromHRM {
 
             @Override protected void cancelled() {
                 super.cancelled();
+                if (job != null)
+                    job.cancel();
+                shareIndex.close();
                 updateMessage("Cancelled!");
                 Dialogs.showWarningNotification("Retrieving from HRM","Task has been cancelled");
             }
@@ -265,218 +188,6 @@ public class QPHRMRetrieveFromHRM {
         return task;
     }
 
-    /**
-     * deletes deconvolved image and associated files (.txt files and other) from HRM.
-     * Deletion is based on image name, that contains a unique HRM ID
-     *
-     * @param imageFile
-     * @return
-     */
-    private static boolean deleteDeconvolvedFiles(File imageFile){
-        // get image name
-        String imageName = imageFile.getName();
-
-        // remove file extension
-        imageName = imageName.substring(0, imageName.lastIndexOf("."));
-
-        // parent file
-        File parentFile = imageFile.getParentFile();
-
-        return deleteFilesAndParent(parentFile, imageName);
-    }
-
-    /**
-     * deletes raw image from HRM.
-     * Deletion is based on the raw image name
-     *
-     * @param imageFile
-     * @param rawImgName
-     * @return
-     */
-    private static boolean deleteRawImages(File imageFile, String rawImgName){
-        // deconvolved parent file
-        File parentFile = imageFile.getParentFile();
-
-        // change the path to point to the right folder
-        String rawParentPath = parentFile.getAbsolutePath().replace(HRMConstants.DECONVOLVED_FOLDER, HRMConstants.RAW_FOLDER);
-        File rawParentFile = new File(rawParentPath);
-
-        if(rawParentFile.exists()){
-            return deleteFilesAndParent(rawParentFile, rawImgName);
-        }else{
-            logger.warn("The path ["+ rawParentFile.getAbsolutePath()+"] does not exists ; raw images are not deleted");
-            return false;
-        }
-    }
-
-    /**
-     * delete file based on the name to match and also delete the parent folders (i.e. dataset and project folder)
-     * only if there are empty
-     *
-     * @param parentFile
-     * @param nameToMatch
-     * @return
-     */
-    private static boolean deleteFilesAndParent(File parentFile, String nameToMatch){
-        // list all files in the parent folder
-        File[] fileList = parentFile.listFiles();
-
-        if (fileList == null)
-            return false;
-
-        // delete files that contain the image name
-        boolean filesDeleted = true;
-        for(File file : fileList) {
-            if (file.getName().contains(nameToMatch)) {
-                logger.info("Delete file [" + file.getAbsoluteFile() + "]");
-                filesDeleted = filesDeleted && file.delete();
-            }
-        }
-
-        fileList = parentFile.listFiles();
-
-        // delete parents
-        try {
-            if (fileList != null && fileList.length == 0) {
-                // delete dataset folder
-                logger.info("Delete dataset directory ["+parentFile.getAbsoluteFile()+"]");
-                File parentParentFile = parentFile.getParentFile();
-                FileUtils.deleteDirectory(parentFile);
-
-                // delete project folder
-                File[] parentList = parentParentFile.listFiles();
-                if (parentList != null && parentList.length == 0) {
-                    logger.info("Delete project directory ["+parentParentFile.getAbsoluteFile()+"]");
-                    FileUtils.deleteDirectory(parentParentFile);
-                }
-            }
-        }catch (IOException e){
-            filesDeleted = false;
-        }
-
-        return filesDeleted;
-    }
-
-    /**
-     * returns the first file that contains image name, with the specified suffix.
-     *
-     * @param imageFile
-     * @param suffix
-     * @return
-     */
-    private static File getResultsFile(File imageFile, String suffix){
-        // get image name without extension
-        String imageName = imageFile.getName().split("\\.")[0];
-
-        // list all files in the parent folder
-        File[] files = imageFile.getParentFile().listFiles();
-        if(files == null) {
-            logger.warn("There is not file in directory "+imageFile.getParentFile());
-            return null;
-        }
-
-        // extract only file with image name and suffix
-        List<File> parametersFile = Arrays.stream(files).filter(e -> e.getName().endsWith(suffix) && e.getName().contains(imageName)).collect(Collectors.toList());
-
-        if(!parametersFile.isEmpty())
-            return parametersFile.get(0);
-        else {
-            logger.warn("There is not file with extension "+suffix+"in the folder "+imageFile.getParentFile());
-            return null;
-        }
-    }
-
-    /**
-     * Add the deconvolved image to the current QuPath project.
-     * Add to this image all metatdata parsed from the .parameters.txt file
-     *
-     * This code has been copied from qupath.lib.gui.commands.ProjectImportImagesCommand.promptToImportImages()
-     *
-     * @param qupath
-     * @param imageServerBuilder
-     * @param imageURI URI of the deconvolved image
-     * @throws IOException
-     */
-    protected static List<ProjectImageEntry<BufferedImage>> toQuPath(QuPathGUI qupath, ImageServerBuilder<BufferedImage> imageServerBuilder, String imageURI)
-            throws IOException {
-        List<ProjectImageEntry<BufferedImage>> projectImages = new ArrayList<>();
-        Project<BufferedImage> project = qupath.getProject();
-
-        URI uri = null;
-        try {
-            uri = GeneralTools.toURI(imageURI);
-            var tempProject = ProjectIO.loadProject(uri, BufferedImage.class);
-            projectImages = new ArrayList<>(tempProject.getImageList());
-        } catch (Exception e) {
-            logger.warn("Unable to add images from {} ({})", imageURI, e.getLocalizedMessage());
-        }
-
-        // If we have projects, try adding images from these first
-        if (!projectImages.isEmpty()) {
-            for (var temp : projectImages) {
-                try {
-                    project.addDuplicate(temp, true);
-                } catch (Exception e) {
-                    logger.error("Unable to copy images to the current project");
-                }
-            }
-        }
-
-        // define the builder
-        ImageServerBuilder.UriImageSupport<BufferedImage> support;
-        if(imageServerBuilder == null)
-            support = ImageServers.getImageSupport(uri, "");
-        else
-            support = ImageServers.getImageSupport(imageServerBuilder, uri, "");
-
-        List<ProjectImageEntry<BufferedImage>> entries = new ArrayList<>();
-        if (support != null){
-            List<ImageServerBuilder.ServerBuilder<BufferedImage>> builders = support.getBuilders();
-
-            // Add everything in order first
-            for (var builder : builders) {
-                entries.add(project.addImage(builder));
-            }
-
-            // Initialize (the slow bit)
-            for (var entry : entries) {
-                // initialize entry
-                try (ImageServer<BufferedImage> server = entry.getServerBuilder().build()){
-                    // Set the image name
-                    String name = ServerTools.getDisplayableImageName(server);
-                    entry.setImageName(name);
-
-                    // Pyramidalize this if we need to
-                    ImageServer<BufferedImage> server2 = server;
-                    int minPyramidDimension = PathPrefs.minPyramidDimensionProperty().get();
-                    if (server.nResolutions() == 1 && Math.max(server.getWidth(), server.getHeight()) > minPyramidDimension) {
-                        var serverTemp = ImageServers.pyramidalize(server);
-                        if (serverTemp.nResolutions() > 1) {
-                            logger.debug("Auto-generating image pyramid for " + name);
-                            server2 = serverTemp;
-                        } else
-                            serverTemp.close();
-                    }
-
-                    if (server != server2)
-                        server2.close();
-
-                } catch (Exception e) {
-                    logger.warn("Exception adding " + entry, e);
-                }
-            }
-
-            // refresh the project
-            try {
-                project.syncChanges();
-            } catch (IOException e1) {
-                Dialogs.showErrorMessage("Sync project", e1);
-            }
-            qupath.refreshProject();
-        }
-
-        return entries;
-    }
 
     /**
      * Establish the OMERO connection. If the default host is empty, then it asks it to the user.
@@ -484,7 +195,7 @@ public class QPHRMRetrieveFromHRM {
      * @param host
      * @return
      */
-    private static OmeroRawClient askForOmeroConnection(String host){
+    static OmeroRawClient askForOmeroConnection(String host){
         if (host.equals("")){
             GridPane gp = new GridPane();
             gp.setVgap(5.0);
@@ -522,117 +233,6 @@ public class QPHRMRetrieveFromHRM {
     }
 
 
-    /**
-     * returns the list of available deconvolved images in the QuPath folder of the user HRM-Share folder.
-     *
-     * @param root
-     * @param owner
-     * @return
-     */
-    private static LinkedHashMap<File, String> listFileToUpload(String root, String owner){
-        // check existence of the root folder
-        if(!new File(root).exists()){Dialogs.showErrorNotification("List files to upload","Path "+root+" does not exists"); return new LinkedHashMap<>();}
-
-        // check user folder
-        File ownerFolder = new File(root + File.separator + owner);
-        if(!ownerFolder.exists()) {Dialogs.showErrorNotification("List files to upload","Path "+ownerFolder+" does not exists"); return new LinkedHashMap<>();}
-
-        // check deconvolved folder
-        File deconvolvedFolder = new File(ownerFolder + File.separator + HRMConstants.DECONVOLVED_FOLDER);
-        if(!deconvolvedFolder.isDirectory()) {Dialogs.showErrorNotification("List files to upload","Path "+deconvolvedFolder+" does not exists"); return new LinkedHashMap<>();}
-
-        // list category folders (local, omero, s3)
-        File[] dirs = deconvolvedFolder.listFiles();
-        LinkedHashMap<File, String> imageTypeMap = new LinkedHashMap<>();
-
-        // put all images within these folders in a map with their category
-        if(dirs != null)
-            for(File dir : dirs)
-                if(dir.isDirectory())
-                    recursiveFileListing(dir, dir.getName(), imageTypeMap);
-
-        // check if there are files to retrieve
-        if(imageTypeMap.isEmpty())
-            Dialogs.showErrorNotification("Empty directory","There is not image to retrieve from " +deconvolvedFolder.getAbsolutePath());
-
-        return imageTypeMap;
-    }
-
-
-    /**
-     * search deconvolved images in sub-folders
-     *
-     * @param directory
-     * @param typeName
-     * @param imageTypeMap
-     */
-    private static void recursiveFileListing(File directory, String typeName, Map<File, String> imageTypeMap) {
-        // Get all files from a directory.
-        File[] fList = directory.listFiles();
-        if(fList != null)
-            for (File file : fList) {
-                if (file.isFile() &&  file.getName().endsWith(".ids") ) {
-                    imageTypeMap.put(file, typeName);
-                } else if (file.isDirectory()) {
-                    recursiveFileListing(file, typeName, imageTypeMap);
-                }
-            }
-    }
-
-
-    /**
-     * parse the html-encoded .parameters.txt file and
-     * return a map of image and restoration parameters of the deconvolution
-     *
-     * @param file
-     * @return
-     */
-    private static Map<String, Map<String, String>> parseSummaryFile(File file)  {
-        Map<String, Map<String, String>> nameSpaceKeyValueMap = new TreeMap<>();
-
-        try{
-            // parse the html parameters file
-            Document htmlDocument = Jsoup.parse(file);
-
-            // get all the "tables" node
-            Elements tables = htmlDocument.getElementsByTag("table");
-            tables.forEach(table->{
-                // get all table rows (including headers)
-                Elements parameters = table.getElementsByTag("tr");
-
-                // get the header
-                String header = parameters.get(0).firstElementChild().text();
-
-                // make a sub list with only parameters (without headers)
-                List<Element> reducedParameters = parameters.subList(2,parameters.size()-1);
-                Map<String, String> keyValues = new TreeMap<>(); // to have the natural order of elements
-
-                reducedParameters.forEach(parameter->{
-                    Element element = parameter.firstElementChild();
-                    if(element != null) {
-                        // parse the key, value and channel
-                        String param = element.text();
-                        String channel = parameter.after(element).firstElementChild().text();
-                        String value = parameter.lastElementChild().text();
-
-                        // check if the parameter is channel-dependent
-                        if(channel.equals("All"))
-                            keyValues.put(param, value);
-                        else
-                            keyValues.put(param+ " ch"+channel, value);
-                    }
-                });
-                nameSpaceKeyValueMap.put(header, keyValues);
-            });
-
-        } catch(IOException | NullPointerException e){
-            Dialogs.showWarningNotification("Parameter file parsing", "Cannot parse the file "+file.toString()+". No key values will be uploaded");
-            return new TreeMap<>();
-        }
-        return nameSpaceKeyValueMap;
-    }
-
-
     /**
      * build the progress Dialog box
      * @param task
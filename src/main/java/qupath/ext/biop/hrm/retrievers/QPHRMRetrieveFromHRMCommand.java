@@ -123,15 +123,18 @@ public class QPHRMRetrieveFromHRMCommand implements Runnable {
         }
         defaultUsername.set(username);
 
-        // set the root folder according to the OS
-        String rootFolder;
+        // retrieve images
+        QPHRMRetrieveFromHRM.retrieve(qupath, getRootFolder(), username, deleteDeconvolvedOnHRM, deleteRawOnHRM, host);
+    }
+
+    /**
+     * @return the HRM-Share folder, according to the OS
+     */
+    static String getRootFolder(){
         if(System.getProperty("os.name").toLowerCase().startsWith("w"))
-            rootFolder = "\\\\sv-nas1.rcp.epfl.ch\\ptbiop-raw\\HRM-Share";//"C:\\Users\\dornier\\Downloads";
+            return "\\\\sv-nas1.rcp.epfl.ch\\ptbiop-raw\\HRM-Share";//"C:\\Users\\dornier\\Downloads";
         else
-            rootFolder = "smb://sv-nas1.rcp.epfl.ch/ptbiop-raw/HRM-Share";
-
-        // retrieve images
-        QPHRMRetrieveFromHRM.retrieve(qupath, rootFolder, username, deleteDeconvolvedOnHRM, deleteRawOnHRM, host);
+            return "smb://sv-nas1.rcp.epfl.ch/ptbiop-raw/HRM-Share";
     }
 
 }
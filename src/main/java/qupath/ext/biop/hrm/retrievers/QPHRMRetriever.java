@@ -1,7 +1,8 @@
 package qupath.ext.biop.hrm.retrievers;
 
-import qupath.lib.gui.QuPathGUI;
+import qupath.lib.projects.Project;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.Map;
 
@@ -18,13 +19,22 @@ public interface QPHRMRetriever {
     boolean sendBack();
 
     /**
-     * sends back the deconvolved image to QuPath.
+     * sends back the deconvolved image to the QuPath project.
      * This method has to be called after sendBack() one
      *
-     * @param qupath
      * @return
      */
-    boolean toQuPath(QuPathGUI qupath);
+    boolean toQuPath();
+
+    /**
+     * wait for the transfers still running in background once sendBack() has returned, e.g. attachments upload.
+     * This method has to be called before deleting the deconvolved image from HRM
+     *
+     * @return true if the background transfers succeeded
+     */
+    default boolean waitForTransfers() {
+        return true;
+    }
 
     /**
      * set the deconvolved image to retrieve
@@ -48,4 +58,18 @@ public interface QPHRMRetriever {
      * @return
      */
     QPHRMRetriever setMetadata(Map<String, Map<String, String>> metadata);
+
+    /**
+     * set the QuPath project where to add the deconvolved image
+     * @param project
+     * @return
+     */
+    QPHRMRetriever setProject(Project<BufferedImage> project);
+
+    /**
+     * set the registrar adding the deconvolved image to the project ; by default, the project is saved for each image
+     * @param registrar
+     * @return
+     */
+    QPHRMRetriever setRegistrar(QPHRMProjectRegistrar registrar);
 }
@@ -1,24 +1,51 @@
 package qupath.ext.biop.hrm.senders;
 
-import org.apache.commons.io.FileUtils;
+import loci.formats.FormatException;
+import loci.formats.ImageReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import qupath.ext.biop.hrm.HRMConstants;
-import qupath.fx.dialogs.Dialogs;
+import qupath.ext.biop.hrm.utils.QPHRMFileTransfer;
+import qupath.ext.biop.hrm.utils.QPHRMSyncManifest;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.ProjectImageEntry;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
 
 /**
  * Send locally stored images to HRM from the current QuPath project
  */
 public class QPHRMLocalSender implements QPHRMSender {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMLocalSender.class);
+
+    /** number of files of the same image copied in parallel */
+    private static final int NB_PARALLEL_FILES = 4;
+
     /** path to the HRM-user folder where to save the image */
     private String destinationFolder = "";
 
     /** image to send to HRM */
     private ImageServer<BufferedImage> imageServer;
+
+    /** project entry of the image to send to HRM */
+    private ProjectImageEntry<BufferedImage> imageEntry;
+
+    /** manifest of the HRM user folder, for incremental sync */
+    private QPHRMSyncManifest syncManifest;
+
+    /** listener of the number of copied bytes */
+    private LongConsumer progressListener = bytes -> {};
     private boolean isSent = false;
     private boolean isFailed = false;
     private boolean isSkipped = false;
@@ -53,18 +80,36 @@ public class QPHRMLocalSender implements QPHRMSender {
 
         // check if the destination folder exists
         if(destinationFolderPath.exists()) {
-            URI uri = this.imageServer.getURIs().iterator().next();
-
+            URI uri = null;
             try {
-                // check if the image already exists on HRM
+                uri = getSourceURI();
                 File sourceImage = new File(uri);
-                if(overwrite || !(new File(this.destinationFolder + File.separator + sourceImage.getName()).exists())) {
-                    // copy the image into HRM folder
-                    FileUtils.copyFileToDirectory(sourceImage, destinationFolderPath);
+
+                // list the files to copy, i.e. the image and its companion files, and keep only new ones
+                Map<File, File> filesToCopy = new LinkedHashMap<>();
+                for (File sourceFile : getUsedFiles(sourceImage)) {
+                    File destinationFile = getDestinationFile(sourceImage.getParentFile(), sourceFile, destinationFolderPath);
+                    boolean toCopy;
+                    if(this.syncManifest != null)
+                        toCopy = this.syncManifest.needsTransfer(sourceFile, destinationFile);
+                    else
+                        toCopy = overwrite || !destinationFile.exists();
+                    if(toCopy)
+                        filesToCopy.put(sourceFile, destinationFile);
+                }
+
+                if(!filesToCopy.isEmpty()) {
+                    // copy the image files into HRM folder
+                    List<QPHRMFileTransfer.TransferResult> results = QPHRMFileTransfer.copyFiles(filesToCopy, NB_PARALLEL_FILES, this.progressListener);
+                    if(this.syncManifest != null) {
+                        Iterator<File> sourceFiles = filesToCopy.keySet().iterator();
+                        for (QPHRMFileTransfer.TransferResult result : results)
+                            this.syncManifest.recordTransfer(sourceFiles.next(), result);
+                    }
                     this.isSent = true;
                 } else this.isSkipped = true;
             } catch (IOException e) {
-                Dialogs.showErrorNotification("Copy File to HRM","Cannot copy "+uri+" to "+this.destinationFolder);
+                logger.error("Cannot copy "+uri+" to "+this.destinationFolder, e);
                 this.isFailed = true;
             }
         } else{
@@ -73,6 +118,44 @@ public class QPHRMLocalSender implements QPHRMSender {
         return this;
     }
 
+    /**
+     * List all the files of the image, as read by Bio-Formats (e.g. OME-TIFF companions, .vsi folders, .ics/.ids pairs).
+     * The reader is only opened for multi-file formats.
+     *
+     * @param sourceImage
+     * @return the image files ; the image itself if the files cannot be listed
+     */
+    private static List<File> getUsedFiles(File sourceImage) {
+        String path = sourceImage.getAbsolutePath();
+        try (ImageReader reader = new ImageReader()) {
+            if (reader.isSingleFile(path))
+                return List.of(sourceImage);
+
+            reader.setGroupFiles(true);
+            reader.setId(path);
+            List<File> usedFiles = Arrays.stream(reader.getUsedFiles()).map(File::new).collect(Collectors.toList());
+            if (!usedFiles.contains(sourceImage))
+                usedFiles.add(0, sourceImage);
+            return usedFiles;
+        } catch (FormatException | IOException e) {
+            logger.warn("Cannot list the companion files of " + sourceImage + " ; only the image file is sent", e);
+            return List.of(sourceImage);
+        }
+    }
+
+    /**
+     * @param sourceFolder
+     * @param sourceFile
+     * @param destinationFolder
+     * @return the destination of the file, keeping the directory structure relative to the source folder
+     */
+    private static File getDestinationFile(File sourceFolder, File sourceFile, File destinationFolder) {
+        Path relativePath = sourceFolder.toPath().toAbsolutePath().relativize(sourceFile.toPath().toAbsolutePath());
+        if (relativePath.startsWith(".."))
+            return new File(destinationFolder, sourceFile.getName());
+        return new File(destinationFolder, relativePath.toString());
+    }
+
     @Override
     public QPHRMLocalSender buildDestinationFolder(String rootPath, String username) {
         File rootPathFile = new File(rootPath);
@@ -80,19 +163,18 @@ public class QPHRMLocalSender implements QPHRMSender {
         if(!rootPathFile.isDirectory())
             return this;
 
-        // check username folder
+        // check username folder ; an empty username would point to the HRM share itself
+        if(username == null || username.isEmpty()) {logger.error("Building destination folder : no HRM username"); return this;}
         File userPathFile = new File(rootPath + File.separator + username);
-        if(!userPathFile.isDirectory()) {Dialogs.showErrorNotification("Building destination folder","Path "+userPathFile+" does not exists"); return this;}
+        if(!userPathFile.isDirectory()) {logger.error("Building destination folder : path "+userPathFile+" does not exists"); return this;}
 
-        // check Raw folder
+        // check Raw folder ; it may have been created in the meantime by another worker
         File rawPathFile = new File(userPathFile + File.separator + HRMConstants.RAW_FOLDER);
-        if(!rawPathFile.isDirectory())
-            if(!rawPathFile.mkdir()){Dialogs.showErrorNotification("Building destination folder","Path "+rawPathFile+" does not exists"); return this;}
+        if(!rawPathFile.mkdir() && !rawPathFile.isDirectory()) {logger.error("Building destination folder : cannot create "+rawPathFile); return this;}
 
         // check local folder
         File localPathFile = new File(rawPathFile + File.separator + HRMConstants.LOCAL_FOLDER);
-        if(!localPathFile.isDirectory())
-            if(!localPathFile.mkdir()){Dialogs.showErrorNotification("Building destination folder","Path "+localPathFile+" does not exists"); return this;}
+        if(!localPathFile.mkdir() && !localPathFile.isDirectory()) {logger.error("Building destination folder : cannot create "+localPathFile); return this;}
 
         this.destinationFolder = localPathFile.toString();
 
@@ -105,4 +187,31 @@ public class QPHRMLocalSender implements QPHRMSender {
         return this;
     }
 
+    @Override
+    public QPHRMLocalSender setImageEntry(ProjectImageEntry<BufferedImage> imageEntry) {
+        this.imageEntry = imageEntry;
+        return this;
+    }
+
+    @Override
+    public QPHRMLocalSender setProgressListener(LongConsumer progressListener) {
+        this.progressListener = progressListener == null ? bytes -> {} : progressListener;
+        return this;
+    }
+
+    @Override
+    public QPHRMLocalSender setSyncManifest(QPHRMSyncManifest manifest) {
+        this.syncManifest = manifest;
+        return this;
+    }
+
+    /**
+     * @return the URI of the image file, read from the project entry without opening the image
+     * @throws IOException
+     */
+    private URI getSourceURI() throws IOException {
+        if(this.imageEntry != null)
+            return this.imageEntry.getURIs().iterator().next();
+        return this.imageServer.getURIs().iterator().next();
+    }
 }
@@ -1,36 +1,63 @@
 package qupath.ext.biop.hrm.senders;
 
-import fr.igred.omero.exception.AccessException;
-import fr.igred.omero.exception.OMEROServerError;
-import fr.igred.omero.exception.ServiceException;
-import fr.igred.omero.repository.DatasetWrapper;
 import fr.igred.omero.repository.ImageWrapper;
-import fr.igred.omero.repository.ProjectWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroClientGateway;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroGateway;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroParentCache;
+import qupath.ext.biop.hrm.utils.QPHRMSyncManifest;
 import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
 import qupath.ext.biop.servers.omero.raw.OmeroRawImageServer;
+import qupath.ext.biop.servers.omero.raw.client.OmeroRawClients;
 import qupath.ext.biop.servers.omero.raw.utils.OmeroRawTools;
 import qupath.ext.biop.servers.omero.raw.utils.Utils;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.ProjectImageEntry;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class QPHRMOmeroSender implements QPHRMSender {
     private final static Logger logger = LoggerFactory.getLogger(QPHRMOmeroSender.class);
 
+    /** patterns of the image id in OMERO image URIs */
+    private static final Pattern imageIdPattern = Pattern.compile("(?:image-|img_detail/|images=)(?<id>\\d+)");
+
     /** path to the HRM-user folder where to save the image */
     private String destinationFolder = "";
 
-    /** image to send to HRM */
+    /** project entry of the image to send to HRM */
+    private ProjectImageEntry<BufferedImage> imageEntry;
+
+    /** image to send to HRM ; only opened if the image cannot be resolved from its URI */
     private OmeroRawImageServer imageServer;
 
+    /** true if the image server has been opened by this sender */
+    private boolean ownsImageServer = false;
+
+    /** image to send to HRM */
+    private ImageWrapper imageWrapper;
+
     /** OMERO client */
     private OmeroRawClient client;
+
+    /** manifest of the HRM user folder, for incremental sync */
+    private QPHRMSyncManifest syncManifest;
+
+    /** OMERO operations, shared by the senders of a job */
+    private QPHRMOmeroGateway gateway;
+
+    /** listener of the number of downloaded bytes */
+    private LongConsumer progressListener = bytes -> {};
     private boolean isSent = false;
     private boolean isFailed = false;
     private boolean isSkipped = false;
@@ -57,24 +84,39 @@ public class QPHRMOmeroSender implements QPHRMSender {
 
     @Override
     public QPHRMOmeroSender copy(boolean overwrite) {
-        File destinationFolderFile = new File(this.destinationFolder);
-
-        // check if the destination folder exists
-        if(destinationFolderFile.exists()) {
-            String imageName = this.imageServer.getImageWrapper().getName();
-            if(overwrite || !(new File(this.destinationFolder + File.separator + imageName).exists())) {
-                // copy image in HRM folder
-                try {
-                    this.imageServer.getImageWrapper().download(this.client.getSimpleClient(), destinationFolderFile.toString());
-                    this.isSent = true;
-                }catch(AccessException | OMEROServerError | ServiceException e){
-                    Utils.errorLog(logger, "Copying OMERO file", "Cannot download image '"+this.imageServer.getId()+"' from OMERO",e,false);
-                    this.isFailed = true;
-                }
-            }else this.isSkipped = true;
-        } else{
-            Utils.errorLog(logger, "Copying OMERO file","Destination folder "+this.destinationFolder+" does not exists", false);
-            this.isFailed = true;
+        try {
+            File destinationFolderFile = new File(this.destinationFolder);
+
+            // check if the destination folder exists
+            if (destinationFolderFile.exists() && getImageWrapper() != null) {
+                String imageName = this.imageWrapper.getName();
+                File destinationImage = new File(this.destinationFolder + File.separator + imageName);
+                boolean toDownload;
+                if (this.syncManifest != null)
+                    toDownload = this.syncManifest.needsDownload(this.imageWrapper.getId(), destinationFolderFile);
+                else
+                    toDownload = overwrite || !destinationImage.exists();
+
+                if (toDownload) {
+                    try {
+                        // download original files directly in HRM folder
+                        List<File> downloadedFiles = getGateway().download(this.imageWrapper, destinationFolderFile, this.progressListener);
+
+                        if (this.syncManifest != null)
+                            this.syncManifest.recordDownload(this.imageWrapper.getId(), downloadedFiles);
+                        this.isSent = true;
+                    } catch (IOException e) {
+                        Utils.errorLog(logger, "Copying OMERO file", "Cannot download image '" + this.imageWrapper.getId() + "' from OMERO to " + this.destinationFolder, e, false);
+                        this.isFailed = true;
+                    }
+                } else this.isSkipped = true;
+            } else {
+                Utils.errorLog(logger, "Copying OMERO file", "Destination folder " + this.destinationFolder + " does not exists", false);
+                this.isFailed = true;
+            }
+        } finally {
+            // the transfer is finished ; release the reader if it has been opened here
+            closeImageServer();
         }
         return this;
     }
@@ -86,54 +128,48 @@ public class QPHRMOmeroSender implements QPHRMSender {
         if(!rootPathFile.isDirectory())
             return this;
 
-        // check if the user folder already exists and stop if it does not.
+        // check if the user folder already exists and stop if it does not ; an empty username would point to the HRM share itself
+        if(username == null || username.isEmpty()) {Utils.errorLog(logger, "Building destination folder","No HRM username", false); return this;}
         File userPathFile = new File(rootPath + File.separator + username);
-        if(!userPathFile.isDirectory()) {Utils.errorLog(logger, "Building destination folder","Path "+userPathFile+" does not exists", true); return this;}
+        if(!userPathFile.isDirectory()) {Utils.errorLog(logger, "Building destination folder","Path "+userPathFile+" does not exists", false); return this;}
 
-        // get or create "Raw" folder
+        // get or create "Raw" folder ; other workers may create the same folders in the meantime
         File rawPathFile = new File(userPathFile + File.separator + HRMConstants.RAW_FOLDER);
-        if(!rawPathFile.isDirectory())
-            if(!rawPathFile.mkdir()){Utils.errorLog(logger, "Building destination folder","Path "+rawPathFile+" does not exists", true); return this;}
+        if(!rawPathFile.mkdir() && !rawPathFile.isDirectory()){Utils.errorLog(logger, "Building destination folder","Cannot create "+rawPathFile, false); return this;}
 
         // get or create "omero" folder
         File localPathFile = new File(rawPathFile + File.separator + HRMConstants.OMERO_FOLDER);
-        if(!localPathFile.isDirectory())
-            if(!localPathFile.mkdir()){Utils.errorLog(logger, "Building destination folder","Path "+localPathFile+" does not exists", true); return this;}
+        if(!localPathFile.mkdir() && !localPathFile.isDirectory()){Utils.errorLog(logger, "Building destination folder","Cannot create "+localPathFile, false); return this;}
 
-        // get image parent dataset
-        String projectName = "None";
-        String datasetName = "None";
-        ImageWrapper imageWrapper = this.imageServer.getImageWrapper();
+        // get image parent dataset and project
+        String projectName = QPHRMOmeroParentCache.NONE.getFolderName();
+        String datasetName = QPHRMOmeroParentCache.NONE.getFolderName();
+        ImageWrapper imageWrapper = getImageWrapper();
+        if(imageWrapper == null)
+            return this;
         try {
-            List<DatasetWrapper> datasets = (List<DatasetWrapper>)OmeroRawTools.getParentContainer(client, imageWrapper, false);
+            QPHRMOmeroParentCache.Parent dataset = getGateway().getImageParent(imageWrapper.getId());
+            datasetName = dataset.getFolderName();
 
             // get dataset parent project
-            if(!datasets.isEmpty()) {
-                DatasetWrapper datasetWrapper = datasets.iterator().next();
-                datasetName = datasetWrapper.getId() + "_" + datasetWrapper.getName();
+            if(dataset != QPHRMOmeroParentCache.NONE) {
                 try{
-                    List<ProjectWrapper> projects = (List<ProjectWrapper>)OmeroRawTools.getParentContainer(client, datasetWrapper, false);
-                    if (!projects.isEmpty()) {
-                        ProjectWrapper project = projects.iterator().next();
-                        projectName = project.getId() + "_" + project.getName();
-                    }
-                } catch (AccessException | ServiceException | ExecutionException | OMEROServerError e) {
-                    Utils.errorLog(logger, "Building destination folder","Cannot get the parent project of dataset "+datasetWrapper.getName(),e, false);
+                    projectName = getGateway().getDatasetParent(dataset.getId()).getFolderName();
+                } catch (IOException e) {
+                    Utils.errorLog(logger, "Building destination folder","Cannot get the parent project of dataset "+dataset.getName(),e, false);
                 }
             }
-        } catch (AccessException | ServiceException | ExecutionException | OMEROServerError e) {
+        } catch (IOException e) {
             Utils.errorLog(logger, "Building destination folder","Cannot get the parent dataset of image "+imageWrapper.getName(),e, false);
         }
 
         // get or create "project" folder
         File projectPathFile = new File(localPathFile + File.separator + projectName);
-        if(!projectPathFile.isDirectory())
-            if(!projectPathFile.mkdir()){Utils.errorLog(logger, "Building destination folder","Path "+projectPathFile+" does not exists", true); return this;}
+        if(!projectPathFile.mkdir() && !projectPathFile.isDirectory()){Utils.errorLog(logger, "Building destination folder","Cannot create "+projectPathFile, false); return this;}
 
         // get or create "dataset" folder
         File datasetPathFile = new File(projectPathFile + File.separator + datasetName);
-        if(!datasetPathFile.isDirectory())
-            if(!datasetPathFile.mkdir()){Utils.errorLog(logger, "Building destination folder","Path "+datasetPathFile+" does not exists", true); return this;}
+        if(!datasetPathFile.mkdir() && !datasetPathFile.isDirectory()){Utils.errorLog(logger, "Building destination folder","Cannot create "+datasetPathFile, false); return this;}
 
         this.destinationFolder = datasetPathFile.toString();
 
@@ -143,6 +179,14 @@ public class QPHRMOmeroSender implements QPHRMSender {
     @Override
     public QPHRMOmeroSender setImageServer(ImageServer<BufferedImage> imageServer) {
         this.imageServer = (OmeroRawImageServer) imageServer;
+        this.imageWrapper = this.imageServer.getImageWrapper();
+        this.client = this.imageServer.getClient();
+        return this;
+    }
+
+    @Override
+    public QPHRMOmeroSender setImageEntry(ProjectImageEntry<BufferedImage> imageEntry) {
+        this.imageEntry = imageEntry;
         return this;
     }
 
@@ -150,4 +194,119 @@ public class QPHRMOmeroSender implements QPHRMSender {
         this.client = client;
         return this;
     }
+
+    @Override
+    public QPHRMOmeroSender setProgressListener(LongConsumer progressListener) {
+        this.progressListener = progressListener == null ? bytes -> {} : progressListener;
+        return this;
+    }
+
+    /**
+     * @param gateway OMERO operations, shared by the senders of a job ; if null, they run on the image client.
+     *                If set before the image is resolved, the image is read from the gateway.
+     * @return
+     */
+    public QPHRMOmeroSender setGateway(QPHRMOmeroGateway gateway) {
+        this.gateway = gateway;
+        return this;
+    }
+
+    @Override
+    public QPHRMOmeroSender setSyncManifest(QPHRMSyncManifest manifest) {
+        this.syncManifest = manifest;
+        return this;
+    }
+
+    /**
+     * @return the OMERO client of the image, resolved from the image URI if not set.
+     */
+    public OmeroRawClient getClient() {
+        if(this.client == null)
+            resolveImage();
+        return this.client;
+    }
+
+    /**
+     * @return the OMERO operations of the sender, on the image client if not set.
+     */
+    private QPHRMOmeroGateway getGateway() {
+        if(this.gateway == null && getClient() != null)
+            this.gateway = new QPHRMOmeroClientGateway(this.client);
+        return this.gateway;
+    }
+
+    /**
+     * @return the image to send, resolved from the image URI if not set.
+     */
+    private ImageWrapper getImageWrapper() {
+        if(this.imageWrapper == null)
+            resolveImage();
+        return this.imageWrapper;
+    }
+
+    /**
+     * Resolve the OMERO client and the image from the image URI, without opening any reader.
+     * The image server is only built if there is no existing client for the OMERO server.
+     */
+    private void resolveImage() {
+        if(this.imageEntry == null)
+            return;
+        try {
+            URI uri = this.imageEntry.getURIs().iterator().next();
+            long imageId = parseImageId(uri);
+
+            // the image is read from the gateway, if any
+            if(this.gateway != null) {
+                if(imageId > 0) {
+                    this.imageWrapper = this.gateway.getImage(imageId);
+                    return;
+                }
+            } else {
+                if(this.client == null)
+                    this.client = OmeroRawClients.getClientFromServerURI(OmeroRawTools.getServerURI(uri));
+                if(this.client != null && imageId > 0) {
+                    this.imageWrapper = new QPHRMOmeroClientGateway(this.client).getImage(imageId);
+                    return;
+                }
+            }
+        } catch (IOException | URISyntaxException e) {
+            logger.warn("Cannot resolve the image " + this.imageEntry.getImageName() + " from its URI ; open the image server", e);
+        }
+
+        // fallback : open the image server
+        try {
+            this.imageServer = (OmeroRawImageServer) this.imageEntry.getServerBuilder().build();
+            this.ownsImageServer = true;
+            this.client = this.imageServer.getClient();
+            this.imageWrapper = this.imageServer.getImageWrapper();
+        } catch (Exception e) {
+            Utils.errorLog(logger, "Reading image server", "Cannot read image " + this.imageEntry.getImageName(), e, false);
+        }
+    }
+
+    /**
+     * close the image server if it has been opened by this sender
+     */
+    private void closeImageServer() {
+        if(this.ownsImageServer && this.imageServer != null) {
+            try {
+                this.imageServer.close();
+            } catch (Exception e) {
+                logger.error("Cannot close the OMERO reader");
+            }
+            this.imageServer = null;
+            this.ownsImageServer = false;
+        }
+    }
+
+    /**
+     * @param uri
+     * @return the id of the OMERO image contained in the URI, or -1 if the URI doesn't contain any id
+     */
+    public static long parseImageId(URI uri) {
+        Matcher matcher = imageIdPattern.matcher(uri.toString());
+        if(matcher.find())
+            return Long.parseLong(matcher.group("id"));
+        return -1;
+    }
 }
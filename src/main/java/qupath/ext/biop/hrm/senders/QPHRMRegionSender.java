@@ -0,0 +1,226 @@
+package qupath.ext.biop.hrm.senders;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.hrm.utils.QPHRMFileTransfer;
+import qupath.ext.biop.hrm.utils.QPHRMSyncManifest;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.writers.ome.OMEPyramidWriter;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Send only the annotated regions of images to HRM.
+ * Each region is written, with all z-slices, channels and timepoints, as a standalone OME-TIFF in the HRM Raw/Local folder.
+ * The region origin is kept in the file name, so that the deconvolved image can be placed back on the raw image.
+ */
+public class QPHRMRegionSender implements QPHRMSender {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMRegionSender.class);
+
+    /** pattern of the region origin and size in the file name */
+    public static final Pattern regionPattern = Pattern.compile("_region-x(?<x>\\d+)-y(?<y>\\d+)-w(?<w>\\d+)-h(?<h>\\d+)");
+
+    /** size of the tiles read from the image server and written in the OME-TIFF */
+    private static final int TILE_SIZE = 512;
+
+    /** path to the HRM-user folder where to save the regions */
+    private String destinationFolder = "";
+
+    /** project entry of the image to crop */
+    private ProjectImageEntry<BufferedImage> imageEntry;
+
+    /** server to read the regions from ; if null, a server is opened from the project entry */
+    private ImageServer<BufferedImage> imageServer;
+
+    /** regions to send ; if null, all annotations of the image are sent */
+    private List<ROI> regions;
+
+    /** listener of the number of written bytes */
+    private LongConsumer progressListener = bytes -> {};
+    private boolean isSent = false;
+    private boolean isFailed = false;
+    private boolean isSkipped = false;
+
+    public QPHRMRegionSender(){}
+
+    @Override
+    public String getDestinationFolder() {
+        return this.destinationFolder;
+    }
+
+    @Override
+    public boolean isSent() {
+        return this.isSent;
+    }
+
+    @Override
+    public boolean isSkipped() {
+        return this.isSkipped;
+    }
+
+    @Override
+    public boolean isFailed() {
+        return this.isFailed;
+    }
+
+    @Override
+    public QPHRMRegionSender copy(boolean overwrite) {
+        File destinationFolderPath = new File(this.destinationFolder);
+        if(!destinationFolderPath.exists() || (this.imageEntry == null && this.imageServer == null)) {
+            this.isFailed = true;
+            return this;
+        }
+
+        // a server set by the caller is reused and left open ; otherwise, it is opened from the project entry
+        ImageServer<BufferedImage> server = this.imageServer;
+        boolean closeServer = false;
+        File partialFile = null;
+        String imageName = getImageName();
+        try {
+            // regions to send
+            List<ROI> rois = this.regions;
+            if(rois == null) {
+                if(this.imageEntry == null)
+                    throw new IllegalStateException("No region to send and no project entry to read the annotations from");
+                rois = this.imageEntry.readHierarchy().getAnnotationObjects().stream().map(PathObject::getROI).collect(Collectors.toList());
+            }
+            if(rois.isEmpty()) {
+                logger.warn("No annotation on image " + imageName + " ; nothing is sent to HRM");
+                this.isSkipped = true;
+                return this;
+            }
+
+            if(server == null) {
+                server = this.imageEntry.getServerBuilder().build();
+                closeServer = true;
+            }
+
+            String regionPrefix = GeneralTools.stripInvalidFilenameChars(GeneralTools.stripExtension(imageName));
+            int nSentRegions = 0;
+            for(ROI roi : rois) {
+                ImageRegion region = ImageRegion.createInstance(roi);
+                File regionFile = new File(destinationFolderPath, regionPrefix + getRegionSuffix(region) + ".ome.tif");
+                if(!overwrite && regionFile.exists())
+                    continue;
+
+                // stream the region tile by tile in a hidden partial file of HRM folder, then make it visible
+                partialFile = QPHRMFileTransfer.getPartialFile(regionFile);
+                new OMEPyramidWriter.Builder(server)
+                        .region(region)
+                        .allZSlices()
+                        .allTimePoints()
+                        .tileSize(TILE_SIZE)
+                        .downsamples(1.0)
+                        .compression(OMEPyramidWriter.CompressionType.UNCOMPRESSED)
+                        .parallelize()
+                        .build()
+                        .writePyramid(partialFile.getAbsolutePath());
+                QPHRMFileTransfer.moveAtomically(partialFile.toPath(), regionFile.toPath());
+                partialFile = null;
+                this.progressListener.accept(regionFile.length());
+                nSentRegions++;
+            }
+
+            if(nSentRegions > 0)
+                this.isSent = true;
+            else
+                this.isSkipped = true;
+        } catch (Exception e) {
+            logger.error("Cannot send the regions of image " + imageName + " to " + this.destinationFolder, e);
+            this.isFailed = true;
+        } finally {
+            if(partialFile != null)
+                FileUtils.deleteQuietly(partialFile);
+            if(closeServer) {
+                try {
+                    server.close();
+                } catch (Exception e) {
+                    logger.error("Cannot close the reader of image " + imageName);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the name of the project entry, or the name of the image server if there is no entry
+     */
+    private String getImageName() {
+        if(this.imageEntry != null)
+            return this.imageEntry.getImageName();
+        return this.imageServer.getMetadata().getName();
+    }
+
+    @Override
+    public QPHRMRegionSender buildDestinationFolder(String rootPath, String username) {
+        // regions are stored with local images
+        this.destinationFolder = new QPHRMLocalSender().buildDestinationFolder(rootPath, username).getDestinationFolder();
+        return this;
+    }
+
+    @Override
+    public QPHRMRegionSender setImageServer(ImageServer<BufferedImage> imageServer) {
+        this.imageServer = imageServer;
+        return this;
+    }
+
+    @Override
+    public QPHRMRegionSender setImageEntry(ProjectImageEntry<BufferedImage> imageEntry) {
+        this.imageEntry = imageEntry;
+        return this;
+    }
+
+    /**
+     * @param regions regions to send ; if null, all the annotations saved with the image are sent
+     * @return
+     */
+    public QPHRMRegionSender setRegions(List<ROI> regions) {
+        this.regions = regions == null ? null : new ArrayList<>(regions);
+        return this;
+    }
+
+    @Override
+    public QPHRMRegionSender setSyncManifest(QPHRMSyncManifest manifest) {
+        // regions are written from the image server ; there is no source file to compare with
+        return this;
+    }
+
+    @Override
+    public QPHRMRegionSender setProgressListener(LongConsumer progressListener) {
+        this.progressListener = progressListener == null ? bytes -> {} : progressListener;
+        return this;
+    }
+
+    /**
+     * @param region
+     * @return the suffix of the file name encoding the region origin and size
+     */
+    public static String getRegionSuffix(ImageRegion region) {
+        return String.format("_region-x%d-y%d-w%d-h%d", region.getX(), region.getY(), region.getWidth(), region.getHeight());
+    }
+
+    /**
+     * @param name
+     * @return the region encoded in the file name, or null if the name doesn't contain any region
+     */
+    public static ImageRegion parseRegion(String name) {
+        Matcher matcher = regionPattern.matcher(name);
+        if(!matcher.find())
+            return null;
+        return ImageRegion.createInstance(Integer.parseInt(matcher.group("x")), Integer.parseInt(matcher.group("y")),
+                Integer.parseInt(matcher.group("w")), Integer.parseInt(matcher.group("h")), 0, 0);
+    }
+}
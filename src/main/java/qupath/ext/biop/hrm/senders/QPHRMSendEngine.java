@@ -0,0 +1,537 @@
+package qupath.ext.biop.hrm.senders;
+
+import omero.ServerError;
+import omero.gateway.exception.DSOutOfServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.hrm.utils.QPHRMJob;
+import qupath.ext.biop.hrm.utils.QPHRMJobListener;
+import qupath.ext.biop.hrm.utils.QPHRMJobSummary;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroClientGateway;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroDownloader;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroGateway;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroParentCache;
+import qupath.ext.biop.hrm.utils.QPHRMOmeroSessionPool;
+import qupath.ext.biop.hrm.utils.QPHRMSyncManifest;
+import qupath.ext.biop.servers.omero.raw.OmeroRawImageServerBuilder;
+import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
+import qupath.ext.biop.servers.omero.raw.client.OmeroRawClients;
+import qupath.ext.biop.servers.omero.raw.utils.OmeroRawTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Send images to HRM, without any user interface.
+ * <p>
+ * The engine can be used from scripts for unattended batch sends, e.g.
+ * <pre>
+ *     def job = new QPHRMSendEngine(rootFolder, "username")
+ *             .setOverwrite(false)
+ *             .start(getProject().getImageList())
+ *     println job.waitForCompletion()
+ * </pre>
+ * Images are copied in parallel by a pool of workers ; series of the same file are transferred once.
+ */
+public class QPHRMSendEngine {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMSendEngine.class);
+
+    private final String rootFolder;
+    private final String username;
+    private boolean overwrite = false;
+    private boolean sync = false;
+    private Map<ProjectImageEntry<BufferedImage>, List<ROI>> regions = null;
+    private int nWorkers = HRMConstants.DEFAULT_NB_WORKERS;
+    private int nOmeroSessions = HRMConstants.DEFAULT_NB_WORKERS;
+    private QPHRMOmeroGateway omeroGateway = null;
+    private QPHRMJobListener listener;
+
+    /**
+     * @param rootFolder HRM-Share folder
+     * @param username HRM username, used for local images
+     */
+    public QPHRMSendEngine(String rootFolder, String username) {
+        this.rootFolder = rootFolder;
+        this.username = username;
+    }
+
+    /**
+     * @param overwrite overwrite images already on HRM
+     * @return
+     */
+    public QPHRMSendEngine setOverwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+        return this;
+    }
+
+    /**
+     * @param sync only send new or modified images, based on the manifest of the HRM user folder
+     * @return
+     */
+    public QPHRMSendEngine setSync(boolean sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    /**
+     * @param regionsOnly only send the annotated regions of images (all the annotations saved with each image)
+     * @return
+     */
+    public QPHRMSendEngine setRegionsOnly(boolean regionsOnly) {
+        this.regions = regionsOnly ? new HashMap<>() : null;
+        return this;
+    }
+
+    /**
+     * only send the given regions of images ; images without regions are sent with all their annotations
+     *
+     * @param regions regions to send by image
+     * @return
+     */
+    public QPHRMSendEngine setRegions(Map<ProjectImageEntry<BufferedImage>, List<ROI>> regions) {
+        this.regions = regions == null ? null : new HashMap<>(regions);
+        return this;
+    }
+
+    /**
+     * @param nWorkers number of images transferred in parallel
+     * @return
+     */
+    public QPHRMSendEngine setNbWorkers(int nWorkers) {
+        this.nWorkers = Math.max(1, nWorkers);
+        return this;
+    }
+
+    /**
+     * @param nOmeroSessions number of OMERO sessions opened for the downloads, per OMERO client, joining the session
+     *                       of the client ; 0 to download with the client session only
+     * @return
+     */
+    public QPHRMSendEngine setNbOmeroSessions(int nOmeroSessions) {
+        this.nOmeroSessions = Math.max(0, nOmeroSessions);
+        return this;
+    }
+
+    /**
+     * @param omeroGateway OMERO operations used for all the OMERO images instead of their client, e.g. a
+     *                     {@link qupath.ext.biop.hrm.utils.QPHRMLocalOmeroGateway} to run the send without OMERO server ;
+     *                     null to use the client of each image
+     * @return
+     */
+    public QPHRMSendEngine setOmeroGateway(QPHRMOmeroGateway omeroGateway) {
+        this.omeroGateway = omeroGateway;
+        return this;
+    }
+
+    public QPHRMSendEngine setListener(QPHRMJobListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * start sending images to HRM in background
+     *
+     * @param images
+     * @return the job handle
+     */
+    public QPHRMJob start(List<ProjectImageEntry<BufferedImage>> images) {
+        // filter omero and local images from their server builder, without reading the images
+        List<ProjectImageEntry<BufferedImage>> omeroImagesList = images.stream().filter(QPHRMSendEngine::isOmeroImage).collect(Collectors.toList());
+        List<ProjectImageEntry<BufferedImage>> localImagesList = images.stream().filter(e -> !isOmeroImage(e)).collect(Collectors.toList());
+
+        QPHRMJob job = new QPHRMJob(images.size(), this.listener);
+        return job.start("hrm-send-job", () -> run(job, omeroImagesList, localImagesList));
+    }
+
+    /**
+     * send images, collecting the results in the order the copies finish
+     *
+     * @param job
+     * @param omeroImagesList
+     * @param localImagesList
+     * @return the job summary
+     */
+    private QPHRMJobSummary run(QPHRMJob job, List<ProjectImageEntry<BufferedImage>> omeroImagesList,
+                                List<ProjectImageEntry<BufferedImage>> localImagesList) {
+        QPHRMJobSummary summary = job.getSummary();
+        ExecutorService executor = Executors.newFixedThreadPool(this.nWorkers, ThreadTools.createThreadFactory("hrm-sender-", true));
+
+        // one manifest per HRM user folder, shared by all workers
+        Map<String, QPHRMSyncManifest> manifests = new ConcurrentHashMap<>();
+        Function<String, QPHRMSyncManifest> manifestGetter = user -> !this.sync ? null :
+                manifests.computeIfAbsent(user, u -> QPHRMSyncManifest.load(new File(this.rootFolder + File.separator + u)));
+        CompletionService<SentGroup> completionService = new ExecutorCompletionService<>(executor);
+        LongConsumer progressListener = job::bytesTransferred;
+        boolean regionsOnly = this.regions != null;
+
+        // resolve the parent containers of all OMERO images at once
+        Map<OmeroRawClient, QPHRMOmeroParentCache> parentCaches = regionsOnly || this.omeroGateway != null ? Map.of() :
+                prefetchParentContainers(omeroImagesList);
+
+        // OMERO operations and sessions of each OMERO client, shared by the workers
+        Map<OmeroRawClient, QPHRMOmeroSessionPool> sessionPools = new ConcurrentHashMap<>();
+        Map<OmeroRawClient, QPHRMOmeroGateway> gateways = new ConcurrentHashMap<>();
+        Function<QPHRMOmeroSender, QPHRMOmeroGateway> gatewayGetter = sender -> {
+            if (this.omeroGateway != null)
+                return this.omeroGateway;
+            OmeroRawClient client = sender.getClient();
+            return client == null ? null : gateways.computeIfAbsent(client, c -> new QPHRMOmeroClientGateway(c)
+                    .setParentCache(parentCaches.get(c))
+                    .setSessionPool(this.nOmeroSessions == 0 ? null :
+                            sessionPools.computeIfAbsent(c, pc -> QPHRMOmeroSessionPool.of(pc, this.nOmeroSessions))));
+        };
+
+        // group images by physical file (i.e. series of the same file), to transfer each file once
+        Collection<List<ProjectImageEntry<BufferedImage>>> omeroGroups = regionsOnly ? List.of() : groupOmeroImagesByFileset(omeroImagesList);
+        Collection<List<ProjectImageEntry<BufferedImage>>> localGroups = regionsOnly ? List.of() : groupLocalImagesByFile(localImagesList);
+
+        // regions are cropped image by image, whatever the image source
+        List<ProjectImageEntry<BufferedImage>> regionImages = new ArrayList<>();
+        if (regionsOnly) {
+            regionImages.addAll(omeroImagesList);
+            regionImages.addAll(localImagesList);
+        }
+
+        try {
+            // submit all copies to the pool, keeping the images of each copy to report them if the copy fails
+            Map<Future<SentGroup>, List<ProjectImageEntry<BufferedImage>>> submittedGroups = new HashMap<>();
+            for (List<ProjectImageEntry<BufferedImage>> group : omeroGroups) {
+                submittedGroups.put(completionService.submit(() -> SentGroup.transfer(group, () -> downloadOmeroImage(group.get(0), this.rootFolder,
+                        this.overwrite, manifestGetter, gatewayGetter, progressListener))), group);
+            }
+            for (List<ProjectImageEntry<BufferedImage>> group : localGroups) {
+                submittedGroups.put(completionService.submit(() -> SentGroup.transfer(group, () -> downloadLocalImage(group.get(0), this.rootFolder,
+                        this.overwrite, this.username, manifestGetter.apply(this.username), progressListener))), group);
+            }
+            for (ProjectImageEntry<BufferedImage> image : regionImages) {
+                submittedGroups.put(completionService.submit(() -> SentGroup.transfer(List.of(image), () -> sendImageRegions(image, this.regions.get(image),
+                        this.rootFolder, this.overwrite, this.username, progressListener))), List.of(image));
+            }
+
+            // collect the results as soon as they are available
+            int nGroups = omeroGroups.size() + localGroups.size() + regionImages.size();
+            for (int i = 0; i < nGroups; i++) {
+                if (job.isCancelled())
+                    break;
+
+                Future<SentGroup> future = completionService.take();
+                SentGroup sentGroup;
+                try {
+                    sentGroup = future.get();
+                } catch (ExecutionException e) {
+                    logger.error("Error during the transfer of an image to HRM", e.getCause());
+                    sentGroup = new SentGroup(submittedGroups.get(future), null);
+                }
+
+                // report the status of the transfer for each image of the file
+                int nImages = sentGroup.images.size();
+                QPHRMJobSummary.Status status = sentGroup.getStatus();
+                for (ProjectImageEntry<BufferedImage> image : sentGroup.images) {
+                    logger.info("Send to HRM - " + image.getImageName() + " : " + (status == QPHRMJobSummary.Status.DONE ? "sent" : status.name().toLowerCase()) +
+                            (nImages > 1 ? " (file shared by " + nImages + " images)" : ""));
+                    summary.addResult(image.getImageName(), status);
+                }
+                if (sentGroup.sender != null)
+                    job.destinationFolder(sentGroup.sender.getDestinationFolder());
+                job.imagesProcessed(nImages);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Sending to HRM has been interrupted");
+            summary.setCancelled(true);
+        } finally {
+            // stop pending copies if the job has been cancelled
+            if (job.isCancelled())
+                executor.shutdownNow();
+            else
+                executor.shutdown();
+
+            // close the idle sessions ; sessions of downloads still running after a cancel are closed when released
+            sessionPools.values().forEach(QPHRMOmeroSessionPool::close);
+
+            // keep track of the sent images for the next sync
+            for (QPHRMSyncManifest manifest : manifests.values()) {
+                try {
+                    manifest.save();
+                } catch (IOException e) {
+                    logger.error("Cannot save the HRM sync manifest", e);
+                }
+            }
+        }
+        return summary;
+    }
+
+
+    /**
+     * send omero images to HRM server.
+     * The image is resolved from its URI within the worker thread ; the reader, if any, is closed by the sender.
+     *
+     * @param image
+     * @param rootFolder
+     * @param overwrite
+     * @param manifestGetter manifest of the HRM user folder ; returns null to disable the sync mode
+     * @param gatewayGetter OMERO operations of the image of a sender ; returns null if there is no OMERO connection
+     * @param progressListener listener of the downloaded bytes
+     * @return the omero sender ; null if there is no OMERO user to send the image for
+     */
+    private static QPHRMOmeroSender downloadOmeroImage(ProjectImageEntry<BufferedImage> image, String rootFolder, boolean overwrite,
+                                                       Function<String, QPHRMSyncManifest> manifestGetter,
+                                                       Function<QPHRMOmeroSender, QPHRMOmeroGateway> gatewayGetter,
+                                                       LongConsumer progressListener){
+        QPHRMOmeroSender qphrmOmeroSender = new QPHRMOmeroSender()
+                .setImageEntry(image)
+                .setProgressListener(progressListener);
+
+        // the HRM username is the OMERO one ; without it, there is no HRM folder to send the image to
+        QPHRMOmeroGateway gateway = gatewayGetter.apply(qphrmOmeroSender);
+        String username = gateway == null ? null : gateway.getUserName();
+        if (username == null || username.isEmpty()) {
+            logger.error("No OMERO user connected for image " + image.getImageName() + " ; it is not sent to HRM");
+            return null;
+        }
+
+        return qphrmOmeroSender
+                .setGateway(gateway)
+                .setSyncManifest(manifestGetter.apply(username))
+                .buildDestinationFolder(rootFolder, username)
+                .copy(overwrite);
+    }
+
+
+    /**
+     * resolve the parent dataset and project of all OMERO images, with one bulk query per OMERO client.
+     *
+     * @param images
+     * @return the caches of parent containers, by OMERO client
+     */
+    private static Map<OmeroRawClient, QPHRMOmeroParentCache> prefetchParentContainers(List<ProjectImageEntry<BufferedImage>> images){
+        Map<OmeroRawClient, List<Long>> imageIdsByClient = new HashMap<>();
+        for (ProjectImageEntry<BufferedImage> image : images) {
+            try {
+                URI uri = image.getURIs().iterator().next();
+                OmeroRawClient client = OmeroRawClients.getClientFromServerURI(OmeroRawTools.getServerURI(uri));
+                long imageId = QPHRMOmeroSender.parseImageId(uri);
+                if (client != null && imageId > 0)
+                    imageIdsByClient.computeIfAbsent(client, c -> new ArrayList<>()).add(imageId);
+            } catch (IOException | URISyntaxException e) {
+                logger.warn("Cannot read the URI of image " + image.getImageName(), e);
+            }
+        }
+
+        Map<OmeroRawClient, QPHRMOmeroParentCache> parentCaches = new HashMap<>();
+        imageIdsByClient.forEach((client, imageIds) -> {
+            QPHRMOmeroParentCache parentCache = new QPHRMOmeroParentCache(client.getSimpleClient());
+            parentCache.prefetchImages(imageIds);
+            parentCaches.put(client, parentCache);
+        });
+        return parentCaches;
+    }
+
+
+    /**
+     * group OMERO images by fileset, i.e. series of the same file are grouped together.
+     * Images whose fileset cannot be read are kept alone.
+     *
+     * @param images
+     * @return the groups of images, in the order of the images
+     */
+    private static Collection<List<ProjectImageEntry<BufferedImage>>> groupOmeroImagesByFileset(List<ProjectImageEntry<BufferedImage>> images){
+        // read image ids and clients
+        Map<ProjectImageEntry<BufferedImage>, OmeroRawClient> clients = new HashMap<>();
+        Map<ProjectImageEntry<BufferedImage>, Long> imageIds = new HashMap<>();
+        Map<OmeroRawClient, List<Long>> imageIdsByClient = new HashMap<>();
+        for (ProjectImageEntry<BufferedImage> image : images) {
+            try {
+                URI uri = image.getURIs().iterator().next();
+                OmeroRawClient client = OmeroRawClients.getClientFromServerURI(OmeroRawTools.getServerURI(uri));
+                long imageId = QPHRMOmeroSender.parseImageId(uri);
+                if (client != null && imageId > 0) {
+                    clients.put(image, client);
+                    imageIds.put(image, imageId);
+                    imageIdsByClient.computeIfAbsent(client, c -> new ArrayList<>()).add(imageId);
+                }
+            } catch (IOException | URISyntaxException e) {
+                logger.warn("Cannot read the URI of image " + image.getImageName(), e);
+            }
+        }
+
+        // read filesets
+        Map<OmeroRawClient, Map<Long, Long>> filesetIdsByClient = new HashMap<>();
+        imageIdsByClient.forEach((client, ids) -> {
+            try {
+                filesetIdsByClient.put(client, QPHRMOmeroDownloader.getFilesetIds(client.getSimpleClient(), ids));
+            } catch (DSOutOfServiceException | ServerError e) {
+                logger.warn("Cannot read the filesets of OMERO images ; images will be sent independently", e);
+                filesetIdsByClient.put(client, Map.of());
+            }
+        });
+
+        // group images
+        Map<String, List<ProjectImageEntry<BufferedImage>>> groups = new LinkedHashMap<>();
+        for (ProjectImageEntry<BufferedImage> image : images) {
+            OmeroRawClient client = clients.get(image);
+            Long filesetId = client == null ? null : filesetIdsByClient.get(client).get(imageIds.get(image));
+            String key = filesetId == null ? "image:" + image.getID() : client.getServerURI() + ":fileset:" + filesetId;
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(image);
+        }
+        return groups.values();
+    }
+
+
+    /**
+     * group local images by file, i.e. series of the same file are grouped together.
+     *
+     * @param images
+     * @return the groups of images, in the order of the images
+     */
+    private static Collection<List<ProjectImageEntry<BufferedImage>>> groupLocalImagesByFile(List<ProjectImageEntry<BufferedImage>> images){
+        Map<String, List<ProjectImageEntry<BufferedImage>>> groups = new LinkedHashMap<>();
+        for (ProjectImageEntry<BufferedImage> image : images) {
+            String key;
+            try {
+                key = new File(image.getURIs().iterator().next()).getAbsolutePath();
+            } catch (IOException | IllegalArgumentException e) {
+                key = "image:" + image.getID();
+            }
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(image);
+        }
+        return groups.values();
+    }
+
+
+    /**
+     * send local images to HRM server.
+     * The image file is read from the entry URI ; no reader is opened.
+     *
+     * @param image
+     * @param rootFolder
+     * @param overwrite
+     * @param username
+     * @param manifest manifest of the HRM user folder ; null to disable the sync mode
+     * @param progressListener listener of the copied bytes
+     * @return the local sender
+     */
+    private static QPHRMLocalSender downloadLocalImage(ProjectImageEntry<BufferedImage> image, String rootFolder, boolean overwrite,
+                                                       String username, QPHRMSyncManifest manifest, LongConsumer progressListener){
+        return new QPHRMLocalSender()
+                .setImageEntry(image)
+                .setProgressListener(progressListener)
+                .setSyncManifest(manifest)
+                .buildDestinationFolder(rootFolder, username)
+                .copy(overwrite);
+    }
+
+
+    /**
+     * send the annotated regions of an image to HRM server.
+     * The image is read from the project entry within the worker thread.
+     *
+     * @param image
+     * @param regions regions to send ; null to send all the annotations of the image
+     * @param rootFolder
+     * @param overwrite
+     * @param username
+     * @param progressListener listener of the written bytes
+     * @return the region sender
+     */
+    private static QPHRMRegionSender sendImageRegions(ProjectImageEntry<BufferedImage> image, List<ROI> regions, String rootFolder,
+                                                      boolean overwrite, String username, LongConsumer progressListener){
+        return new QPHRMRegionSender()
+                .setImageEntry(image)
+                .setRegions(regions)
+                .setProgressListener(progressListener)
+                .buildDestinationFolder(rootFolder, username)
+                .copy(overwrite);
+    }
+
+
+    /**
+     * @param image
+     * @return true if the image is read from OMERO, based on its server builder
+     */
+    public static boolean isOmeroImage(ProjectImageEntry<BufferedImage> image) {
+        return image.getServerBuilder().toString().contains(OmeroRawImageServerBuilder.class.getName());
+    }
+
+
+    /**
+     * get the HRM username of OMERO images, i.e. the user logged in the OMERO server of the first OMERO image
+     *
+     * @param images
+     * @return the username, or null if there is no OMERO image or no logged in client
+     */
+    public static String getOmeroUsername(List<ProjectImageEntry<BufferedImage>> images) {
+        for (ProjectImageEntry<BufferedImage> image : images) {
+            if (!isOmeroImage(image))
+                continue;
+            try {
+                URI uri = image.getURIs().iterator().next();
+                OmeroRawClient client = OmeroRawClients.getClientFromServerURI(OmeroRawTools.getServerURI(uri));
+                return client == null ? null : client.getLoggedInUser().getUserName();
+            } catch (IOException | URISyntaxException e) {
+                logger.warn("Cannot read the URI of image " + image.getImageName(), e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Result of the transfer of a file shared by one or several images (i.e. series of the same file)
+     */
+    private static class SentGroup {
+        private final List<ProjectImageEntry<BufferedImage>> images;
+        private final QPHRMSender sender;
+
+        private SentGroup(List<ProjectImageEntry<BufferedImage>> images, QPHRMSender sender) {
+            this.images = images;
+            this.sender = sender;
+        }
+
+        /**
+         * run the transfer of the file shared by the images
+         *
+         * @param images
+         * @param transfer
+         * @return the result of the transfer ; the sender is null if the transfer has thrown an exception or could not start
+         */
+        private static SentGroup transfer(List<ProjectImageEntry<BufferedImage>> images, Callable<QPHRMSender> transfer) {
+            try {
+                return new SentGroup(images, transfer.call());
+            } catch (Exception e) {
+                logger.error("Error during the transfer of image " + images.get(0).getImageName() + " to HRM", e);
+                return new SentGroup(images, null);
+            }
+        }
+
+        private QPHRMJobSummary.Status getStatus() {
+            if (this.sender == null || this.sender.isFailed())
+                return QPHRMJobSummary.Status.FAILED;
+            return this.sender.isSent() ? QPHRMJobSummary.Status.DONE : QPHRMJobSummary.Status.SKIPPED;
+        }
+    }
+}
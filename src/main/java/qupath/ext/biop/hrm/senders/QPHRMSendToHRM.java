@@ -19,28 +19,39 @@ import javafx.scene.input.ClipboardContent;
 import javafx.stage.Stage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import qupath.ext.biop.servers.omero.raw.OmeroRawImageServer;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.hrm.utils.QPHRMJob;
+import qupath.ext.biop.hrm.utils.QPHRMJobListener;
+import qupath.ext.biop.hrm.utils.QPHRMJobSummary;
 import qupath.fx.dialogs.Dialogs;
-import qupath.lib.images.servers.ImageServer;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
 import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
 
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+/**
+ * Send images to HRM with {@link QPHRMSendEngine}, displaying the progress of the job in a dialog.
+ */
 public class QPHRMSendToHRM {
     private final static Logger logger = LoggerFactory.getLogger(QPHRMSendToHRM.class);
     private static ProgressBar progressBar = new ProgressBar(0.0);
     private static Label lblProgress = new Label();
     protected static Label lblResultsFolder = new Label();
     private static String message = "";
-    private static List<String> resolutsFolderlist = new ArrayList<>();
     private static Button centralButton = new Button();
 
 
     /**
-     * sends a list of images to HRM folder
+     * sends a list of images to HRM folder, with the default number of parallel transfers
      *
      * @param images
      * @param overwrite
@@ -48,101 +59,101 @@ public class QPHRMSendToHRM {
      * @return
      */
     public static void send(List<ProjectImageEntry<BufferedImage>> images, boolean overwrite, String rootFolder) {
+        send(images, overwrite, false, rootFolder, HRMConstants.DEFAULT_NB_WORKERS);
+    }
 
-        // get image servers
-        List<ImageServer<BufferedImage>> imageServers = new ArrayList<>();
-        for (ProjectImageEntry<BufferedImage> image : images) {
-            try {
-                imageServers.add(image.readImageData().getServer());
-            } catch (Exception e) {
-                Dialogs.showErrorMessage("Reading image server", "Cannot Read Image data for image " + image.getImageName());
-                return;
-            }
-        }
 
-        // filter omero and local images
-        List<ImageServer<BufferedImage>> omeroServersList = imageServers.stream().filter(e -> e instanceof OmeroRawImageServer).collect(Collectors.toList());
-        List<ImageServer<BufferedImage>> localServersList = imageServers.stream().filter(e -> !(e instanceof OmeroRawImageServer)).collect(Collectors.toList());
+    /**
+     * sends a list of images to HRM folder
+     *
+     * @param images
+     * @param overwrite
+     * @param sync only send new or modified images, based on the manifest of the HRM user folder
+     * @param rootFolder
+     * @param nWorkers number of images transferred in parallel
+     * @return
+     */
+    public static void send(List<ProjectImageEntry<BufferedImage>> images, boolean overwrite, boolean sync, String rootFolder, int nWorkers) {
+        send(images, overwrite, sync, false, rootFolder, nWorkers);
+    }
+
 
-        // set the username for local images only
-        String username = "";
-        if (omeroServersList.isEmpty())
+    /**
+     * sends a list of images to HRM folder.
+     * In regions mode, only the annotated regions of images are sent, as OME-TIFF files : the selected annotations
+     * for images opened in a viewer, all the annotations otherwise.
+     *
+     * @param images
+     * @param overwrite
+     * @param sync only send new or modified images, based on the manifest of the HRM user folder
+     * @param regionsOnly only send the annotated regions of images
+     * @param rootFolder
+     * @param nWorkers number of images transferred in parallel
+     * @return
+     */
+    public static void send(List<ProjectImageEntry<BufferedImage>> images, boolean overwrite, boolean sync, boolean regionsOnly,
+                            String rootFolder, int nWorkers) {
+
+        // set the username for local images ; take the OMERO one if there are OMERO images
+        String username = QPHRMSendEngine.getOmeroUsername(images);
+        if (username == null)
             username = askUsername();
 
+        if(username == null)
+            return;
+
+        // selection has to be read on the FX thread
+        Map<ProjectImageEntry<BufferedImage>, List<ROI>> regions = regionsOnly ? getSelectedRegions(images) : null;
+
         //send images to HRM
-        int nbImagesToDownload = omeroServersList.size() + localServersList.size();
-        Task<Void> task = startProcess(omeroServersList, localServersList, nbImagesToDownload, rootFolder, username, overwrite);
+        QPHRMSendEngine engine = new QPHRMSendEngine(rootFolder, username)
+                .setOverwrite(overwrite)
+                .setSync(sync)
+                .setRegions(regions)
+                .setNbWorkers(nWorkers);
+        Task<Void> task = startProcess(engine, images);
         buildDialog(task);
     }
 
 
     /**
-     * Background task that send images to HRM
+     * Background task following the send job, to display its progress.
      *
-     * @param omeroServersList
-     * @param localServersList
-     * @param nbImagesToDownload
-     * @param rootFolder
-     * @param username
-     * @param overwrite
+     * @param engine
+     * @param images
      * @return
      */
-    private static Task<Void> startProcess(List<ImageServer<BufferedImage>> omeroServersList,
-                                     List<ImageServer<BufferedImage>> localServersList, int nbImagesToDownload,
-                                     String rootFolder, String username, boolean overwrite) {
+    private static Task<Void> startProcess(QPHRMSendEngine engine, List<ProjectImageEntry<BufferedImage>> images) {
+        int nbImagesToDownload = images.size();
+
         // Create a background Task
         Task<Void> task = new Task<Void>() {
-            int nSentImages = 0;
-            int nSkippedImages = 0;
-            @Override
-            protected Void call() {
-
-                int i = 0;
-                String finalUsername = username;
+            QPHRMJob job;
+            QPHRMJobSummary summary;
 
-                for(i = 0; i <omeroServersList.size(); i++){
-                    if(!isCancelled()) {
+            @Override
+            protected Void call() throws Exception {
+                job = engine.setListener(new QPHRMJobListener() {
+                    @Override
+                    public void onProgress(int nProcessed, int nTotal, long nBytes) {
                         // Update our progress and message properties
-                        updateMessage(i + 1 + " / " + nbImagesToDownload);
-                        updateProgress(i, nbImagesToDownload);
-
-                        // update username for local sender
-                        String omeroUsername = ((OmeroRawImageServer) omeroServersList.get(i)).getClient().getLoggedInUser().getUserName();
-                        if (finalUsername.equals(""))
-                            finalUsername = omeroUsername;
-
-                        // send images to HRM
-                        QPHRMOmeroSender qphrmOmeroSender = downloadOmeroImage(omeroServersList.get(i), rootFolder, overwrite, omeroUsername);
-                        nSentImages += qphrmOmeroSender.isSent() ? 1 : 0;
-                        nSkippedImages += qphrmOmeroSender.isSkipped() ? 1 : 0;
-
-                        String destFold = qphrmOmeroSender.getDestinationFolder();
-                        if(!resolutsFolderlist.contains(destFold)) {
-                            resolutsFolderlist.add(destFold);
-                            message += "\n"+destFold;
-                            updateTitle(message);
-                        }
+                        updateMessage(nProcessed + " / " + nTotal +
+                                (nBytes > 0 ? "  (" + GeneralTools.formatNumber(nBytes / (1024.0 * 1024.0), 1) + " MB)" : ""));
+                        updateProgress(nProcessed, nTotal);
                     }
-                }
 
-                for(int j = 0; j < localServersList.size(); j++){
-                    if(!isCancelled()) {
-                        // Update our progress and message properties
-                        updateMessage(i + j + 1 + " / " + nbImagesToDownload);
-                        updateProgress(i + j, nbImagesToDownload);
-
-                        // send images to HRM
-                        QPHRMLocalSender qphrmLocalSender = downloadLocalImage(localServersList.get(j), rootFolder, overwrite, finalUsername);
-                        nSentImages += qphrmLocalSender.isSent() ? 1 : 0;
-                        nSkippedImages += qphrmLocalSender.isSkipped() ? 1 : 0;
-
-                        String destFold = qphrmLocalSender.getDestinationFolder();
-                        if(!resolutsFolderlist.contains(destFold)) {
-                            resolutsFolderlist.add(destFold);
-                            message += "\n"+destFold;
-                            updateTitle(message);
-                        }
+                    @Override
+                    public void onDestinationFolder(String folder) {
+                        message += "\n" + folder;
+                        updateTitle(message);
                     }
+                }).start(images);
+
+                try {
+                    summary = job.waitForCompletion();
+                } catch (InterruptedException e) {
+                    logger.warn("Sending to HRM has been interrupted");
+                    job.cancel();
                 }
                 return null;
             }
@@ -150,12 +161,18 @@ public class QPHRMSendToHRM {
             @Override protected void succeeded() {
                 super.succeeded();
                 updateProgress(nbImagesToDownload, nbImagesToDownload);
-                String finalMessage = "\n" + String.format("Sent %s : %d/%d  \nSkipped %s : %d/%d ",
+                int nSentImages = summary == null ? 0 : summary.getCount(QPHRMJobSummary.Status.DONE);
+                int nSkippedImages = summary == null ? 0 : summary.getCount(QPHRMJobSummary.Status.SKIPPED);
+                int nFailedImages = summary == null ? 0 : summary.getCount(QPHRMJobSummary.Status.FAILED);
+                String finalMessage = "\n" + String.format("Sent %s : %d/%d  \nSkipped %s : %d/%d  \nFailed %s : %d/%d ",
                         (nSentImages == 1 ? "image" : "images"),
                         nSentImages,
                         nbImagesToDownload,
-                        (nSentImages == 1 ? "image" : "images"),
+                        (nSkippedImages == 1 ? "image" : "images"),
                         nSkippedImages,
+                        nbImagesToDownload,
+                        (nFailedImages == 1 ? "image" : "images"),
+                        nFailedImages,
                         nbImagesToDownload);
                 updateMessage("Done!"+finalMessage);
                 centralButton.setText("Done");
@@ -163,6 +180,8 @@ public class QPHRMSendToHRM {
 
             @Override protected void cancelled() {
                 super.cancelled();
+                if (job != null)
+                    job.cancel();
                 updateMessage("Cancelled!");
                 Dialogs.showWarningNotification("Sending To HRM","The download has been cancelled");
             }
@@ -193,51 +212,33 @@ public class QPHRMSendToHRM {
 
 
     /**
-     * send omero images to HRM server
+     * read the annotations selected on the images opened in QuPath viewers
      *
-     * @param imageServer
-     * @param rootFolder
-     * @param overwrite
-     * @param username
-     * @return the omero sender
-     */
-    private static QPHRMOmeroSender downloadOmeroImage(ImageServer<BufferedImage> imageServer, String rootFolder, boolean overwrite, String username){
-        QPHRMOmeroSender qphrmOmeroSender = new QPHRMOmeroSender()
-                .setClient(((OmeroRawImageServer) imageServer).getClient())
-                .setImageServer(imageServer)
-                .buildDestinationFolder(rootFolder, username)
-                .copy(overwrite);
-        try {
-            imageServer.close();
-        } catch (Exception e) {
-            logger.error("Cannot close the OMERO reader");
-        }
-
-        return qphrmOmeroSender;
-    }
-
-
-    /**
-     * send local images to HRM server
-     *
-     * @param imageServer
-     * @param rootFolder
-     * @param overwrite
-     * @param username
-     * @return the local sender
+     * @param images
+     * @return the ROIs of the selected annotations, by image
      */
-    private static QPHRMLocalSender downloadLocalImage(ImageServer<BufferedImage> imageServer, String rootFolder, boolean overwrite, String username){
-        QPHRMLocalSender qphrmLocalSender = new QPHRMLocalSender()
-                .setImageServer(imageServer)
-                .buildDestinationFolder(rootFolder, username)
-                .copy(overwrite);
-        try {
-            imageServer.close();
-        } catch (Exception e) {
-            logger.error("Cannot close the local reader");
+    private static Map<ProjectImageEntry<BufferedImage>, List<ROI>> getSelectedRegions(List<ProjectImageEntry<BufferedImage>> images) {
+        Map<ProjectImageEntry<BufferedImage>, List<ROI>> regions = new HashMap<>();
+        QuPathGUI qupath = QuPathGUI.getInstance();
+        if (qupath == null || qupath.getProject() == null)
+            return regions;
+
+        for (QuPathViewer viewer : qupath.getAllViewers()) {
+            ImageData<BufferedImage> imageData = viewer.getImageData();
+            if (imageData == null)
+                continue;
+            ProjectImageEntry<BufferedImage> entry = qupath.getProject().getEntry(imageData);
+            if (entry == null || !images.contains(entry))
+                continue;
+
+            List<ROI> selectedRois = imageData.getHierarchy().getSelectionModel().getSelectedObjects().stream()
+                    .filter(PathObject::isAnnotation)
+                    .map(PathObject::getROI)
+                    .collect(Collectors.toList());
+            if (!selectedRois.isEmpty())
+                regions.put(entry, selectedRois);
         }
-
-        return qphrmLocalSender;
+        return regions;
     }
 
 
@@ -328,4 +329,5 @@ public class QPHRMSendToHRM {
         primaryStage.setTitle("Sending images to HRM");
         primaryStage.show();
     }
+
 }
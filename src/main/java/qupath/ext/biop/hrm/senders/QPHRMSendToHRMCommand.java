@@ -1,13 +1,18 @@
 package qupath.ext.biop.hrm.senders;
 
+import javafx.beans.property.IntegerProperty;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.Dialog;
+import javafx.scene.control.Label;
+import javafx.scene.control.Spinner;
 import javafx.scene.layout.GridPane;
 import javafx.stage.Modality;
+import qupath.ext.biop.hrm.HRMConstants;
 import qupath.lib.gui.QuPathGUI;
 import qupath.fx.dialogs.Dialogs;
 import qupath.lib.gui.dialogs.ProjectDialogs;
+import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectImageEntry;
 
@@ -19,8 +24,17 @@ import java.util.Optional;
 public class QPHRMSendToHRMCommand implements Runnable {
     private final QuPathGUI qupath;
     private boolean overwriteHrmData = false;
+    private boolean syncHrmData = false;
+    private boolean regionsHrmData = false;
+
+    /**
+     * number of images transferred in parallel to HRM
+     */
+    private static IntegerProperty nbWorkers;
+
     public QPHRMSendToHRMCommand(QuPathGUI qupath) {
         this.qupath = qupath;
+        nbWorkers = PathPrefs.createPersistentPreference("hrmNbParallelTransfers", HRMConstants.DEFAULT_NB_WORKERS);
     }
 
     @Override
@@ -51,6 +65,36 @@ public class QPHRMSendToHRMCommand implements Runnable {
         paneHeader.add(chkOverwrite,0,0);
         ((GridPane)(listSelectionView.getTargetFooter())).add(chkOverwrite,0,3);
 
+        // add the checkbox to only send new or modified images
+        CheckBox chkSync = new CheckBox("Only send new or modified images");
+        chkSync.setMinWidth(CheckBox.USE_PREF_SIZE);
+        chkSync.setSelected(syncHrmData);
+        chkSync.selectedProperty().addListener((v, o, n) -> {
+            syncHrmData = chkSync.selectedProperty().get();
+            chkOverwrite.setDisable(syncHrmData);
+        });
+        chkOverwrite.setDisable(syncHrmData);
+        ((GridPane)(listSelectionView.getTargetFooter())).add(chkSync,1,3);
+
+        // add the checkbox to only send annotated regions
+        CheckBox chkRegions = new CheckBox("Only send annotated regions");
+        chkRegions.setMinWidth(CheckBox.USE_PREF_SIZE);
+        chkRegions.setSelected(regionsHrmData);
+        chkRegions.selectedProperty().addListener((v, o, n) -> {
+            regionsHrmData = chkRegions.selectedProperty().get();
+            chkSync.setDisable(regionsHrmData);
+        });
+        chkSync.setDisable(regionsHrmData);
+        ((GridPane)(listSelectionView.getTargetFooter())).add(chkRegions,0,5);
+
+        // add the number of parallel transfers
+        Label labWorkers = new Label("Parallel transfers");
+        Spinner<Integer> spinnerWorkers = new Spinner<>(1, 16, nbWorkers.get());
+        spinnerWorkers.setPrefWidth(70);
+        labWorkers.setLabelFor(spinnerWorkers);
+        ((GridPane)(listSelectionView.getTargetFooter())).add(labWorkers,0,4);
+        ((GridPane)(listSelectionView.getTargetFooter())).add(spinnerWorkers,1,4);
+
         Dialog<ButtonType> dialog = new Dialog<>();
         dialog.initOwner(qupath.getStage());
         dialog.setTitle("Select images to send to HRM");
@@ -80,6 +124,7 @@ public class QPHRMSendToHRMCommand implements Runnable {
             rootFolder = "smb://sv-nas1.rcp.epfl.ch/ptbiop-raw/HRM-Share";
 
         // send images
-        QPHRMSendToHRM.send(imagesToSend, overwriteHrmData, rootFolder);
+        nbWorkers.set(spinnerWorkers.getValue());
+        QPHRMSendToHRM.send(imagesToSend, overwriteHrmData, syncHrmData && !regionsHrmData, regionsHrmData, rootFolder, nbWorkers.get());
     }
 }
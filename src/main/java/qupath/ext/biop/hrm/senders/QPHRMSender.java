@@ -1,7 +1,10 @@
 package qupath.ext.biop.hrm.senders;
 
+import qupath.ext.biop.hrm.utils.QPHRMSyncManifest;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.ProjectImageEntry;
 import java.awt.image.BufferedImage;
+import java.util.function.LongConsumer;
 
 /**
  * Send images from the current QuPath project to HRM
@@ -52,4 +55,30 @@ public interface QPHRMSender {
      * @return
      */
     QPHRMSender setImageServer(ImageServer<BufferedImage> imageServer);
+
+    /**
+     * set the project entry of the image to send. The image is resolved from the entry URIs ;
+     * readers are only opened when needed, during the copy.
+     *
+     * @param imageEntry
+     * @return
+     */
+    QPHRMSender setImageEntry(ProjectImageEntry<BufferedImage> imageEntry);
+
+    /**
+     * set the manifest of the HRM user folder. If set, the image is only copied if it is new or
+     * if its content has changed since the last send, whatever the overwrite option.
+     *
+     * @param manifest
+     * @return
+     */
+    QPHRMSender setSyncManifest(QPHRMSyncManifest manifest);
+
+    /**
+     * set the listener of the transfer progress
+     *
+     * @param progressListener called with the number of bytes transferred each time a chunk of the image is written
+     * @return
+     */
+    QPHRMSender setProgressListener(LongConsumer progressListener);
 }
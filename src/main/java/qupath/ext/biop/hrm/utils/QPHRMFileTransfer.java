@@ -0,0 +1,333 @@
+package qupath.ext.biop.hrm.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * File transfer engine used to send images to HRM and to send deconvolved images back.
+ * <p>
+ * Files are written under a temporary hidden name in the destination folder and atomically renamed once complete,
+ * so that HRM never sees half-written files. An interrupted transfer is resumed from the size of the partial file.
+ * The data already in a resumed partial file are checked against the source before the transfer is completed.
+ * If required, a CRC32C checksum is computed while streaming the data.
+ */
+public class QPHRMFileTransfer {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMFileTransfer.class);
+
+    /** suffix of files being transferred */
+    public static final String PARTIAL_SUFFIX = ".part";
+
+    /** size of the chunks mapped in memory / transferred at once */
+    private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+
+    /** size of the block compared between source and partial file before resuming */
+    private static final int RESUME_CHECK_SIZE = 64 * 1024;
+
+    /** size of the buffer used to read a partial file */
+    private static final int CHECKSUM_BUFFER_SIZE = 1024 * 1024;
+
+    private QPHRMFileTransfer(){}
+
+    /**
+     * Copy a file into a folder, keeping its name, without computing its checksum
+     *
+     * @param source
+     * @param destinationFolder
+     * @return the transfer result
+     * @throws IOException
+     */
+    public static TransferResult copyFileToDirectory(File source, File destinationFolder) throws IOException {
+        return copyFile(source, new File(destinationFolder, source.getName()), false);
+    }
+
+    /**
+     * Copy a file to the destination file, computing the checksum of the copied data.
+     * Any existing destination file is replaced.
+     *
+     * @param source
+     * @param destination
+     * @return the transfer result
+     * @throws IOException
+     */
+    public static TransferResult copyFile(File source, File destination) throws IOException {
+        return copyFile(source, destination, true);
+    }
+
+    /**
+     * Copy a file to the destination file.
+     * Any existing destination file is replaced.
+     *
+     * @param source
+     * @param destination
+     * @param computeChecksum
+     * @return the transfer result
+     * @throws IOException
+     */
+    public static TransferResult copyFile(File source, File destination, boolean computeChecksum) throws IOException {
+        return copyFile(source, destination, computeChecksum, bytes -> {});
+    }
+
+    /**
+     * Copy a file to the destination file, reporting the number of transferred bytes.
+     * If the checksum is not required, data are copied with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * Otherwise, the source is mapped in memory by chunks, which are checksummed and written without intermediate copy.
+     * The beginning of a resumed partial file is compared with the source ; the transfer restarts from 0 if they differ.
+     *
+     * @param source
+     * @param destination
+     * @param computeChecksum
+     * @param progressListener called with the number of bytes transferred each time a chunk is written ;
+     *                         the bytes of a resumed partial file are reported once they have been checked
+     * @return the transfer result
+     * @throws IOException
+     */
+    public static TransferResult copyFile(File source, File destination, boolean computeChecksum, LongConsumer progressListener) throws IOException {
+        if(!source.isFile())
+            throw new IOException("Source file "+source+" does not exist");
+        File parent = destination.getParentFile();
+        if(!parent.isDirectory())
+            Files.createDirectories(parent.toPath());
+
+        Path partialPath = getPartialFile(destination).toPath();
+        CRC32C checksum = computeChecksum ? new CRC32C() : null;
+        long size;
+
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(partialPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            size = in.size();
+
+            // resume from the partial file if it matches the source
+            long offset = getResumeOffset(in, out, size);
+            if (offset > 0 && !checkPrefix(in, out, offset, checksum == null ? new CRC32C() : checksum)) {
+                logger.warn("The partial file of " + source + " does not match the source ; restart the transfer from the beginning");
+                if (checksum != null)
+                    checksum.reset();
+                offset = 0;
+            }
+            out.truncate(offset);
+            if (offset > 0) {
+                logger.info("Resume the transfer of " + source + " from byte " + offset);
+                progressListener.accept(offset);
+            }
+
+            // transfer the remaining data
+            long position = offset;
+            while (position < size) {
+                long count = Math.min(CHUNK_SIZE, size - position);
+                long start = position;
+                if (checksum == null) {
+                    position += in.transferTo(position, count, out.position(position));
+                } else {
+                    MappedByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, position, count);
+                    checksum.update(chunk.duplicate());
+                    while (chunk.hasRemaining())
+                        position += out.write(chunk, position);
+                }
+                progressListener.accept(position - start);
+                if (Thread.currentThread().isInterrupted())
+                    throw new IOException("Transfer of " + source + " interrupted at byte " + position);
+            }
+            out.force(true);
+
+            // verify that everything has been written
+            if (out.size() != size)
+                throw new IOException("Transfer of " + source + " is incomplete : " + out.size() + " / " + size + " bytes");
+        }
+
+        // make the file visible in the destination folder
+        moveAtomically(partialPath, destination.toPath());
+
+        return new TransferResult(destination, size, checksum == null ? -1 : checksum.getValue());
+    }
+
+    /**
+     * Compare the beginning of the partial file with the source.
+     * The checksum is updated with the source data, so that the transfer can go on from the offset.
+     * The partial file is read, not mapped, so that it can be renamed right after on every platform.
+     *
+     * @param in source channel
+     * @param out partial file channel
+     * @param offset size of the prefix to compare
+     * @param checksum checksum of the source, updated with the prefix
+     * @return true if the prefix of the partial file has the same checksum as the source
+     * @throws IOException
+     */
+    private static boolean checkPrefix(FileChannel in, FileChannel out, long offset, CRC32C checksum) throws IOException {
+        for (long position = 0; position < offset; position += CHUNK_SIZE)
+            checksum.update(in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, offset - position)));
+        return checksum.getValue() == checksum(out, offset);
+    }
+
+    /**
+     * @param file
+     * @return the CRC32C checksum of the whole file content
+     * @throws IOException
+     */
+    public static long checksum(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return checksum(channel, channel.size());
+        }
+    }
+
+    /**
+     * Read the beginning of the channel to compute its checksum.
+     *
+     * @param channel
+     * @param length number of bytes to read
+     * @return the CRC32C checksum of the first bytes of the channel
+     * @throws IOException
+     */
+    private static long checksum(FileChannel channel, long length) throws IOException {
+        CRC32C checksum = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        long position = 0;
+        int read;
+        while (position < length && (read = channel.read(buffer.clear().limit((int) Math.min(CHECKSUM_BUFFER_SIZE, length - position)), position)) > 0) {
+            checksum.update(buffer.flip());
+            position += read;
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Copy several files in parallel, e.g. an image and its companion files, computing their checksum.
+     *
+     * @param filesToCopy destination file by source file
+     * @param nThreads maximum number of files copied in parallel
+     * @param progressListener called with the number of bytes transferred each time a chunk is written
+     * @return the transfer results, in the order of the files to copy
+     * @throws IOException if any of the copies fails
+     */
+    public static List<TransferResult> copyFiles(Map<File, File> filesToCopy, int nThreads, LongConsumer progressListener) throws IOException {
+        if (filesToCopy.size() == 1) {
+            Map.Entry<File, File> entry = filesToCopy.entrySet().iterator().next();
+            return List.of(copyFile(entry.getKey(), entry.getValue(), true, progressListener));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, filesToCopy.size())),
+                ThreadTools.createThreadFactory("hrm-file-transfer-", true));
+        try {
+            List<Future<TransferResult>> futures = new ArrayList<>();
+            filesToCopy.forEach((source, destination) ->
+                    futures.add(executor.submit(() -> copyFile(source, destination, true, progressListener))));
+
+            List<TransferResult> results = new ArrayList<>();
+            for (Future<TransferResult> future : futures)
+                results.add(future.get());
+            return results;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Rename the file to its final destination, atomically if the file system supports it.
+     *
+     * @param source
+     * @param destination
+     * @throws IOException
+     */
+    public static void moveAtomically(Path source, Path destination) throws IOException {
+        try {
+            Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @param destination
+     * @return the temporary file used while transferring to the destination
+     */
+    public static File getPartialFile(File destination) {
+        return new File(destination.getParentFile(), "." + destination.getName() + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * compute the offset from which the transfer can be resumed.
+     * The last block of the partial file is compared with the source ; the transfer restarts from 0 if they differ.
+     *
+     * @param in
+     * @param out
+     * @param sourceSize
+     * @return the resume offset
+     * @throws IOException
+     */
+    private static long getResumeOffset(FileChannel in, FileChannel out, long sourceSize) throws IOException {
+        long partialSize = out.size();
+        if (partialSize == 0 || partialSize > sourceSize)
+            return 0;
+
+        int blockSize = (int) Math.min(RESUME_CHECK_SIZE, partialSize);
+        long blockStart = partialSize - blockSize;
+        ByteBuffer sourceBlock = ByteBuffer.allocate(blockSize);
+        ByteBuffer partialBlock = ByteBuffer.allocate(blockSize);
+        while (sourceBlock.hasRemaining() && in.read(sourceBlock, blockStart + sourceBlock.position()) > 0);
+        while (partialBlock.hasRemaining() && out.read(partialBlock, blockStart + partialBlock.position()) > 0);
+
+        return sourceBlock.flip().equals(partialBlock.flip()) ? partialSize : 0;
+    }
+
+
+    /**
+     * Result of a file transfer
+     */
+    public static class TransferResult {
+        private final File file;
+        private final long size;
+        private final long checksum;
+
+        private TransferResult(File file, long size, long checksum) {
+            this.file = file;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return the transferred file
+         */
+        public File getFile() {
+            return this.file;
+        }
+
+        /**
+         * @return the size in bytes of the transferred file
+         */
+        public long getSize() {
+            return this.size;
+        }
+
+        /**
+         * @return the CRC32C checksum of the transferred file ; -1 if it has not been computed
+         */
+        public long getChecksum() {
+            return this.checksum;
+        }
+    }
+}
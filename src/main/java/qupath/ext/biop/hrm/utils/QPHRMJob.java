@@ -0,0 +1,169 @@
+package qupath.ext.biop.hrm.utils;
+
+import qupath.lib.common.ThreadTools;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handle of a send or retrieve job running in background.
+ * <p>
+ * The job reports its progress to a {@link QPHRMJobListener} and completes its future with a {@link QPHRMJobSummary}.
+ * It does not depend on JavaFX and can be used from scripts, e.g.
+ * <pre>
+ *     def summary = job.waitForCompletion()
+ *     println summary
+ * </pre>
+ */
+public class QPHRMJob {
+    private volatile int nTotal;
+    private final QPHRMJobListener listener;
+    private final QPHRMJobSummary summary;
+    private final AtomicInteger nProcessed = new AtomicInteger();
+    private final AtomicLong nBytes = new AtomicLong();
+    private final CompletableFuture<QPHRMJobSummary> future = new CompletableFuture<>();
+    private volatile Thread thread;
+    private volatile boolean cancelled = false;
+
+    public QPHRMJob(int nTotal, QPHRMJobListener listener) {
+        this.nTotal = nTotal;
+        this.listener = listener == null ? new QPHRMJobListener() {} : listener;
+        this.summary = new QPHRMJobSummary(nTotal);
+    }
+
+    /**
+     * run the job process in a background thread
+     *
+     * @param name name of the job thread
+     * @param process
+     * @return the job
+     */
+    public QPHRMJob start(String name, Callable<QPHRMJobSummary> process) {
+        this.thread = ThreadTools.createThreadFactory(name + "-", true).newThread(() -> {
+            try {
+                this.future.complete(process.call());
+            } catch (Throwable e) {
+                this.future.completeExceptionally(e);
+            }
+        });
+        this.thread.start();
+        return this;
+    }
+
+    /**
+     * @return the future completed with the job summary
+     */
+    public CompletableFuture<QPHRMJobSummary> getFuture() {
+        return this.future;
+    }
+
+    /**
+     * block until the job is completed
+     *
+     * @return the job summary
+     * @throws InterruptedException
+     * @throws ExecutionException if the job has failed
+     */
+    public QPHRMJobSummary waitForCompletion() throws InterruptedException, ExecutionException {
+        return this.future.get();
+    }
+
+    /**
+     * stop the job ; pending transfers are interrupted and the summary is marked as cancelled
+     */
+    public void cancel() {
+        this.cancelled = true;
+        this.summary.setCancelled(true);
+        Thread jobThread = this.thread;
+        if (jobThread != null)
+            jobThread.interrupt();
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    public boolean isDone() {
+        return this.future.isDone();
+    }
+
+    /**
+     * @return the summary being filled by the job
+     */
+    public QPHRMJobSummary getSummary() {
+        return this.summary;
+    }
+
+    public int getNbTotal() {
+        return this.nTotal;
+    }
+
+    /**
+     * update the number of images of the job, when images are discovered while the job is running
+     *
+     * @param nTotal
+     */
+    public void setNbTotal(int nTotal) {
+        if (nTotal == this.nTotal)
+            return;
+        this.nTotal = nTotal;
+        this.summary.setNbImages(nTotal);
+        this.listener.onProgress(this.nProcessed.get(), nTotal, this.nBytes.get());
+    }
+
+    public int getNbProcessed() {
+        return this.nProcessed.get();
+    }
+
+    public long getNbBytes() {
+        return this.nBytes.get();
+    }
+
+    /**
+     * report that images have been processed
+     *
+     * @param nImages
+     */
+    public void imagesProcessed(int nImages) {
+        this.listener.onProgress(this.nProcessed.addAndGet(nImages), this.nTotal, this.nBytes.get());
+    }
+
+    /**
+     * report transferred bytes
+     *
+     * @param bytes
+     */
+    public void bytesTransferred(long bytes) {
+        this.listener.onProgress(this.nProcessed.get(), this.nTotal, this.nBytes.addAndGet(bytes));
+    }
+
+    /**
+     * report a destination folder, once
+     *
+     * @param folder
+     */
+    public void destinationFolder(String folder) {
+        if (this.summary.addDestinationFolder(folder))
+            this.listener.onDestinationFolder(folder);
+    }
+
+    /**
+     * report that the QuPath project has been saved with new images
+     */
+    public void projectChanged() {
+        this.listener.onProjectChanged();
+    }
+
+    /**
+     * report a message to the user
+     *
+     * @param message
+     */
+    public void message(String message) {
+        this.summary.addMessage(message);
+        this.listener.onMessage(message);
+    }
+}
@@ -0,0 +1,36 @@
+package qupath.ext.biop.hrm.utils;
+
+/**
+ * Listener of the progress of a send or retrieve job.
+ * Methods are called from the job threads ; implementations have to be thread-safe.
+ */
+public interface QPHRMJobListener {
+
+    /**
+     * called each time images are processed or data are transferred
+     *
+     * @param nProcessed number of processed images
+     * @param nTotal total number of images of the job
+     * @param nBytes number of transferred bytes
+     */
+    default void onProgress(int nProcessed, int nTotal, long nBytes) {}
+
+    /**
+     * called when images are saved in a new destination folder
+     *
+     * @param folder
+     */
+    default void onDestinationFolder(String folder) {}
+
+    /**
+     * called for each warning or error message that should be reported to the user
+     *
+     * @param message
+     */
+    default void onMessage(String message) {}
+
+    /**
+     * called when new images have been saved in the QuPath project, e.g. to refresh the project in the UI
+     */
+    default void onProjectChanged() {}
+}
@@ -0,0 +1,140 @@
+package qupath.ext.biop.hrm.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structured result of a send or retrieve job : status of each image, destination folders and reported messages.
+ * The summary is filled by the job threads and can be read once the job is completed.
+ */
+public class QPHRMJobSummary {
+
+    /**
+     * Status of an image at the end of a job
+     */
+    public enum Status {
+        /** sent to HRM or retrieved from HRM */
+        DONE,
+        /** already on HRM or nothing to send */
+        SKIPPED,
+        FAILED
+    }
+
+    private int nImages;
+    private final List<ImageResult> results = new ArrayList<>();
+    private final Map<Status, Integer> counts = new EnumMap<>(Status.class);
+    private final List<String> destinationFolders = new ArrayList<>();
+    private final List<String> messages = new ArrayList<>();
+    private boolean cancelled = false;
+
+    public QPHRMJobSummary(int nImages) {
+        this.nImages = nImages;
+    }
+
+    /**
+     * add the status of an image
+     *
+     * @param imageName
+     * @param status
+     */
+    public synchronized void addResult(String imageName, Status status) {
+        this.results.add(new ImageResult(imageName, status));
+        this.counts.merge(status, 1, Integer::sum);
+    }
+
+    /**
+     * @param folder
+     * @return true if the folder is a new destination folder
+     */
+    public synchronized boolean addDestinationFolder(String folder) {
+        if (this.destinationFolders.contains(folder))
+            return false;
+        this.destinationFolders.add(folder);
+        return true;
+    }
+
+    public synchronized void addMessage(String message) {
+        this.messages.add(message);
+    }
+
+    /**
+     * update the number of images of the job, when images are discovered while the job is running
+     *
+     * @param nImages
+     */
+    public synchronized void setNbImages(int nImages) {
+        this.nImages = nImages;
+    }
+
+    public synchronized void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return the number of images of the job
+     */
+    public synchronized int getNbImages() {
+        return this.nImages;
+    }
+
+    /**
+     * @param status
+     * @return the number of images with the given status
+     */
+    public synchronized int getCount(Status status) {
+        return this.counts.getOrDefault(status, 0);
+    }
+
+    /**
+     * @return the status of each processed image, in the order they have been processed
+     */
+    public synchronized List<ImageResult> getResults() {
+        return Collections.unmodifiableList(new ArrayList<>(this.results));
+    }
+
+    public synchronized List<String> getDestinationFolders() {
+        return Collections.unmodifiableList(new ArrayList<>(this.destinationFolders));
+    }
+
+    public synchronized List<String> getMessages() {
+        return Collections.unmodifiableList(new ArrayList<>(this.messages));
+    }
+
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Done : %d/%d  Skipped : %d/%d  Failed : %d/%d%s",
+                getCount(Status.DONE), this.nImages,
+                getCount(Status.SKIPPED), this.nImages,
+                getCount(Status.FAILED), this.nImages,
+                this.cancelled ? "  (cancelled)" : "");
+    }
+
+
+    /**
+     * Status of one image
+     */
+    public static class ImageResult {
+        private final String imageName;
+        private final Status status;
+
+        private ImageResult(String imageName, Status status) {
+            this.imageName = imageName;
+            this.status = status;
+        }
+
+        public String getImageName() {
+            return this.imageName;
+        }
+
+        public Status getStatus() {
+            return this.status;
+        }
+    }
+}
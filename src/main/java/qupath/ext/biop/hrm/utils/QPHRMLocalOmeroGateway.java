@@ -0,0 +1,491 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.annotations.TagAnnotationWrapper;
+import fr.igred.omero.repository.DatasetWrapper;
+import fr.igred.omero.repository.ImageWrapper;
+import omero.gateway.model.DatasetData;
+import omero.gateway.model.ImageData;
+import omero.gateway.model.TagAnnotationData;
+import omero.model.DatasetI;
+import omero.model.ImageI;
+import omero.model.TagAnnotationI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServerBuilder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Local stand-in for {@link QPHRMOmeroClientGateway}, to measure and test the OMERO send and retrieve paths
+ * without an OMERO server.
+ * <p>
+ * Projects, datasets, images and tags are kept in an in-memory catalog ; the files of the images and the attachments
+ * are stored in a local folder. Each call takes the configured latency and each file transfer is limited to the
+ * configured bandwidth. The gateway counts the calls and the transferred bytes.
+ * <p>
+ * The server URI is the storage folder ; images are registered in a QuPath project with the URI of their stored file,
+ * so that they can be opened without OMERO.
+ */
+public class QPHRMLocalOmeroGateway implements QPHRMOmeroGateway {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMLocalOmeroGateway.class);
+    private static final List<String> COMPANION_EXTENSIONS = List.of(".ics", ".ids");
+
+    private final File storageFolder;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<Long, String> projects = new ConcurrentHashMap<>();
+    private final Map<Long, LocalDataset> datasets = new ConcurrentHashMap<>();
+    private final Map<Long, LocalImage> images = new ConcurrentHashMap<>();
+    private final Map<Long, TagAnnotationWrapper> tags = new ConcurrentHashMap<>();
+    private final AtomicLong nCalls = new AtomicLong();
+    private final AtomicLong nTransferredBytes = new AtomicLong();
+    private String userName = "local";
+    private long latencyMs = 0;
+    private long bandwidth = 0;
+
+    /**
+     * @param storageFolder folder where the files of the images and the attachments are stored
+     */
+    public QPHRMLocalOmeroGateway(File storageFolder) {
+        this.storageFolder = storageFolder;
+    }
+
+    /**
+     * @param userName name of the logged-in user
+     * @return
+     */
+    public QPHRMLocalOmeroGateway setUserName(String userName) {
+        this.userName = userName;
+        return this;
+    }
+
+    /**
+     * @param latencyMs time taken by each call, in ms
+     * @return
+     */
+    public QPHRMLocalOmeroGateway setLatencyMs(long latencyMs) {
+        this.latencyMs = Math.max(0, latencyMs);
+        return this;
+    }
+
+    /**
+     * @param bandwidth maximum speed of each file transfer, in bytes per second ; 0 for no limit
+     * @return
+     */
+    public QPHRMLocalOmeroGateway setBandwidth(long bandwidth) {
+        this.bandwidth = Math.max(0, bandwidth);
+        return this;
+    }
+
+    /**
+     * add a project to the catalog
+     *
+     * @param name
+     * @return the id of the project
+     */
+    public long addProject(String name) {
+        long id = this.nextId.getAndIncrement();
+        this.projects.put(id, name);
+        return id;
+    }
+
+    /**
+     * add a dataset to the catalog
+     *
+     * @param name
+     * @param projectId id of the parent project ; -1 for an orphaned dataset
+     * @return the id of the dataset
+     */
+    public long addDataset(String name, long projectId) {
+        long id = this.nextId.getAndIncrement();
+        this.datasets.put(id, new LocalDataset(newDataset(id, name), projectId));
+        return id;
+    }
+
+    /**
+     * add an image to the catalog, without latency ; the file is copied in the storage folder
+     *
+     * @param datasetId id of the parent dataset ; -1 for an orphaned image
+     * @param file file of the image
+     * @return the id of the image
+     * @throws IOException
+     */
+    public long addImage(long datasetId, File file) throws IOException {
+        long id = this.nextId.getAndIncrement();
+        File imageFolder = new File(new File(this.storageFolder, "images"), String.valueOf(id));
+        File storedFile = QPHRMFileTransfer.copyFileToDirectory(file, imageFolder).getFile();
+        this.images.put(id, new LocalImage(newImage(id, file.getName()), datasetId, List.of(storedFile)));
+        return id;
+    }
+
+    /**
+     * @return the number of calls to the gateway
+     */
+    public long getNbCalls() {
+        return this.nCalls.get();
+    }
+
+    /**
+     * @return the number of bytes uploaded and downloaded
+     */
+    public long getNbTransferredBytes() {
+        return this.nTransferredBytes.get();
+    }
+
+    /**
+     * @param imageId
+     * @return the key-value pairs linked to the image, by namespace
+     */
+    public Map<String, Map<String, String>> getKeyValues(long imageId) {
+        LocalImage image = this.images.get(imageId);
+        if (image == null)
+            return Map.of();
+        synchronized (image) {
+            return new LinkedHashMap<>(image.keyValues);
+        }
+    }
+
+    /**
+     * @param imageId
+     * @return the files attached to the image
+     */
+    public List<File> getAttachments(long imageId) {
+        LocalImage image = this.images.get(imageId);
+        if (image == null)
+            return List.of();
+        synchronized (image) {
+            return new ArrayList<>(image.attachments);
+        }
+    }
+
+    @Override
+    public String getUserName() {
+        return this.userName;
+    }
+
+    @Override
+    public URI getServerURI() {
+        return this.storageFolder.toURI();
+    }
+
+    @Override
+    public String getImageURI(long imageId) throws IOException {
+        return findLocalImage(imageId).files.get(0).getAbsolutePath();
+    }
+
+    @Override
+    public ImageServerBuilder<BufferedImage> getImageServerBuilder() {
+        return null;
+    }
+
+    @Override
+    public ImageWrapper getImage(long imageId) throws IOException {
+        return getLocalImage(imageId).wrapper;
+    }
+
+    @Override
+    public QPHRMOmeroParentCache.Parent getImageParent(long imageId) throws IOException {
+        LocalDataset dataset = this.datasets.get(getLocalImage(imageId).datasetId);
+        if (dataset == null)
+            return QPHRMOmeroParentCache.NONE;
+        return new QPHRMOmeroParentCache.Parent(dataset.wrapper.getId(), dataset.wrapper.getName());
+    }
+
+    @Override
+    public QPHRMOmeroParentCache.Parent getDatasetParent(long datasetId) throws IOException {
+        long projectId = getLocalDataset(datasetId).projectId;
+        String projectName = this.projects.get(projectId);
+        if (projectName == null)
+            return QPHRMOmeroParentCache.NONE;
+        return new QPHRMOmeroParentCache.Parent(projectId, projectName);
+    }
+
+    @Override
+    public List<File> download(ImageWrapper image, File destinationFolder, LongConsumer progressListener) throws IOException {
+        List<File> downloadedFiles = new ArrayList<>();
+        for (File file : getLocalImage(image.getId()).files)
+            downloadedFiles.add(transfer(file, new File(destinationFolder, file.getName()), progressListener));
+        return downloadedFiles;
+    }
+
+    @Override
+    public DatasetWrapper getDataset(long datasetId) throws IOException {
+        return getLocalDataset(datasetId).wrapper;
+    }
+
+    @Override
+    public DatasetWrapper createDataset(String name, String description) throws IOException {
+        roundTrip();
+        return this.datasets.get(addDataset(name, -1)).wrapper;
+    }
+
+    @Override
+    public List<ImageWrapper> getImages(DatasetWrapper dataset) throws IOException {
+        roundTrip();
+        return this.images.values().stream()
+                .filter(image -> image.datasetId == dataset.getId())
+                .map(image -> image.wrapper)
+                .sorted(Comparator.comparingLong(ImageWrapper::getId))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public long importImage(DatasetWrapper dataset, File image) throws IOException {
+        getLocalDataset(dataset.getId());
+        return storeImage(dataset.getId(), image);
+    }
+
+    @Override
+    public Map<File, List<Long>> importImages(DatasetWrapper dataset, List<File> images, int nUploadThreads) throws IOException {
+        getLocalDataset(dataset.getId());
+
+        // the files are uploaded in parallel, each one at the configured bandwidth
+        ExecutorService uploadThreadPool = Executors.newFixedThreadPool(Math.max(1, nUploadThreads),
+                ThreadTools.createThreadFactory("hrm-local-upload-", true));
+        try {
+            Map<File, Future<Long>> uploads = new LinkedHashMap<>();
+            for (File image : images)
+                uploads.put(image, uploadThreadPool.submit(() -> storeImage(dataset.getId(), image)));
+
+            Map<File, List<Long>> ids = new LinkedHashMap<>();
+            for (Map.Entry<File, Future<Long>> upload : uploads.entrySet()) {
+                try {
+                    ids.put(upload.getKey(), List.of(upload.getValue().get()));
+                } catch (ExecutionException e) {
+                    logger.error("Cannot import " + upload.getKey() + " in dataset '" + dataset.getName() + "'", e.getCause());
+                }
+            }
+            return ids;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import in dataset '" + dataset.getName() + "' has been interrupted", e);
+        } finally {
+            uploadThreadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * upload the file of a new image of the dataset, with its companion file if any (e.g. the .ids file of an .ics file)
+     *
+     * @param datasetId
+     * @param file
+     * @return the id of the new image
+     * @throws IOException
+     */
+    private long storeImage(long datasetId, File file) throws IOException {
+        long id = this.nextId.getAndIncrement();
+        File imageFolder = new File(new File(this.storageFolder, "images"), String.valueOf(id));
+        List<File> storedFiles = new ArrayList<>();
+        for (File imageFile : getImageFiles(file))
+            storedFiles.add(transfer(imageFile, new File(imageFolder, imageFile.getName()), bytes -> {}));
+        this.images.put(id, new LocalImage(newImage(id, file.getName()), datasetId, storedFiles));
+        return id;
+    }
+
+    /**
+     * @param file
+     * @return the file, followed by its companion files that exist
+     */
+    private static List<File> getImageFiles(File file) {
+        List<File> files = new ArrayList<>();
+        files.add(file);
+        String name = file.getName();
+        int extensionIndex = name.lastIndexOf('.');
+        if (extensionIndex < 0 || !COMPANION_EXTENSIONS.contains(name.substring(extensionIndex).toLowerCase()))
+            return files;
+        for (String extension : COMPANION_EXTENSIONS) {
+            File companion = new File(file.getParentFile(), name.substring(0, extensionIndex) + extension);
+            if (!companion.getName().equalsIgnoreCase(name) && companion.isFile())
+                files.add(companion);
+        }
+        return files;
+    }
+
+    @Override
+    public List<TagAnnotationWrapper> getTags() throws IOException {
+        roundTrip();
+        return new ArrayList<>(this.tags.values());
+    }
+
+    @Override
+    public TagAnnotationWrapper createTag(String name) throws IOException {
+        roundTrip();
+        long id = this.nextId.getAndIncrement();
+        TagAnnotationData data = new TagAnnotationData(new TagAnnotationI(id, true));
+        data.setTagValue(name);
+        TagAnnotationWrapper tag = new TagAnnotationWrapper(data);
+        this.tags.put(id, tag);
+        return tag;
+    }
+
+    @Override
+    public List<String> getTagNames(ImageWrapper image) throws IOException {
+        LocalImage localImage = getLocalImage(image.getId());
+        synchronized (localImage) {
+            return localImage.tagIds.stream()
+                    .map(this.tags::get)
+                    .map(TagAnnotationWrapper::getName)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public void link(QPHRMOmeroAnnotations annotations) throws IOException {
+        roundTrip();
+        for (Map.Entry<Long, List<TagAnnotationWrapper>> entry : annotations.getTags().entrySet()) {
+            LocalImage image = findLocalImage(entry.getKey());
+            synchronized (image) {
+                for (TagAnnotationWrapper tag : entry.getValue()) {
+                    if (!this.tags.containsKey(tag.getId()))
+                        throw new IOException("Tag " + tag.getId() + " does not exist");
+                    image.tagIds.add(tag.getId());
+                }
+            }
+        }
+        for (Map.Entry<Long, Map<String, Map<String, String>>> entry : annotations.getKeyValues().entrySet()) {
+            LocalImage image = findLocalImage(entry.getKey());
+            synchronized (image) {
+                entry.getValue().forEach((namespace, keyValues) ->
+                        image.keyValues.computeIfAbsent(namespace, ns -> new LinkedHashMap<>()).putAll(keyValues));
+            }
+        }
+    }
+
+    @Override
+    public void addFile(ImageWrapper image, File file) throws IOException {
+        LocalImage localImage = findLocalImage(image.getId());
+        File filesFolder = new File(new File(this.storageFolder, "files"), String.valueOf(this.nextId.getAndIncrement()));
+        File storedFile = transfer(file, new File(filesFolder, file.getName()), bytes -> {});
+        synchronized (localImage) {
+            localImage.attachments.add(storedFile);
+        }
+    }
+
+    /**
+     * @param imageId
+     * @return the image, after one call latency
+     * @throws IOException if the image does not exist
+     */
+    private LocalImage getLocalImage(long imageId) throws IOException {
+        roundTrip();
+        return findLocalImage(imageId);
+    }
+
+    private LocalImage findLocalImage(long imageId) throws IOException {
+        LocalImage image = this.images.get(imageId);
+        if (image == null)
+            throw new IOException("Image " + imageId + " does not exist");
+        return image;
+    }
+
+    /**
+     * @param datasetId
+     * @return the dataset, after one call latency
+     * @throws IOException if the dataset does not exist
+     */
+    private LocalDataset getLocalDataset(long datasetId) throws IOException {
+        roundTrip();
+        LocalDataset dataset = this.datasets.get(datasetId);
+        if (dataset == null)
+            throw new IOException("Dataset " + datasetId + " does not exist");
+        return dataset;
+    }
+
+    /**
+     * copy the file after one call latency, at most at the configured bandwidth
+     *
+     * @param source
+     * @param destination
+     * @param progressListener
+     * @return the copied file
+     * @throws IOException
+     */
+    private File transfer(File source, File destination, LongConsumer progressListener) throws IOException {
+        roundTrip();
+        long start = System.nanoTime();
+        QPHRMFileTransfer.TransferResult result = QPHRMFileTransfer.copyFile(source, destination, false, progressListener);
+        this.nTransferredBytes.addAndGet(result.getSize());
+        if (this.bandwidth > 0)
+            sleep(result.getSize() * 1000 / this.bandwidth - (System.nanoTime() - start) / 1_000_000);
+        return result.getFile();
+    }
+
+    private void roundTrip() throws IOException {
+        this.nCalls.incrementAndGet();
+        sleep(this.latencyMs);
+        if (Thread.currentThread().isInterrupted())
+            throw new IOException("Call to the local OMERO gateway has been interrupted");
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0)
+            return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ImageWrapper newImage(long id, String name) {
+        ImageData data = new ImageData(new ImageI(id, true));
+        data.setName(name);
+        return new ImageWrapper(data);
+    }
+
+    private static DatasetWrapper newDataset(long id, String name) {
+        DatasetData data = new DatasetData(new DatasetI(id, true));
+        data.setName(name);
+        return new DatasetWrapper(data);
+    }
+
+
+    /**
+     * Dataset of the catalog
+     */
+    private static class LocalDataset {
+        private final DatasetWrapper wrapper;
+        private final long projectId;
+
+        private LocalDataset(DatasetWrapper wrapper, long projectId) {
+            this.wrapper = wrapper;
+            this.projectId = projectId;
+        }
+    }
+
+    /**
+     * Image of the catalog, with its annotations
+     */
+    private static class LocalImage {
+        private final ImageWrapper wrapper;
+        private final long datasetId;
+        private final List<File> files;
+        private final Set<Long> tagIds = new LinkedHashSet<>();
+        private final Map<String, Map<String, String>> keyValues = new LinkedHashMap<>();
+        private final List<File> attachments = new ArrayList<>();
+
+        private LocalImage(ImageWrapper wrapper, long datasetId, List<File> files) {
+            this.wrapper = wrapper;
+            this.datasetId = datasetId;
+            this.files = files;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.annotations.TagAnnotationWrapper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tags and key-value pairs to link to OMERO images, collected so that they are saved together
+ * with {@link QPHRMOmeroGateway#link(QPHRMOmeroAnnotations)}.
+ */
+public class QPHRMOmeroAnnotations {
+
+    private final Map<Long, List<TagAnnotationWrapper>> tags = new LinkedHashMap<>();
+    private final Map<Long, Map<String, Map<String, String>>> keyValues = new LinkedHashMap<>();
+
+    /**
+     * @param imageId
+     * @param tags existing tags to link to the image
+     * @return
+     */
+    public QPHRMOmeroAnnotations addTags(long imageId, List<TagAnnotationWrapper> tags) {
+        this.tags.computeIfAbsent(imageId, id -> new ArrayList<>()).addAll(tags);
+        return this;
+    }
+
+    /**
+     * @param imageId
+     * @param namespace namespace of the key-value pairs
+     * @param keyValues key-value pairs to link to the image
+     * @return
+     */
+    public QPHRMOmeroAnnotations addKeyValues(long imageId, String namespace, Map<String, String> keyValues) {
+        this.keyValues.computeIfAbsent(imageId, id -> new LinkedHashMap<>())
+                .computeIfAbsent(namespace, ns -> new LinkedHashMap<>())
+                .putAll(keyValues);
+        return this;
+    }
+
+    /**
+     * @return the tags to link, by image id
+     */
+    public Map<Long, List<TagAnnotationWrapper>> getTags() {
+        return this.tags;
+    }
+
+    /**
+     * @return the key-value pairs to link, by namespace and by image id
+     */
+    public Map<Long, Map<String, Map<String, String>>> getKeyValues() {
+        return this.keyValues;
+    }
+
+    /**
+     * @return true if there is nothing to link
+     */
+    public boolean isEmpty() {
+        return this.tags.isEmpty() && this.keyValues.isEmpty();
+    }
+}
@@ -0,0 +1,366 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.Client;
+import fr.igred.omero.annotations.MapAnnotationWrapper;
+import fr.igred.omero.annotations.TagAnnotationWrapper;
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import fr.igred.omero.repository.DatasetWrapper;
+import fr.igred.omero.repository.ImageWrapper;
+import ome.formats.OMEROMetadataStoreClient;
+import ome.formats.importer.ImportCandidates;
+import ome.formats.importer.ImportConfig;
+import ome.formats.importer.ImportContainer;
+import ome.formats.importer.ImportLibrary;
+import ome.formats.importer.OMEROWrapper;
+import ome.formats.importer.cli.ErrorHandler;
+import omero.ServerError;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.model.Annotation;
+import omero.model.IObject;
+import omero.model.ImageAnnotationLink;
+import omero.model.ImageAnnotationLinkI;
+import omero.model.ImageI;
+import omero.model.NamedValue;
+import omero.model.Pixels;
+import omero.model.TagAnnotationI;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.servers.omero.raw.OmeroRawImageServerBuilder;
+import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ImageServerBuilder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * {@link QPHRMOmeroGateway} running on the OMERO server of a logged-in client.
+ * <p>
+ * Downloads and imports run on a session of the pool, if any, not to wait for the other workers ;
+ * parent containers are read through a {@link QPHRMOmeroParentCache}.
+ */
+public class QPHRMOmeroClientGateway implements QPHRMOmeroGateway {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMOmeroClientGateway.class);
+
+    private final OmeroRawClient client;
+    private QPHRMOmeroParentCache parentCache;
+    private QPHRMOmeroSessionPool sessionPool;
+
+    public QPHRMOmeroClientGateway(OmeroRawClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @param parentCache cache of the parent containers, shared by the workers of a job ;
+     *                    if null, the gateway uses its own cache
+     * @return
+     */
+    public QPHRMOmeroClientGateway setParentCache(QPHRMOmeroParentCache parentCache) {
+        this.parentCache = parentCache;
+        return this;
+    }
+
+    /**
+     * @param sessionPool pool of sessions of the client, shared by the workers of a job ;
+     *                    if null, files are transferred with the client session
+     * @return
+     */
+    public QPHRMOmeroClientGateway setSessionPool(QPHRMOmeroSessionPool sessionPool) {
+        this.sessionPool = sessionPool;
+        return this;
+    }
+
+    /**
+     * @return the OMERO client of the gateway
+     */
+    public OmeroRawClient getClient() {
+        return this.client;
+    }
+
+    @Override
+    public String getUserName() {
+        return this.client.getLoggedInUser().getUserName();
+    }
+
+    @Override
+    public URI getServerURI() {
+        return this.client.getServerURI();
+    }
+
+    @Override
+    public String getImageURI(long imageId) {
+        return getServerURI().toString() + String.format("/webclient/?show=image-%d", imageId);
+    }
+
+    @Override
+    public ImageServerBuilder<BufferedImage> getImageServerBuilder() {
+        return new OmeroRawImageServerBuilder();
+    }
+
+    @Override
+    public ImageWrapper getImage(long imageId) throws IOException {
+        try {
+            return this.client.getSimpleClient().getImage(imageId);
+        } catch (ServiceException | AccessException | ExecutionException e) {
+            throw new IOException("Cannot read image " + imageId + " from OMERO", e);
+        }
+    }
+
+    @Override
+    public QPHRMOmeroParentCache.Parent getImageParent(long imageId) throws IOException {
+        try {
+            return getParentCache().getImageParent(imageId);
+        } catch (DSOutOfServiceException | ServerError e) {
+            throw new IOException("Cannot read the parent dataset of image " + imageId, e);
+        }
+    }
+
+    @Override
+    public QPHRMOmeroParentCache.Parent getDatasetParent(long datasetId) throws IOException {
+        try {
+            return getParentCache().getDatasetParent(datasetId);
+        } catch (DSOutOfServiceException | ServerError e) {
+            throw new IOException("Cannot read the parent project of dataset " + datasetId, e);
+        }
+    }
+
+    @Override
+    public List<File> download(ImageWrapper image, File destinationFolder, LongConsumer progressListener) throws IOException {
+        Client session = borrowSession();
+        try {
+            // download original files directly in the destination folder
+            List<File> downloadedFiles = new QPHRMOmeroDownloader(session)
+                    .setProgressListener(progressListener)
+                    .download(image.getId(), destinationFolder);
+
+            // images without fileset : download them in a staging folder and copy them in the destination folder
+            if (downloadedFiles.isEmpty())
+                downloadedFiles = downloadWithoutFileset(session, image, destinationFolder, progressListener);
+            return downloadedFiles;
+        } finally {
+            releaseSession(session);
+        }
+    }
+
+    /**
+     * download the image with the simple-omero-client API in a staging folder and copy it in the destination folder
+     *
+     * @param session OMERO session used for the download
+     * @param image
+     * @param destinationFolder
+     * @param progressListener
+     * @return the copied files
+     * @throws IOException
+     */
+    private static List<File> downloadWithoutFileset(Client session, ImageWrapper image, File destinationFolder,
+                                                     LongConsumer progressListener) throws IOException {
+        File stagingFolder = Files.createTempDirectory("qphrm-omero-").toFile();
+        try {
+            List<File> copiedFiles = new ArrayList<>();
+            for (File downloadedFile : image.download(session, stagingFolder.toString())) {
+                QPHRMFileTransfer.TransferResult result = QPHRMFileTransfer.copyFileToDirectory(downloadedFile, destinationFolder);
+                progressListener.accept(result.getSize());
+                copiedFiles.add(result.getFile());
+            }
+            return copiedFiles;
+        } catch (AccessException | OMEROServerError | ServiceException e) {
+            throw new IOException("Cannot download image " + image.getId() + " from OMERO", e);
+        } finally {
+            FileUtils.deleteQuietly(stagingFolder);
+        }
+    }
+
+    @Override
+    public DatasetWrapper getDataset(long datasetId) throws IOException {
+        try {
+            return this.client.getSimpleClient().getDataset(datasetId);
+        } catch (ServiceException | AccessException | ExecutionException e) {
+            throw new IOException("Cannot read dataset " + datasetId + " from OMERO", e);
+        }
+    }
+
+    @Override
+    public DatasetWrapper createDataset(String name, String description) throws IOException {
+        try {
+            DatasetWrapper dataset = new DatasetWrapper(name, description);
+            dataset.saveAndUpdate(this.client.getSimpleClient());
+            return dataset;
+        } catch (AccessException | ServiceException | ExecutionException e) {
+            throw new IOException("Cannot create dataset '" + name + "' on OMERO", e);
+        }
+    }
+
+    @Override
+    public List<ImageWrapper> getImages(DatasetWrapper dataset) throws IOException {
+        try {
+            return dataset.getImages(this.client.getSimpleClient());
+        } catch (AccessException | ServiceException | ExecutionException e) {
+            throw new IOException("Cannot list the images of dataset '" + dataset.getName() + "'", e);
+        }
+    }
+
+    @Override
+    public long importImage(DatasetWrapper dataset, File image) throws IOException {
+        try {
+            return dataset.importImage(this.client.getSimpleClient(), image.toString()).get(0);
+        } catch (OMEROServerError | ServiceException | AccessException | ExecutionException e) {
+            throw new IOException("Cannot import image " + image + " in dataset '" + dataset.getName() + "'", e);
+        }
+    }
+
+    @Override
+    public Map<File, List<Long>> importImages(DatasetWrapper dataset, List<File> images, int nUploadThreads) throws IOException {
+        Client session = borrowSession();
+        ExecutorService uploadThreadPool = Executors.newFixedThreadPool(Math.max(1, nUploadThreads),
+                ThreadTools.createThreadFactory("hrm-omero-upload-", true));
+        OMEROMetadataStoreClient store = null;
+        try {
+            ImportConfig config = new ImportConfig();
+            config.target.set("Dataset:" + dataset.getId());
+            config.username.set(session.getUser().getUserName());
+            config.email.set(session.getUser().getEmail());
+            store = session.getImportStore();
+
+            // all the files are imported with the same import store ; the ids are read from the pixels of each import
+            Map<File, List<Long>> ids = new LinkedHashMap<>();
+            try (OMEROWrapper reader = new OMEROWrapper(config)) {
+                ImportLibrary library = new ImportLibrary(store, reader);
+                String[] paths = images.stream().map(File::toString).toArray(String[]::new);
+                List<ImportContainer> containers = new ImportCandidates(reader, paths, new ErrorHandler(config)).getContainers();
+                if (containers == null)
+                    return ids;
+                for (int i = 0; i < containers.size(); i++) {
+                    ImportContainer container = containers.get(i);
+                    container.setTarget(dataset.asDataObject().asDataset());
+                    try {
+                        List<Pixels> pixels = library.importImage(container, uploadThreadPool, i);
+                        ids.put(container.getFile(), pixels.stream()
+                                .map(p -> p.getImage().getId().getValue())
+                                .distinct()
+                                .collect(Collectors.toList()));
+                    } catch (Throwable e) {
+                        logger.error("Cannot import " + container.getFile() + " in dataset '" + dataset.getName() + "'", e);
+                    }
+                }
+            }
+            return ids;
+        } catch (Exception e) {
+            throw new IOException("Cannot import images in dataset '" + dataset.getName() + "'", e);
+        } finally {
+            uploadThreadPool.shutdown();
+            if (store != null)
+                store.logout();
+            releaseSession(session);
+        }
+    }
+
+    @Override
+    public List<TagAnnotationWrapper> getTags() throws IOException {
+        try {
+            return this.client.getSimpleClient().getTags();
+        } catch (ServiceException | OMEROServerError e) {
+            throw new IOException("Cannot read the tags of " + getUserName(), e);
+        }
+    }
+
+    @Override
+    public TagAnnotationWrapper createTag(String name) throws IOException {
+        try {
+            return new TagAnnotationWrapper(this.client.getSimpleClient(), name, "");
+        } catch (ServiceException | AccessException | ExecutionException e) {
+            throw new IOException("Cannot create tag '" + name + "' on OMERO", e);
+        }
+    }
+
+    @Override
+    public List<String> getTagNames(ImageWrapper image) throws IOException {
+        try {
+            return image.getTags(this.client.getSimpleClient()).stream().map(TagAnnotationWrapper::getName).collect(Collectors.toList());
+        } catch (ServiceException | AccessException | ExecutionException e) {
+            throw new IOException("Cannot read the tags of image " + image.getId(), e);
+        }
+    }
+
+    @Override
+    public void link(QPHRMOmeroAnnotations annotations) throws IOException {
+        if (annotations.isEmpty())
+            return;
+
+        List<IObject> links = new ArrayList<>();
+        annotations.getTags().forEach((imageId, tags) -> {
+            for (TagAnnotationWrapper tag : tags)
+                links.add(linkToImage(imageId, new TagAnnotationI(tag.getId(), false)));
+        });
+        annotations.getKeyValues().forEach((imageId, keyValuesByNamespace) -> keyValuesByNamespace.forEach((namespace, keyValues) -> {
+            // convert key value pairs to omero-compatible object NamedValue
+            List<NamedValue> omeroKeyValues = new ArrayList<>();
+            keyValues.forEach((key, value) -> omeroKeyValues.add(new NamedValue(key, value)));
+
+            MapAnnotationWrapper mapAnnotationWrapper = new MapAnnotationWrapper();
+            mapAnnotationWrapper.setContent(omeroKeyValues);
+            mapAnnotationWrapper.setNameSpace(namespace);
+            links.add(linkToImage(imageId, (Annotation) mapAnnotationWrapper.asDataObject().asIObject()));
+        }));
+
+        try {
+            Client simpleClient = this.client.getSimpleClient();
+            simpleClient.getGateway().getUpdateService(simpleClient.getCtx()).saveAndReturnArray(links);
+        } catch (DSOutOfServiceException | ServerError e) {
+            throw new IOException("Cannot save " + links.size() + " annotation links on OMERO", e);
+        }
+    }
+
+    /**
+     * @param imageId
+     * @param annotation
+     * @return a new link between the image and the annotation
+     */
+    private static IObject linkToImage(long imageId, Annotation annotation) {
+        ImageAnnotationLink link = new ImageAnnotationLinkI();
+        link.setParent(new ImageI(imageId, false));
+        link.setChild(annotation);
+        return link;
+    }
+
+    @Override
+    public void addFile(ImageWrapper image, File file) throws IOException {
+        try {
+            image.addFile(this.client.getSimpleClient(), file);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot attach " + file.getName() + " to image " + image.getId(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Upload of " + file.getName() + " has been interrupted", e);
+        }
+    }
+
+    private synchronized QPHRMOmeroParentCache getParentCache() {
+        if (this.parentCache == null)
+            this.parentCache = new QPHRMOmeroParentCache(this.client.getSimpleClient());
+        return this.parentCache;
+    }
+
+    private Client borrowSession() {
+        return this.sessionPool == null ? this.client.getSimpleClient() : this.sessionPool.borrowOr(this.client.getSimpleClient());
+    }
+
+    private void releaseSession(Client session) {
+        if (this.sessionPool != null)
+            this.sessionPool.release(session);
+    }
+}
@@ -0,0 +1,336 @@
+package qupath.ext.biop.hrm.utils;
+
+import Ice.AsyncResult;
+import fr.igred.omero.Client;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.api.RawFileStorePrx;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.model.FilesetEntry;
+import omero.model.IObject;
+import omero.model.OriginalFile;
+import omero.sys.ParametersI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Download the original files of an OMERO image.
+ * <p>
+ * Files of the image fileset are downloaded in parallel. For each file, several chunk requests are kept in flight
+ * on the raw file store, and chunks are written to disk with positional writes as soon as they arrive.
+ * Files are written under a temporary name, resumed from the partial file if any, checked against the OMERO
+ * SHA-1 hash when available, and atomically renamed once complete.
+ */
+public class QPHRMOmeroDownloader {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMOmeroDownloader.class);
+
+    /** default size of a chunk request */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /** default number of chunk requests in flight per file */
+    public static final int DEFAULT_CHUNKS_IN_FLIGHT = 4;
+
+    /** default number of files downloaded in parallel */
+    public static final int DEFAULT_PARALLEL_FILES = 2;
+
+    /** query the original files of the fileset of an image */
+    private static final String FILESET_QUERY = "select fse from FilesetEntry fse " +
+            "join fetch fse.originalFile f " +
+            "left outer join fetch f.hasher " +
+            "where fse.fileset.id in (select img.fileset.id from Image img where img.id = :iid)";
+
+    /** query the fileset of images */
+    private static final String FILESET_ID_QUERY = "select img.id, img.fileset.id from Image img where img.id in (:ids)";
+
+    /** OMERO context to read across all groups */
+    private static final Map<String, String> ALL_GROUPS_CONTEXT = Map.of("omero.group", "-1");
+
+    private final Client client;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int chunksInFlight = DEFAULT_CHUNKS_IN_FLIGHT;
+    private int parallelFiles = DEFAULT_PARALLEL_FILES;
+    private LongConsumer progressListener = bytes -> {};
+
+    public QPHRMOmeroDownloader(Client client) {
+        this.client = client;
+    }
+
+    public QPHRMOmeroDownloader setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(64 * 1024, chunkSize);
+        return this;
+    }
+
+    public QPHRMOmeroDownloader setChunksInFlight(int chunksInFlight) {
+        this.chunksInFlight = Math.max(1, chunksInFlight);
+        return this;
+    }
+
+    public QPHRMOmeroDownloader setParallelFiles(int parallelFiles) {
+        this.parallelFiles = Math.max(1, parallelFiles);
+        return this;
+    }
+
+    /**
+     * @param progressListener called with the number of bytes written each time a chunk is written to disk
+     * @return
+     */
+    public QPHRMOmeroDownloader setProgressListener(LongConsumer progressListener) {
+        this.progressListener = progressListener == null ? bytes -> {} : progressListener;
+        return this;
+    }
+
+    /**
+     * List the original files of the image fileset
+     *
+     * @param imageId
+     * @return the original files, empty if the image has no fileset
+     * @throws DSOutOfServiceException
+     * @throws ServerError
+     */
+    public List<OriginalFile> listOriginalFiles(long imageId) throws DSOutOfServiceException, ServerError {
+        IQueryPrx queryService = this.client.getGateway().getQueryService(this.client.getCtx());
+        ParametersI params = new ParametersI();
+        params.add("iid", omero.rtypes.rlong(imageId));
+
+        List<OriginalFile> files = new ArrayList<>();
+        for (IObject object : queryService.findAllByQuery(FILESET_QUERY, params, ALL_GROUPS_CONTEXT))
+            files.add(((FilesetEntry) object).getOriginalFile());
+        return files;
+    }
+
+    /**
+     * Get the fileset of images, i.e. the set of original files they are read from.
+     * Images of a multi-series file share the same fileset.
+     *
+     * @param client
+     * @param imageIds
+     * @return the fileset id by image id ; images without fileset are not included
+     * @throws DSOutOfServiceException
+     * @throws ServerError
+     */
+    public static Map<Long, Long> getFilesetIds(Client client, Collection<Long> imageIds) throws DSOutOfServiceException, ServerError {
+        Map<Long, Long> filesetIds = new HashMap<>();
+        if (imageIds.isEmpty())
+            return filesetIds;
+
+        IQueryPrx queryService = client.getGateway().getQueryService(client.getCtx());
+        ParametersI params = new ParametersI();
+        params.addIds(imageIds);
+        for (List<RType> row : queryService.projection(FILESET_ID_QUERY, params, ALL_GROUPS_CONTEXT))
+            filesetIds.put((Long) omero.rtypes.unwrap(row.get(0)), (Long) omero.rtypes.unwrap(row.get(1)));
+        return filesetIds;
+    }
+
+    /**
+     * Download all the original files of an image in the destination folder, keeping the fileset directory structure.
+     *
+     * @param imageId
+     * @param destinationFolder
+     * @return the downloaded files, empty if the image has no fileset (i.e. images imported before OMERO 5)
+     * @throws IOException
+     */
+    public List<File> download(long imageId, File destinationFolder) throws IOException {
+        List<OriginalFile> originalFiles;
+        try {
+            originalFiles = listOriginalFiles(imageId);
+        } catch (DSOutOfServiceException | ServerError e) {
+            throw new IOException("Cannot list the original files of image " + imageId, e);
+        }
+        if (originalFiles.isEmpty())
+            return List.of();
+
+        String commonPath = getCommonPath(originalFiles);
+
+        // download files in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.parallelFiles, originalFiles.size()),
+                ThreadTools.createThreadFactory("hrm-omero-download-", true));
+        try {
+            List<Future<File>> futures = new ArrayList<>();
+            for (OriginalFile originalFile : originalFiles) {
+                String relativePath = originalFile.getPath().getValue().substring(commonPath.length());
+                File destination = new File(new File(destinationFolder, relativePath), originalFile.getName().getValue());
+                futures.add(executor.submit(() -> downloadFile(originalFile, destination)));
+            }
+
+            List<File> files = new ArrayList<>();
+            for (Future<File> future : futures)
+                files.add(future.get());
+            return files;
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot download image " + imageId, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download of image " + imageId + " interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Download one original file, with several chunks requests in flight
+     *
+     * @param originalFile
+     * @param destination
+     * @return the downloaded file
+     * @throws IOException
+     */
+    private File downloadFile(OriginalFile originalFile, File destination) throws IOException, ServerError, DSOutOfServiceException {
+        long fileId = originalFile.getId().getValue();
+        long size = originalFile.getSize().getValue();
+        File parent = destination.getParentFile();
+        if (!parent.isDirectory())
+            Files.createDirectories(parent.toPath());
+
+        MessageDigest digest = getDigest(originalFile);
+        File partialFile = QPHRMFileTransfer.getPartialFile(destination);
+
+        RawFileStorePrx store = this.client.getGateway().getRawFileService(this.client.getCtx());
+        try (FileChannel channel = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            store.setFileId(fileId, ALL_GROUPS_CONTEXT);
+
+            // chunks are written in order, so the partial file is always contiguous and can be resumed
+            long offset = Math.min(channel.size(), size);
+            channel.truncate(offset);
+            if (offset > 0) {
+                logger.info("Resume the download of " + destination + " from byte " + offset);
+                if (digest != null)
+                    updateDigest(digest, channel, offset);
+                this.progressListener.accept(offset);
+            }
+
+            Deque<PendingChunk> pendingChunks = new ArrayDeque<>();
+            long nextOffset = offset;
+            while (nextOffset < size || !pendingChunks.isEmpty()) {
+                // keep several requests in flight
+                while (pendingChunks.size() < this.chunksInFlight && nextOffset < size) {
+                    int length = (int) Math.min(this.chunkSize, size - nextOffset);
+                    pendingChunks.add(new PendingChunk(nextOffset, store.begin_read(nextOffset, length)));
+                    nextOffset += length;
+                }
+
+                // write the oldest chunk as soon as it arrives
+                PendingChunk chunk = pendingChunks.poll();
+                byte[] data = store.end_read(chunk.result);
+                if (digest != null)
+                    digest.update(data);
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                long position = chunk.offset;
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position);
+                this.progressListener.accept(data.length);
+
+                if (Thread.currentThread().isInterrupted())
+                    throw new IOException("Download of " + destination + " interrupted");
+            }
+            channel.force(true);
+
+            if (channel.size() != size)
+                throw new IOException("Download of " + destination + " is incomplete : " + channel.size() + " / " + size + " bytes");
+        } finally {
+            try {
+                store.close();
+            } catch (ServerError e) {
+                logger.warn("Cannot close the raw file store of file " + fileId);
+            }
+        }
+
+        // verify the downloaded data
+        if (digest != null) {
+            String hash = HexFormat.of().formatHex(digest.digest());
+            if (!hash.equalsIgnoreCase(originalFile.getHash().getValue())) {
+                Files.deleteIfExists(partialFile.toPath());
+                throw new IOException("Checksum mismatch for " + destination + " ; the file is deleted");
+            }
+        }
+
+        QPHRMFileTransfer.moveAtomically(partialFile.toPath(), destination.toPath());
+        return destination;
+    }
+
+    /**
+     * @param originalFile
+     * @return a SHA-1 digest if OMERO provides a SHA-1 hash for this file, null otherwise
+     */
+    private static MessageDigest getDigest(OriginalFile originalFile) {
+        if (originalFile.getHash() == null || originalFile.getHasher() == null || originalFile.getHasher().getValue() == null ||
+                !originalFile.getHasher().getValue().getValue().startsWith("SHA1"))
+            return null;
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * update the digest with the beginning of a file
+     *
+     * @param digest
+     * @param channel
+     * @param length
+     * @throws IOException
+     */
+    private static void updateDigest(MessageDigest digest, FileChannel channel, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                break;
+            position += read;
+            digest.update(buffer.flip());
+        }
+    }
+
+    /**
+     * @param originalFiles
+     * @return the longest common server path of the files
+     */
+    private static String getCommonPath(List<OriginalFile> originalFiles) {
+        String common = originalFiles.get(0).getPath().getValue();
+        for (OriginalFile file : originalFiles) {
+            String path = file.getPath().getValue();
+            while (!path.startsWith(common))
+                common = common.substring(0, Math.max(0, common.lastIndexOf('/', common.length() - 2) + 1));
+        }
+        return common;
+    }
+
+    /**
+     * chunk request in flight
+     */
+    private static class PendingChunk {
+        private final long offset;
+        private final AsyncResult result;
+
+        private PendingChunk(long offset, AsyncResult result) {
+            this.offset = offset;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.annotations.TagAnnotationWrapper;
+import fr.igred.omero.repository.DatasetWrapper;
+import fr.igred.omero.repository.ImageWrapper;
+import qupath.lib.images.servers.ImageServerBuilder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * OMERO operations used to send images to HRM and to retrieve the deconvolved images.
+ * <p>
+ * {@link QPHRMOmeroClientGateway} runs them on an OMERO server ; {@link QPHRMLocalOmeroGateway} runs them on a local
+ * folder, to measure and test the send and retrieve paths without a server.
+ * Errors of the server are reported as {@link IOException}.
+ */
+public interface QPHRMOmeroGateway {
+
+    /**
+     * @return the name of the logged-in user
+     */
+    String getUserName();
+
+    /**
+     * @return the URI of the OMERO server
+     */
+    URI getServerURI();
+
+    /**
+     * @param imageId
+     * @return the URI of the image, to register it in a QuPath project
+     * @throws IOException
+     */
+    String getImageURI(long imageId) throws IOException;
+
+    /**
+     * @return the builder of the images registered from this gateway ; null to choose it from the image URI
+     */
+    ImageServerBuilder<BufferedImage> getImageServerBuilder();
+
+    /**
+     * @param imageId
+     * @return the image
+     * @throws IOException
+     */
+    ImageWrapper getImage(long imageId) throws IOException;
+
+    /**
+     * @param imageId
+     * @return the parent dataset of the image ; {@link QPHRMOmeroParentCache#NONE} if the image is orphaned
+     * @throws IOException
+     */
+    QPHRMOmeroParentCache.Parent getImageParent(long imageId) throws IOException;
+
+    /**
+     * @param datasetId
+     * @return the parent project of the dataset ; {@link QPHRMOmeroParentCache#NONE} if the dataset is orphaned
+     * @throws IOException
+     */
+    QPHRMOmeroParentCache.Parent getDatasetParent(long datasetId) throws IOException;
+
+    /**
+     * download the original files of the image
+     *
+     * @param image
+     * @param destinationFolder
+     * @param progressListener listener of the number of downloaded bytes
+     * @return the downloaded files
+     * @throws IOException
+     */
+    List<File> download(ImageWrapper image, File destinationFolder, LongConsumer progressListener) throws IOException;
+
+    /**
+     * @param datasetId
+     * @return the dataset
+     * @throws IOException
+     */
+    DatasetWrapper getDataset(long datasetId) throws IOException;
+
+    /**
+     * create an orphaned dataset
+     *
+     * @param name
+     * @param description
+     * @return the new dataset
+     * @throws IOException
+     */
+    DatasetWrapper createDataset(String name, String description) throws IOException;
+
+    /**
+     * @param dataset
+     * @return the images of the dataset
+     * @throws IOException
+     */
+    List<ImageWrapper> getImages(DatasetWrapper dataset) throws IOException;
+
+    /**
+     * import the image in the dataset
+     *
+     * @param dataset
+     * @param image file to import
+     * @return the id of the imported image
+     * @throws IOException
+     */
+    long importImage(DatasetWrapper dataset, File image) throws IOException;
+
+    /**
+     * import the images in the dataset
+     *
+     * @param dataset
+     * @param images files to import
+     * @param nUploadThreads number of files uploaded in parallel
+     * @return the ids of the created images, by imported file ; the files that could not be imported are missing.
+     * The imported file may be a companion of the given one (e.g. the .ics file of an .ids file).
+     * @throws IOException
+     */
+    Map<File, List<Long>> importImages(DatasetWrapper dataset, List<File> images, int nUploadThreads) throws IOException;
+
+    /**
+     * @return the tags of the user
+     * @throws IOException
+     */
+    List<TagAnnotationWrapper> getTags() throws IOException;
+
+    /**
+     * @param name
+     * @return the new tag
+     * @throws IOException
+     */
+    TagAnnotationWrapper createTag(String name) throws IOException;
+
+    /**
+     * @param image
+     * @return the names of the tags linked to the image
+     * @throws IOException
+     */
+    List<String> getTagNames(ImageWrapper image) throws IOException;
+
+    /**
+     * link the tags and key-value pairs to their images, in one update
+     *
+     * @param annotations
+     * @throws IOException
+     */
+    void link(QPHRMOmeroAnnotations annotations) throws IOException;
+
+    /**
+     * upload the file and attach it to the image
+     *
+     * @param image
+     * @param file
+     * @throws IOException
+     */
+    void addFile(ImageWrapper image, File file) throws IOException;
+}
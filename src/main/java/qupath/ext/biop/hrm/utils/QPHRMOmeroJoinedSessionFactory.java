@@ -0,0 +1,80 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.ServiceException;
+import omero.gateway.exception.DSOutOfServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Create OMERO sessions joining the session of a logged-in client, i.e. with the credentials of the user
+ * but on their own connection, so that requests of different sessions are not serialized.
+ */
+public class QPHRMOmeroJoinedSessionFactory implements QPHRMOmeroSessionFactory {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMOmeroJoinedSessionFactory.class);
+
+    /** default port of OMERO servers */
+    public static final int DEFAULT_PORT = 4064;
+
+    private final OmeroRawClient client;
+    private final int port;
+
+    /**
+     * @param client logged-in client ; the sessions connect to the port of its server URI, or to the default port
+     */
+    public QPHRMOmeroJoinedSessionFactory(OmeroRawClient client) {
+        this(client, getPort(client));
+    }
+
+    /**
+     * @param client logged-in client
+     * @param port port of the OMERO server
+     */
+    public QPHRMOmeroJoinedSessionFactory(OmeroRawClient client, int port) {
+        this.client = client;
+        this.port = port;
+    }
+
+    /**
+     * @param client logged-in client
+     * @return the port the client is connected to, or {@link #DEFAULT_PORT} if its server URI has no port
+     */
+    public static int getPort(OmeroRawClient client) {
+        URI serverURI = client.getServerURI();
+        int port = serverURI == null ? -1 : serverURI.getPort();
+        return port < 0 ? DEFAULT_PORT : port;
+    }
+
+    @Override
+    public Client createSession() throws IOException {
+        Client simpleClient = this.client.getSimpleClient();
+        try {
+            String sessionId = simpleClient.getGateway().getSessionId(simpleClient.getUser().asDataObject());
+            Client session = new Client();
+            session.connect(this.client.getServerURI().getHost(), this.port, sessionId);
+            return session;
+        } catch (DSOutOfServiceException | ServiceException e) {
+            throw new IOException("Cannot join the OMERO session of " + simpleClient.getUser().getUserName(), e);
+        }
+    }
+
+    @Override
+    public boolean isHealthy(Client session) {
+        try {
+            return session.isConnected() && session.getGateway().isAlive(session.getCtx());
+        } catch (DSOutOfServiceException e) {
+            logger.debug("OMERO session is not alive", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void closeSession(Client session) {
+        // only the connection is closed ; the session is kept alive by the main client
+        session.disconnect();
+    }
+}
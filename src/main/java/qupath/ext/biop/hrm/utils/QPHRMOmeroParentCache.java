@@ -0,0 +1,208 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.Client;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.sys.ParametersI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe cache of OMERO parent containers (image to dataset, dataset to project), shared by all the senders
+ * of a send job.
+ * <p>
+ * Parents are resolved with projection queries, for a single object on cache miss or for all the images of a job at once
+ * with {@link #prefetchImages(Collection)}. The cache is bounded (least recently used entries are evicted)
+ * and entries expire after a given delay.
+ */
+public class QPHRMOmeroParentCache {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMOmeroParentCache.class);
+
+    /** default maximum number of cached objects per container type */
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    /** default expiry delay of cached objects */
+    public static final long DEFAULT_EXPIRY_MS = TimeUnit.MINUTES.toMillis(30);
+
+    /** parent of objects without parent container */
+    public static final Parent NONE = new Parent(-1, "None");
+
+    /** maximum number of ids per query */
+    private static final int QUERY_BATCH_SIZE = 500;
+
+    private static final String IMAGE_PARENT_QUERY = "select l.child.id, p.id, p.name from DatasetImageLink l " +
+            "join l.parent p where l.child.id in (:ids) order by l.id";
+    private static final String DATASET_PARENT_QUERY = "select l.child.id, p.id, p.name from ProjectDatasetLink l " +
+            "join l.parent p where l.child.id in (:ids) order by l.id";
+
+    /** OMERO context to read across all groups */
+    private static final Map<String, String> ALL_GROUPS_CONTEXT = Map.of("omero.group", "-1");
+
+    private final Client client;
+    private final long expiryMs;
+    private final Map<Long, CachedParent> imageParents;
+    private final Map<Long, CachedParent> datasetParents;
+
+    public QPHRMOmeroParentCache(Client client) {
+        this(client, DEFAULT_MAX_SIZE, DEFAULT_EXPIRY_MS);
+    }
+
+    public QPHRMOmeroParentCache(Client client, int maxSize, long expiryMs) {
+        this.client = client;
+        this.expiryMs = expiryMs;
+        this.imageParents = createLRUMap(maxSize);
+        this.datasetParents = createLRUMap(maxSize);
+    }
+
+    /**
+     * Resolve the parent dataset and project of all images in two queries.
+     *
+     * @param imageIds
+     */
+    public void prefetchImages(Collection<Long> imageIds) {
+        try {
+            List<Long> datasetIds = new ArrayList<>();
+            for (Parent dataset : resolve(IMAGE_PARENT_QUERY, imageIds, this.imageParents).values())
+                if (dataset != NONE && !datasetIds.contains(dataset.getId()))
+                    datasetIds.add(dataset.getId());
+            resolve(DATASET_PARENT_QUERY, datasetIds, this.datasetParents);
+        } catch (DSOutOfServiceException | ServerError e) {
+            logger.warn("Cannot prefetch the parent containers of " + imageIds.size() + " images", e);
+        }
+    }
+
+    /**
+     * @param imageId
+     * @return the parent dataset of the image, or {@link #NONE} for orphaned images
+     * @throws DSOutOfServiceException
+     * @throws ServerError
+     */
+    public Parent getImageParent(long imageId) throws DSOutOfServiceException, ServerError {
+        Parent parent = getCached(this.imageParents, imageId);
+        if (parent == null)
+            parent = resolve(IMAGE_PARENT_QUERY, List.of(imageId), this.imageParents).get(imageId);
+        return parent;
+    }
+
+    /**
+     * @param datasetId
+     * @return the parent project of the dataset, or {@link #NONE} for orphaned datasets
+     * @throws DSOutOfServiceException
+     * @throws ServerError
+     */
+    public Parent getDatasetParent(long datasetId) throws DSOutOfServiceException, ServerError {
+        Parent parent = getCached(this.datasetParents, datasetId);
+        if (parent == null)
+            parent = resolve(DATASET_PARENT_QUERY, List.of(datasetId), this.datasetParents).get(datasetId);
+        return parent;
+    }
+
+    /**
+     * query the parents of the given children and put them in the cache
+     *
+     * @param query
+     * @param childIds
+     * @param cache
+     * @return the parents by child id
+     */
+    private Map<Long, Parent> resolve(String query, Collection<Long> childIds, Map<Long, CachedParent> cache)
+            throws DSOutOfServiceException, ServerError {
+        Map<Long, Parent> parents = new LinkedHashMap<>();
+        if (childIds.isEmpty())
+            return parents;
+
+        IQueryPrx queryService = this.client.getGateway().getQueryService(this.client.getCtx());
+        List<Long> ids = new ArrayList<>(childIds);
+        for (int start = 0; start < ids.size(); start += QUERY_BATCH_SIZE) {
+            ParametersI params = new ParametersI();
+            params.addIds(ids.subList(start, Math.min(ids.size(), start + QUERY_BATCH_SIZE)));
+
+            // keep the first parent of each child, as for the wrapper methods
+            for (List<RType> row : queryService.projection(query, params, ALL_GROUPS_CONTEXT)) {
+                long childId = (Long) omero.rtypes.unwrap(row.get(0));
+                parents.putIfAbsent(childId, new Parent((Long) omero.rtypes.unwrap(row.get(1)), (String) omero.rtypes.unwrap(row.get(2))));
+            }
+        }
+
+        long expiry = System.currentTimeMillis() + this.expiryMs;
+        for (Long id : ids) {
+            Parent parent = parents.computeIfAbsent(id, k -> NONE);
+            cache.put(id, new CachedParent(parent, expiry));
+        }
+        return parents;
+    }
+
+    /**
+     * @param cache
+     * @param id
+     * @return the cached parent, or null if not cached or expired
+     */
+    private static Parent getCached(Map<Long, CachedParent> cache, long id) {
+        CachedParent cached = cache.get(id);
+        if (cached == null)
+            return null;
+        if (cached.expiry < System.currentTimeMillis()) {
+            cache.remove(id);
+            return null;
+        }
+        return cached.parent;
+    }
+
+    private static Map<Long, CachedParent> createLRUMap(int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedParent> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+
+    /**
+     * Parent container of an OMERO object
+     */
+    public static class Parent {
+        private final long id;
+        private final String name;
+
+        Parent(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return the name of the HRM folder of this container ("id_name", or "None" for orphaned objects)
+         */
+        public String getFolderName() {
+            return this == NONE ? this.name : this.id + "_" + this.name;
+        }
+    }
+
+    private static class CachedParent {
+        private final Parent parent;
+        private final long expiry;
+
+        private CachedParent(Parent parent, long expiry) {
+            this.parent = parent;
+            this.expiry = expiry;
+        }
+    }
+}
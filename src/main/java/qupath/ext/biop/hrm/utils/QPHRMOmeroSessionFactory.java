@@ -0,0 +1,40 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.Client;
+
+import java.io.IOException;
+
+/**
+ * Create, check and close the OMERO sessions of a {@link QPHRMOmeroSessionPool}
+ */
+public interface QPHRMOmeroSessionFactory {
+
+    /**
+     * @return a new logged-in session
+     * @throws IOException if the session cannot be created
+     */
+    Client createSession() throws IOException;
+
+    /**
+     * @param session
+     * @return true if the session can still be used
+     */
+    boolean isHealthy(Client session);
+
+    /**
+     * keep the session alive on the server while it is idle
+     *
+     * @param session
+     * @return true if the session is still alive
+     */
+    default boolean keepAlive(Client session) {
+        return isHealthy(session);
+    }
+
+    /**
+     * close the session ; it is not used anymore
+     *
+     * @param session
+     */
+    void closeSession(Client session);
+}
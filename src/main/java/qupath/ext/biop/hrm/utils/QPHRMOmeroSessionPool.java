@@ -0,0 +1,221 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.Client;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.servers.omero.raw.client.OmeroRawClient;
+import qupath.lib.common.ThreadTools;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of OMERO sessions, so that parallel workers do not serialize their requests on a single session.
+ * <p>
+ * Workers borrow a session, use it and release it. Sessions are created on demand, up to the maximum number of
+ * sessions ; they are checked before being borrowed and kept alive while they are idle.
+ * If sessions cannot be created, workers fall back to the main session with {@link #borrowOr(Client)}.
+ */
+public class QPHRMOmeroSessionPool implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMOmeroSessionPool.class);
+
+    /** default interval between two keep-alive of the idle sessions, in seconds */
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 60;
+
+    private final QPHRMOmeroSessionFactory factory;
+    private final Semaphore permits;
+    private final Deque<Client> idleSessions = new ArrayDeque<>();
+    private final Set<Client> sessions = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private final ScheduledExecutorService keepAliveExecutor;
+    private volatile boolean creationFailed = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param factory factory of the sessions
+     * @param maxSessions maximum number of sessions
+     * @param keepAliveSeconds interval between two keep-alive of the idle sessions, in seconds
+     */
+    public QPHRMOmeroSessionPool(QPHRMOmeroSessionFactory factory, int maxSessions, long keepAliveSeconds) {
+        this.factory = factory;
+        this.permits = new Semaphore(Math.max(1, maxSessions), true);
+        this.keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(ThreadTools.createThreadFactory("hrm-omero-keep-alive-", true));
+        this.keepAliveExecutor.scheduleWithFixedDelay(this::keepAlive, keepAliveSeconds, keepAliveSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param factory factory of the sessions
+     * @param maxSessions maximum number of sessions
+     */
+    public QPHRMOmeroSessionPool(QPHRMOmeroSessionFactory factory, int maxSessions) {
+        this(factory, maxSessions, DEFAULT_KEEP_ALIVE_SECONDS);
+    }
+
+    /**
+     * @param client logged-in client whose session is joined by the sessions of the pool
+     * @param maxSessions maximum number of sessions
+     * @return a pool of sessions of the client user
+     */
+    public static QPHRMOmeroSessionPool of(OmeroRawClient client, int maxSessions) {
+        return new QPHRMOmeroSessionPool(new QPHRMOmeroJoinedSessionFactory(client), maxSessions);
+    }
+
+    /**
+     * borrow a session, waiting for a session to be released if the maximum number of sessions is reached.
+     * The session has to be released with {@link #release(Client)}.
+     *
+     * @return a healthy session
+     * @throws IOException if a new session cannot be created
+     * @throws InterruptedException
+     */
+    public Client borrow() throws IOException, InterruptedException {
+        if (this.closed)
+            throw new IllegalStateException("The OMERO session pool is closed");
+        this.permits.acquire();
+        try {
+            Client session;
+            while ((session = pollIdleSession()) != null) {
+                if (this.factory.isHealthy(session))
+                    return session;
+                logger.debug("Close an OMERO session that is not alive anymore");
+                closeSession(session);
+            }
+
+            session = this.factory.createSession();
+            this.sessions.add(session);
+            return session;
+        } catch (IOException | RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * borrow a session, or use the fallback session if no session can be created
+     *
+     * @param fallback main session
+     * @return a session of the pool, or the fallback session
+     */
+    public Client borrowOr(Client fallback) {
+        if (this.creationFailed || this.closed)
+            return fallback;
+        try {
+            return borrow();
+        } catch (IOException e) {
+            // do not try again for each worker
+            this.creationFailed = true;
+            logger.warn("Cannot open new OMERO sessions ; the main session is used", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return fallback;
+    }
+
+    /**
+     * release a borrowed session ; sessions that do not come from the pool are ignored
+     *
+     * @param session
+     */
+    public void release(Client session) {
+        if (session == null || !this.sessions.contains(session))
+            return;
+        boolean close;
+        synchronized (this.idleSessions) {
+            close = this.closed;
+            if (!close)
+                this.idleSessions.addFirst(session);
+        }
+        if (close)
+            closeSession(session);
+        this.permits.release();
+    }
+
+    /**
+     * @return the number of open sessions, borrowed or idle
+     */
+    public int getNbSessions() {
+        return this.sessions.size();
+    }
+
+    /**
+     * close the idle sessions ; borrowed sessions are closed when they are released
+     */
+    @Override
+    public void close() {
+        this.keepAliveExecutor.shutdownNow();
+        List<Client> toClose;
+        synchronized (this.idleSessions) {
+            this.closed = true;
+            toClose = new ArrayList<>(this.idleSessions);
+            this.idleSessions.clear();
+        }
+        toClose.forEach(this::closeSession);
+    }
+
+    /**
+     * keep the idle sessions alive, one at a time so that they are not borrowed while checked
+     */
+    private void keepAlive() {
+        int nIdle;
+        synchronized (this.idleSessions) {
+            nIdle = this.idleSessions.size();
+        }
+        for (int i = 0; i < nIdle && !this.closed; i++) {
+            if (!this.permits.tryAcquire())
+                return;
+            Client session = null;
+            try {
+                // the least recently used sessions are at the end
+                synchronized (this.idleSessions) {
+                    session = this.idleSessions.pollLast();
+                }
+                if (session == null)
+                    return;
+                if (!this.factory.keepAlive(session)) {
+                    logger.debug("Close an idle OMERO session that is not alive anymore");
+                    closeSession(session);
+                    session = null;
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Cannot keep an idle OMERO session alive", e);
+                if (session != null)
+                    closeSession(session);
+                session = null;
+            } finally {
+                if (session != null) {
+                    synchronized (this.idleSessions) {
+                        if (this.closed)
+                            closeSession(session);
+                        else
+                            this.idleSessions.addLast(session);
+                    }
+                }
+                this.permits.release();
+            }
+        }
+    }
+
+    private Client pollIdleSession() {
+        synchronized (this.idleSessions) {
+            return this.idleSessions.pollFirst();
+        }
+    }
+
+    private void closeSession(Client session) {
+        this.sessions.remove(session);
+        try {
+            this.factory.closeSession(session);
+        } catch (RuntimeException e) {
+            logger.debug("Cannot close an OMERO session", e);
+        }
+    }
+}
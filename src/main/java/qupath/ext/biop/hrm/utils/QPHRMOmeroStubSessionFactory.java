@@ -0,0 +1,101 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.Client;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for {@link QPHRMOmeroJoinedSessionFactory}, to load-test a {@link QPHRMOmeroSessionPool}
+ * without an OMERO server.
+ * <p>
+ * Sessions are unconnected clients ; creating and checking a session takes the configured latency, and a session
+ * dies at each check with the configured probability. The factory counts the sessions it creates and closes.
+ */
+public class QPHRMOmeroStubSessionFactory implements QPHRMOmeroSessionFactory {
+
+    private final Set<Client> aliveSessions = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private final AtomicInteger nCreated = new AtomicInteger();
+    private final AtomicInteger nClosed = new AtomicInteger();
+    private long creationLatencyMs = 0;
+    private long checkLatencyMs = 0;
+    private double failureRate = 0;
+
+    /**
+     * @param creationLatencyMs time to create a session, in ms
+     * @return
+     */
+    public QPHRMOmeroStubSessionFactory setCreationLatencyMs(long creationLatencyMs) {
+        this.creationLatencyMs = Math.max(0, creationLatencyMs);
+        return this;
+    }
+
+    /**
+     * @param checkLatencyMs time to check or keep alive a session, in ms
+     * @return
+     */
+    public QPHRMOmeroStubSessionFactory setCheckLatencyMs(long checkLatencyMs) {
+        this.checkLatencyMs = Math.max(0, checkLatencyMs);
+        return this;
+    }
+
+    /**
+     * @param failureRate probability for a session to die at each check, between 0 and 1
+     * @return
+     */
+    public QPHRMOmeroStubSessionFactory setFailureRate(double failureRate) {
+        this.failureRate = Math.min(1, Math.max(0, failureRate));
+        return this;
+    }
+
+    @Override
+    public Client createSession() throws IOException {
+        sleep(this.creationLatencyMs);
+        Client session = new Client();
+        this.aliveSessions.add(session);
+        this.nCreated.incrementAndGet();
+        return session;
+    }
+
+    @Override
+    public boolean isHealthy(Client session) {
+        sleep(this.checkLatencyMs);
+        if (this.failureRate > 0 && ThreadLocalRandom.current().nextDouble() < this.failureRate)
+            this.aliveSessions.remove(session);
+        return this.aliveSessions.contains(session);
+    }
+
+    @Override
+    public void closeSession(Client session) {
+        this.aliveSessions.remove(session);
+        this.nClosed.incrementAndGet();
+    }
+
+    /**
+     * @return the number of sessions created
+     */
+    public int getNbCreated() {
+        return this.nCreated.get();
+    }
+
+    /**
+     * @return the number of sessions closed
+     */
+    public int getNbClosed() {
+        return this.nClosed.get();
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0)
+            return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package qupath.ext.biop.hrm.utils;
+
+import org.jsoup.nodes.Entities;
+import org.jsoup.parser.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Parser of the html-encoded .parameters.txt files written by HRM, giving the image and restoration parameters
+ * of the deconvolution.
+ * <p>
+ * The file is read once as a stream of tags and text ; only the cells of the tables are kept in memory.
+ * Each table gives a namespace (the first cell of its first row) with its parameters : the second row and the last row
+ * of the table are ignored, and each other row gives a parameter (first cell), a channel (second cell) and a value
+ * (last cell). Channel-dependent parameters are suffixed with " ch" and the channel.
+ * Nested tables give their own namespace ; their text is also part of the cell containing them.
+ * <p>
+ * Parsed parameters are cached by HRM code, as long as the file has not been modified.
+ */
+public class QPHRMParametersParser {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMParametersParser.class);
+
+    /** maximum number of parsed files kept in the cache */
+    private static final int CACHE_SIZE = 256;
+
+    /** tags whose content is not text */
+    private static final Set<String> RAW_TEXT_TAGS = Set.of("script", "style");
+
+    /** maximum length of an html entity decoded without Jsoup */
+    private static final int MAX_ENTITY_LENGTH = 32;
+
+    /** tags separating words in the text of a cell */
+    private static final Set<String> BLOCK_TAGS = Set.of("br", "p", "div", "li", "ul", "ol", "h1", "h2", "h3", "h4", "h5", "h6", "hr");
+
+    private static final Map<String, CachedParameters> cache = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedParameters> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    /**
+     * parse the parameters file of a deconvolved image, or get it from the cache if the file has already been parsed
+     *
+     * @param file .parameters.txt file
+     * @param hrmCode HRM code of the deconvolved image ; the file is not cached if null or empty
+     * @return a map of image and restoration parameters, by namespace ; empty if the file cannot be parsed
+     */
+    public static Map<String, Map<String, String>> parse(File file, String hrmCode) {
+        if (hrmCode == null || hrmCode.isEmpty())
+            return parse(file);
+
+        long size = file.length();
+        long lastModified = file.lastModified();
+        CachedParameters cached = cache.get(hrmCode);
+        if (cached != null && cached.size == size && cached.lastModified == lastModified)
+            return cached.parameters;
+
+        Map<String, Map<String, String>> parameters = parse(file);
+        if (!parameters.isEmpty())
+            cache.put(hrmCode, new CachedParameters(size, lastModified, parameters));
+        return parameters;
+    }
+
+    /**
+     * parse the html-encoded .parameters.txt file
+     *
+     * @param file
+     * @return a map of image and restoration parameters, by namespace ; empty if the file cannot be parsed
+     */
+    public static Map<String, Map<String, String>> parse(File file) {
+        Map<String, Map<String, String>> nameSpaceKeyValueMap = new TreeMap<>();
+        // malformed characters are replaced instead of failing
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            for (List<List<String>> table : readTables(new CharReader(reader)))
+                addTable(nameSpaceKeyValueMap, table);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Parameter file parsing : Cannot parse the file " + file + ". No key values will be uploaded", e);
+            return Map.of();
+        }
+        return Collections.unmodifiableMap(nameSpaceKeyValueMap);
+    }
+
+    /**
+     * add the parameters of a table to the namespaces
+     *
+     * @param nameSpaceKeyValueMap
+     * @param rows cells of each row of the table
+     */
+    private static void addTable(Map<String, Map<String, String>> nameSpaceKeyValueMap, List<List<String>> rows) {
+        if (rows.size() < 3 || rows.get(0).isEmpty())
+            throw new IllegalArgumentException("Missing header or parameters in table");
+
+        // the header
+        String header = rows.get(0).get(0);
+
+        // parameters only, without the headers and the last row
+        Map<String, String> keyValues = new TreeMap<>(); // to have the natural order of elements
+        for (List<String> cells : rows.subList(2, rows.size() - 1)) {
+            if (cells.isEmpty())
+                continue;
+            if (cells.size() < 2)
+                throw new IllegalArgumentException("Missing channel for parameter " + cells.get(0));
+
+            // parse the key, value and channel
+            String param = cells.get(0);
+            String channel = cells.get(1);
+            String value = cells.get(cells.size() - 1);
+
+            // check if the parameter is channel-dependent
+            if (channel.equals("All"))
+                keyValues.put(param, value);
+            else
+                keyValues.put(param + " ch" + channel, value);
+        }
+        nameSpaceKeyValueMap.put(header, Collections.unmodifiableMap(keyValues));
+    }
+
+    /**
+     * read the cells of all the tables of the html content, without building the document.
+     * Open tables are kept in a stack, so that a table nested in a cell does not close its parent table.
+     *
+     * @param reader
+     * @return the tables in the order of the document, as lists of rows of cell texts
+     * @throws IOException
+     */
+    private static List<List<List<String>>> readTables(CharReader reader) throws IOException {
+        List<List<List<String>>> tables = new ArrayList<>();
+        Deque<TableState> openTables = new ArrayDeque<>();
+        StringBuilder tag = new StringBuilder();
+        String rawTextTag = null;
+
+        int c;
+        while ((c = reader.read()) != -1) {
+            TableState table = openTables.peek();
+            if (c != '<') {
+                if (table != null && table.cell != null && rawTextTag == null)
+                    table.cell.append((char) c);
+                continue;
+            }
+
+            // read the tag
+            tag.setLength(0);
+            if (readTag(reader, tag))
+                continue;
+            String name = getTagName(tag);
+            boolean closing = tag.length() > 0 && tag.charAt(0) == '/';
+
+            // skip the content of scripts and styles
+            if (rawTextTag != null) {
+                if (closing && name.equals(rawTextTag))
+                    rawTextTag = null;
+                continue;
+            }
+            if (!closing && RAW_TEXT_TAGS.contains(name)) {
+                rawTextTag = name;
+                continue;
+            }
+
+            switch (name) {
+                case "table":
+                    if (!closing) {
+                        TableState nestedTable = new TableState();
+                        tables.add(nestedTable.rows);
+                        openTables.push(nestedTable);
+                    } else if (table != null) {
+                        table.closeRow();
+                        openTables.pop();
+                        // the text of a nested table is part of the cell containing it
+                        TableState parentTable = openTables.peek();
+                        if (parentTable != null && parentTable.cell != null)
+                            parentTable.cell.append(' ').append(table.text).append(' ');
+                    }
+                    break;
+                case "tr":
+                    if (table != null) {
+                        table.closeRow();
+                        if (!closing)
+                            table.openRow();
+                    }
+                    break;
+                case "td":
+                case "th":
+                    if (table != null) {
+                        table.closeCell();
+                        if (!closing)
+                            table.openCell();
+                    }
+                    break;
+                default:
+                    if (table != null && table.cell != null && BLOCK_TAGS.contains(name))
+                        table.cell.append(' ');
+            }
+        }
+
+        // tables not closed at the end of the file
+        for (TableState table : openTables)
+            table.closeRow();
+        return tables;
+    }
+
+    /**
+     * read a tag until its closing bracket ; comments and declarations are skipped
+     *
+     * @param reader
+     * @param tag filled with the content of the tag, without brackets
+     * @return true if the tag is a comment or a declaration
+     * @throws IOException
+     */
+    private static boolean readTag(CharReader reader, StringBuilder tag) throws IOException {
+        int c;
+        char quote = 0;
+        while ((c = reader.read()) != -1) {
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = (char) c;
+            } else if (c == '>') {
+                break;
+            }
+            tag.append((char) c);
+
+            // comment : skip until the end of the comment
+            if (tag.length() == 3 && tag.toString().equals("!--")) {
+                int dashes = 0;
+                while ((c = reader.read()) != -1) {
+                    if (c == '>' && dashes >= 2)
+                        break;
+                    dashes = c == '-' ? dashes + 1 : 0;
+                }
+                return true;
+            }
+        }
+        return tag.length() > 0 && (tag.charAt(0) == '!' || tag.charAt(0) == '?');
+    }
+
+    /**
+     * @param tag
+     * @return the lower-case name of the tag
+     */
+    private static String getTagName(StringBuilder tag) {
+        int start = tag.length() > 0 && tag.charAt(0) == '/' ? 1 : 0;
+        int end = start;
+        while (end < tag.length() && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end) != '/')
+            end++;
+        char[] name = new char[end - start];
+        for (int i = 0; i < name.length; i++)
+            name[i] = Character.toLowerCase(tag.charAt(start + i));
+        return new String(name);
+    }
+
+    /**
+     * decode the html entities terminated by a semicolon ; other texts are decoded by Jsoup,
+     * which is slower as it creates a reader for each text
+     *
+     * @param text
+     * @return the decoded text
+     */
+    private static String unescapeEntities(String text) {
+        StringBuilder decoded = new StringBuilder(text.length());
+        int start = 0;
+        int ampersand;
+        while ((ampersand = text.indexOf('&', start)) >= 0) {
+            int semicolon = text.indexOf(';', ampersand);
+            String character = semicolon < 0 || semicolon - ampersand > MAX_ENTITY_LENGTH ? null :
+                    decodeEntity(text.substring(ampersand + 1, semicolon));
+            if (character == null)
+                return Parser.unescapeEntities(text, false);
+            decoded.append(text, start, ampersand).append(character);
+            start = semicolon + 1;
+        }
+        return decoded.append(text, start, text.length()).toString();
+    }
+
+    /**
+     * @param entity name or number of the entity, without the ampersand and the semicolon
+     * @return the characters of the entity ; null if it is not a known entity or a printable character
+     */
+    private static String decodeEntity(String entity) {
+        if (!entity.startsWith("#")) {
+            String character = Entities.getByName(entity);
+            return character.isEmpty() ? null : character;
+        }
+        try {
+            boolean hexadecimal = entity.length() > 1 && (entity.charAt(1) == 'x' || entity.charAt(1) == 'X');
+            int codePoint = Integer.parseInt(entity.substring(hexadecimal ? 2 : 1), hexadecimal ? 16 : 10);
+            // control characters are replaced by Jsoup
+            if (codePoint < 0x20 || (codePoint >= 0x7f && codePoint < 0xa0) || !Character.isValidCodePoint(codePoint)
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE))
+                return null;
+            return new String(Character.toChars(codePoint));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * decode html entities and normalize whitespaces, as displayed text
+     *
+     * @param text
+     * @return the text
+     */
+    private static String normalizeText(CharSequence text) {
+        String decoded = text.toString();
+        if (decoded.indexOf('&') >= 0)
+            decoded = unescapeEntities(decoded);
+
+        StringBuilder normalized = new StringBuilder(decoded.length());
+        boolean lastIsWhitespace = true;
+        for (int i = 0; i < decoded.length(); i++) {
+            char c = decoded.charAt(i);
+            if (Character.isWhitespace(c) || c == '\u00a0') {
+                if (!lastIsWhitespace)
+                    normalized.append(' ');
+                lastIsWhitespace = true;
+            } else {
+                normalized.append(c);
+                lastIsWhitespace = false;
+            }
+        }
+        return normalized.toString().trim();
+    }
+
+
+    /**
+     * Buffered reader of characters, without the synchronization of {@link java.io.BufferedReader} on each character
+     */
+    private static class CharReader {
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int position = 0;
+        private int length = 0;
+
+        private CharReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return the next character ; -1 at the end of the stream
+         * @throws IOException
+         */
+        private int read() throws IOException {
+            if (this.position == this.length) {
+                this.length = this.reader.read(this.buffer);
+                this.position = 0;
+                if (this.length <= 0) {
+                    this.length = 0;
+                    return -1;
+                }
+            }
+            return this.buffer[this.position++];
+        }
+    }
+
+    /**
+     * Table being read, with its current row and cell
+     */
+    private static class TableState {
+        private final List<List<String>> rows = new ArrayList<>();
+
+        /** raw text of the closed cells, including the text of nested tables */
+        private final StringBuilder text = new StringBuilder();
+        private List<String> row;
+        private StringBuilder cell;
+
+        private void openRow() {
+            this.row = new ArrayList<>();
+            this.rows.add(this.row);
+        }
+
+        private void closeRow() {
+            closeCell();
+            this.row = null;
+        }
+
+        private void openCell() {
+            if (this.row != null)
+                this.cell = new StringBuilder();
+        }
+
+        /**
+         * add the text of the cell to the row
+         */
+        private void closeCell() {
+            if (this.cell != null) {
+                this.row.add(normalizeText(this.cell));
+                this.text.append(this.cell).append(' ');
+                this.cell = null;
+            }
+        }
+    }
+
+    /**
+     * Parameters of a parsed file, with the state of the file
+     */
+    private static class CachedParameters {
+        private final long size;
+        private final long lastModified;
+        private final Map<String, Map<String, String>> parameters;
+
+        private CachedParameters(long size, long lastModified, Map<String, Map<String, String>> parameters) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.parameters = parameters;
+        }
+    }
+}
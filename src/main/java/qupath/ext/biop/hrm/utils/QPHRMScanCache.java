@@ -0,0 +1,214 @@
+package qupath.ext.biop.hrm.utils;
+
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.lib.io.GsonTools;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.Projects;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+
+/**
+ * Persistent cache of the scans of the HRM-Share folder, used to only read the folders that have changed since the last scan.
+ * <p>
+ * For each scanned folder, the cache records its last modification time, its number of entries, its sub-folders
+ * and its deconvolved images. It also records the HRM codes of the images already retrieved. A folder that has not
+ * been modified and whose images have all been retrieved is not listed again ; only its sub-folders are scanned.
+ * The cache is saved in the QuPath project folder ; it is read once and shared by all the retrievals of the project,
+ * manual or automatic, so that the images retrieved by one of them are not lost when the other saves the cache.
+ */
+public class QPHRMScanCache {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMScanCache.class);
+
+    /** name of the cache file in the QuPath project folder */
+    public static final String CACHE_NAME = ".qphrm-scan-cache.json";
+
+    /** caches already read, by folder */
+    private static final Map<File, QPHRMScanCache> CACHES = new ConcurrentHashMap<>();
+
+    /** folder of the cache file ; null if the cache is not saved */
+    private final File folder;
+
+    /** records of the scanned folders, by absolute path */
+    private final Map<String, DirectoryRecord> directories;
+
+    /** HRM codes of the retrieved images */
+    private final Set<String> retrievedCodes;
+
+    /** false if the file system does not update the modification time of the folders */
+    private volatile boolean trustModificationTimes = true;
+
+    private QPHRMScanCache(File folder, Content content) {
+        this.folder = folder;
+        this.directories = new ConcurrentHashMap<>(content.directories == null ? Map.of() : content.directories);
+        this.retrievedCodes = ConcurrentHashMap.newKeySet();
+        if (content.retrievedCodes != null)
+            this.retrievedCodes.addAll(content.retrievedCodes);
+    }
+
+    /**
+     * get the cache of the QuPath project, read the first time it is used, or create an empty one if it does not exist yet
+     *
+     * @param project
+     * @return the cache of the project ; it is not saved if the project has no folder
+     */
+    public static QPHRMScanCache load(Project<?> project) {
+        return load(project == null ? null : Projects.getBaseDirectory(project));
+    }
+
+    /**
+     * get the cache saved in a folder, read the first time it is used, or create an empty one if it does not exist yet
+     *
+     * @param folder
+     * @return the cache of the folder ; a new cache, not saved, if the folder is null
+     */
+    public static QPHRMScanCache load(File folder) {
+        if (folder == null)
+            return new QPHRMScanCache(null, new Content());
+        return CACHES.computeIfAbsent(folder.getAbsoluteFile(), QPHRMScanCache::read);
+    }
+
+    /**
+     * read the cache saved in a folder, or create an empty one if it does not exist yet
+     *
+     * @param folder
+     * @return the cache
+     */
+    private static QPHRMScanCache read(File folder) {
+        File cacheFile = new File(folder, CACHE_NAME);
+        if (cacheFile.isFile()) {
+            try (Reader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+                Content content = GsonTools.getInstance().fromJson(reader, Content.class);
+                if (content != null)
+                    return new QPHRMScanCache(folder, content);
+            } catch (IOException | JsonParseException e) {
+                logger.warn("Cannot read the scan cache " + cacheFile + " ; the whole HRM-Share folder will be scanned", e);
+            }
+        }
+        return new QPHRMScanCache(folder, new Content());
+    }
+
+    /**
+     * write the cache in its folder
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (this.folder == null)
+            return;
+        Content content = new Content();
+        content.directories = this.directories;
+        content.retrievedCodes = this.retrievedCodes;
+
+        Path cachePath = new File(this.folder, CACHE_NAME).toPath();
+        Path tmpPath = QPHRMFileTransfer.getPartialFile(cachePath.toFile()).toPath();
+        try (Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+            GsonTools.getInstance().toJson(content, writer);
+        }
+        QPHRMFileTransfer.moveAtomically(tmpPath, cachePath);
+    }
+
+    /**
+     * @param directory
+     * @param lastModified current modification time of the directory
+     * @return the sub-folders of the directory if it has not been modified since the last scan and if all its images
+     * have been retrieved ; null if the directory has to be listed
+     */
+    public List<String> getUnchangedSubDirectories(File directory, long lastModified) {
+        if (!this.trustModificationTimes)
+            return null;
+        DirectoryRecord record = this.directories.get(directory.getAbsolutePath());
+        if (record == null || record.lastModified != lastModified)
+            return null;
+        for (String image : record.images) {
+            if (!isRetrieved(image))
+                return null;
+        }
+        return record.subDirectories;
+    }
+
+    /**
+     * record the content of a listed directory
+     *
+     * @param directory
+     * @param lastModified modification time of the directory, read before listing it
+     * @param subDirectories names of the sub-folders
+     * @param images names of the deconvolved images
+     * @param nEntries number of entries of the directory
+     */
+    public void updateDirectory(File directory, long lastModified, List<String> subDirectories, List<String> images, int nEntries) {
+        DirectoryRecord record = new DirectoryRecord();
+        record.lastModified = lastModified;
+        record.nEntries = nEntries;
+        record.subDirectories = new ArrayList<>(subDirectories);
+        record.images = new ArrayList<>(images);
+
+        DirectoryRecord previous = this.directories.put(directory.getAbsolutePath(), record);
+        if (this.trustModificationTimes && previous != null && previous.lastModified == lastModified && previous.nEntries != nEntries) {
+            logger.warn("The modification time of " + directory + " has not been updated ; all folders will be listed");
+            this.trustModificationTimes = false;
+        }
+    }
+
+    /**
+     * @param imageName name of the deconvolved image
+     * @return true if the image has already been retrieved
+     */
+    public boolean isRetrieved(String imageName) {
+        String hrmCode = getHrmCode(imageName);
+        return hrmCode != null && this.retrievedCodes.contains(hrmCode);
+    }
+
+    /**
+     * record a retrieved image
+     *
+     * @param imageName name of the deconvolved image
+     */
+    public void markRetrieved(String imageName) {
+        String hrmCode = getHrmCode(imageName);
+        if (hrmCode != null)
+            this.retrievedCodes.add(hrmCode);
+    }
+
+    /**
+     * @param imageName
+     * @return the HRM code of the deconvolved image ; null if the name does not follow the HRM convention
+     */
+    private static String getHrmCode(String imageName) {
+        Matcher matcher = HRMConstants.DECONVOLVED_NAME_PATTERN.matcher(imageName);
+        return matcher.find() ? matcher.group("hrmcode") : null;
+    }
+
+
+    /**
+     * Content of the cache file
+     */
+    private static class Content {
+        private Map<String, DirectoryRecord> directories;
+        private Set<String> retrievedCodes;
+    }
+
+    /**
+     * Record of a scanned folder
+     */
+    private static class DirectoryRecord {
+        private long lastModified = -1;
+        private int nEntries = -1;
+        private List<String> subDirectories = new ArrayList<>();
+        private List<String> images = new ArrayList<>();
+    }
+}
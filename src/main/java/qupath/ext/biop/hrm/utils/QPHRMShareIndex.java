@@ -0,0 +1,378 @@
+package qupath.ext.biop.hrm.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.lib.common.ThreadTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory index of the HRM-Share folder of a user, built with a single scan of the Deconvolved folder.
+ * <p>
+ * Each deconvolved image (.ids file) is mapped to its category (local, omero) and to its result files, i.e. the files
+ * of the same folder sharing its base name (.ics, .parameters.txt, .log.txt, .hgsb, histograms...).
+ * Directory listings are cached, so that each remote directory is read once per job, and updated when files are deleted.
+ * <p>
+ * The scan runs in background : folders are read in parallel with directory streams, and deconvolved images
+ * are published in a bounded queue as soon as their folder has been read, so that they can be retrieved
+ * before the end of the scan. With a {@link QPHRMScanCache}, folders unchanged since the last scan are not listed again
+ * and images already retrieved are not published.
+ */
+public class QPHRMShareIndex implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMShareIndex.class);
+
+    /** extension of deconvolved images */
+    public static final String IMAGE_EXTENSION = ".ids";
+
+    /** default number of folders read in parallel */
+    public static final int DEFAULT_NB_SCAN_THREADS = 4;
+
+    /** default maximum number of discovered images waiting to be retrieved */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final Map<File, List<File>> directories = new ConcurrentHashMap<>();
+    private final Map<File, String> imageTypes = new ConcurrentHashMap<>();
+
+    /** files sharing the same base name, for each indexed file */
+    private final Map<File, List<File>> resultFiles = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<File> discoveredImages;
+    private final AtomicInteger pendingDirectories = new AtomicInteger();
+    private final ExecutorService executor;
+    private final QPHRMScanCache scanCache;
+    private volatile boolean scanDone = false;
+
+    private QPHRMShareIndex(int nThreads, int queueCapacity, QPHRMScanCache scanCache){
+        this.scanCache = scanCache;
+        this.discoveredImages = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.executor = nThreads <= 0 ? null :
+                Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("hrm-share-scan-", true));
+    }
+
+    /**
+     * start scanning the Deconvolved folder in background ; each sub-folder is a category of images (local, omero...)
+     *
+     * @param deconvolvedFolder
+     * @param nThreads number of folders read in parallel
+     * @param queueCapacity maximum number of discovered images waiting to be read with {@link #nextImage()}
+     * @param scanCache cache of the previous scans ; may be null
+     * @return the index, filled while the scan goes on
+     */
+    public static QPHRMShareIndex scan(File deconvolvedFolder, int nThreads, int queueCapacity, QPHRMScanCache scanCache) {
+        QPHRMShareIndex index = new QPHRMShareIndex(Math.max(1, nThreads), queueCapacity, scanCache);
+        if (deconvolvedFolder == null || !deconvolvedFolder.isDirectory()) {
+            index.finishScan();
+            return index;
+        }
+
+        // categories are scanned in parallel
+        List<File> categories = new ArrayList<>();
+        for (File dir : index.listFiles(deconvolvedFolder))
+            if (dir.isDirectory())
+                categories.add(dir);
+        index.pendingDirectories.set(categories.size() + 1);
+        for (File dir : categories)
+            index.submit(dir.toPath(), dir.getName());
+        index.directoryDone();
+        return index;
+    }
+
+    /**
+     * @param deconvolvedFolder
+     * @param scanCache cache of the previous scans ; may be null
+     * @return the index, with the default scan parameters
+     */
+    public static QPHRMShareIndex scan(File deconvolvedFolder, QPHRMScanCache scanCache) {
+        return scan(deconvolvedFolder, DEFAULT_NB_SCAN_THREADS, DEFAULT_QUEUE_CAPACITY, scanCache);
+    }
+
+    /**
+     * index only the given deconvolved images, with their result files ; the folders of the images are read once
+     *
+     * @param images deconvolved images, with their category (local, omero)
+     * @return the index, with all images already published
+     */
+    public static QPHRMShareIndex of(Map<File, String> images) {
+        QPHRMShareIndex index = new QPHRMShareIndex(0, images.size(), null);
+        Map<File, List<File>> imagesByFolder = new HashMap<>();
+        images.keySet().forEach(image -> imagesByFolder.computeIfAbsent(image.getParentFile(), k -> new ArrayList<>()).add(image));
+
+        try {
+            for (Map.Entry<File, List<File>> folder : imagesByFolder.entrySet()) {
+                List<File> files = index.readDirectory(folder.getKey().toPath(), new ArrayList<>());
+                for (File image : folder.getValue()) {
+                    if (files.contains(image))
+                        index.publish(image, images.get(image));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        index.finishScan();
+        return index;
+    }
+
+    /**
+     * @return an empty index
+     */
+    public static QPHRMShareIndex empty() {
+        QPHRMShareIndex index = new QPHRMShareIndex(0, 1, null);
+        index.finishScan();
+        return index;
+    }
+
+    /**
+     * wait for the next deconvolved image found by the scan
+     *
+     * @return the next image, or null if the scan is over and all images have been read
+     * @throws InterruptedException
+     */
+    public File nextImage() throws InterruptedException {
+        while (true) {
+            // the scan is marked as done once all images have been published
+            boolean done = this.scanDone;
+            File image = this.discoveredImages.poll(100, TimeUnit.MILLISECONDS);
+            if (image != null)
+                return image;
+            if (done)
+                return null;
+        }
+    }
+
+    /**
+     * stop the scan
+     */
+    @Override
+    public void close() {
+        if (this.executor != null)
+            this.executor.shutdownNow();
+        this.scanDone = true;
+    }
+
+    private void submit(Path directory, String category) {
+        try {
+            this.executor.submit(() -> {
+                try {
+                    scanDirectory(directory, category);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    directoryDone();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the scan has been stopped
+            directoryDone();
+        }
+    }
+
+    private void directoryDone() {
+        if (this.pendingDirectories.decrementAndGet() == 0)
+            finishScan();
+    }
+
+    private void finishScan() {
+        this.scanDone = true;
+        if (this.executor != null)
+            this.executor.shutdown();
+    }
+
+    /**
+     * index deconvolved images of a folder ; sub-folders are scanned in parallel
+     *
+     * @param directory
+     * @param category
+     */
+    private void scanDirectory(Path directory, String category) throws InterruptedException {
+        // folder unchanged since the last scan, with all its images retrieved : only its sub-folders are scanned
+        long lastModified = getLastModified(directory);
+        List<String> cachedSubDirectories = this.scanCache == null ? null :
+                this.scanCache.getUnchangedSubDirectories(directory.toFile(), lastModified);
+        if (cachedSubDirectories != null) {
+            this.pendingDirectories.addAndGet(cachedSubDirectories.size());
+            for (String subDirectory : cachedSubDirectories)
+                submit(directory.resolve(subDirectory), category);
+            return;
+        }
+
+        List<Path> subDirectories = new ArrayList<>();
+        List<File> files = readDirectory(directory, subDirectories);
+        List<File> images = files.stream().filter(file -> file.getName().endsWith(IMAGE_EXTENSION)).collect(Collectors.toList());
+        if (this.scanCache != null && lastModified >= 0) {
+            this.scanCache.updateDirectory(directory.toFile(), lastModified,
+                    subDirectories.stream().map(path -> path.getFileName().toString()).collect(Collectors.toList()),
+                    images.stream().map(File::getName).collect(Collectors.toList()),
+                    files.size() + subDirectories.size());
+        }
+
+        // scan sub-folders
+        this.pendingDirectories.addAndGet(subDirectories.size());
+        for (Path subDirectory : subDirectories)
+            submit(subDirectory, category);
+
+        // publish deconvolved images that have not been retrieved yet
+        for (File image : images) {
+            if (this.scanCache == null || !this.scanCache.isRetrieved(image.getName()))
+                publish(image, category);
+        }
+    }
+
+    /**
+     * @param directory
+     * @return the modification time of the directory ; -1 if it cannot be read
+     */
+    private static long getLastModified(Path directory) {
+        try {
+            return Files.getLastModifiedTime(directory).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * read a folder once, with the attributes returned by the listing when the file system provides them,
+     * and group its files by base name
+     *
+     * @param directory
+     * @param subDirectories filled with the sub-folders of the directory
+     * @return the files of the directory
+     */
+    private List<File> readDirectory(Path directory, List<Path> subDirectories) {
+        List<File> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.readAttributes(path, BasicFileAttributes.class).isDirectory())
+                    subDirectories.add(path);
+                else
+                    files.add(path.toFile());
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot list the folder " + directory, e);
+        }
+        List<File> listing = new ArrayList<>(files);
+        subDirectories.forEach(path -> listing.add(path.toFile()));
+        this.directories.put(directory.toFile(), Collections.synchronizedList(listing));
+
+        // group the result files of the folder by deconvolved image, i.e. by raw name and HRM code
+        Map<String, List<File>> filesByStem = new HashMap<>();
+        for (File file : files) {
+            List<File> group = filesByStem.computeIfAbsent(getResultStem(file), k -> Collections.synchronizedList(new ArrayList<>()));
+            group.add(file);
+            this.resultFiles.put(file, group);
+        }
+        return files;
+    }
+
+    private void publish(File image, String category) throws InterruptedException {
+        this.imageTypes.put(image, category);
+        this.discoveredImages.put(image);
+    }
+
+    /**
+     * @param image
+     * @return the category of the deconvolved image (local, omero), or null if the image is not indexed
+     */
+    public String getImageType(File image) {
+        return this.imageTypes.get(image);
+    }
+
+    /**
+     * @return the number of deconvolved images found so far
+     */
+    public int getNbImages() {
+        return this.imageTypes.size();
+    }
+
+    /**
+     * @return true if the scan is over
+     */
+    public boolean isScanDone() {
+        return this.scanDone;
+    }
+
+    /**
+     * @param image deconvolved image
+     * @return all the files of the image (including the image itself)
+     */
+    public List<File> getResultFiles(File image) {
+        List<File> files = this.resultFiles.get(image);
+        if (files == null)
+            return List.of();
+        synchronized (files) {
+            return new ArrayList<>(files);
+        }
+    }
+
+    /**
+     * @param image deconvolved image
+     * @param suffix
+     * @return the first result file of the image with the given suffix, or null if there is none
+     */
+    public File getResultFile(File image, String suffix) {
+        return getResultFiles(image).stream().filter(f -> f.getName().endsWith(suffix)).findFirst().orElse(null);
+    }
+
+    /**
+     * list a directory, reading it only the first time
+     *
+     * @param directory
+     * @return the files and sub-folders of the directory ; empty if the directory cannot be read
+     */
+    public List<File> listFiles(File directory) {
+        List<File> files = this.directories.computeIfAbsent(directory, dir -> {
+            File[] list = dir.listFiles();
+            return Collections.synchronizedList(list == null ? new ArrayList<>() : new ArrayList<>(List.of(list)));
+        });
+        synchronized (files) {
+            return new ArrayList<>(files);
+        }
+    }
+
+    /**
+     * remove deleted files or folders from the index
+     *
+     * @param files
+     */
+    public void remove(Collection<File> files) {
+        for (File file : files) {
+            List<File> parentFiles = this.directories.get(file.getParentFile());
+            if (parentFiles != null)
+                parentFiles.remove(file);
+            this.directories.remove(file);
+            List<File> group = this.resultFiles.remove(file);
+            if (group != null)
+                group.remove(file);
+        }
+    }
+
+    /**
+     * @param file
+     * @return the raw name and HRM code of the result file ("name_hrmcode") ; the file name if it is not an HRM result
+     */
+    private static String getResultStem(File file) {
+        Matcher matcher = HRMConstants.DECONVOLVED_NAME_PATTERN.matcher(file.getName());
+        return matcher.find() ? matcher.group("name") + "_" + matcher.group("hrmcode") : file.getName();
+    }
+}
@@ -0,0 +1,206 @@
+package qupath.ext.biop.hrm.utils;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.io.GsonTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manifest of the files sent to an HRM user folder, used to only send new or modified images.
+ * <p>
+ * For each file sent, the manifest records the size, the last modification time and the CRC32C checksum of the source,
+ * as well as the size of the copy on HRM. Each OMERO image is recorded once, by id, with the files downloaded for it.
+ * The manifest is saved in the HRM user folder.
+ */
+public class QPHRMSyncManifest {
+    private final static Logger logger = LoggerFactory.getLogger(QPHRMSyncManifest.class);
+
+    /** name of the manifest file in the HRM user folder */
+    public static final String MANIFEST_NAME = ".qphrm-manifest.json";
+
+    /** prefix of the keys of OMERO images */
+    private static final String OMERO_KEY_PREFIX = "omero:";
+
+    /** HRM user folder */
+    private final File userFolder;
+
+    /** records of the sent files, by path relative to the user folder, and of the OMERO images, by id */
+    private final Map<String, Record> records;
+
+    private QPHRMSyncManifest(File userFolder, Map<String, Record> records) {
+        this.userFolder = userFolder;
+        this.records = new ConcurrentHashMap<>(records);
+    }
+
+    /**
+     * read the manifest of the HRM user folder, or create an empty one if it does not exist yet
+     *
+     * @param userFolder
+     * @return the manifest
+     */
+    public static QPHRMSyncManifest load(File userFolder) {
+        File manifestFile = new File(userFolder, MANIFEST_NAME);
+        if (manifestFile.isFile()) {
+            try (Reader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+                Map<String, Record> records = GsonTools.getInstance().fromJson(reader, new TypeToken<Map<String, Record>>(){}.getType());
+                if (records != null)
+                    return new QPHRMSyncManifest(userFolder, records);
+            } catch (IOException | JsonParseException e) {
+                logger.warn("Cannot read the manifest " + manifestFile + " ; all images will be considered as new", e);
+            }
+        }
+        return new QPHRMSyncManifest(userFolder, Map.of());
+    }
+
+    /**
+     * write the manifest in the HRM user folder
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        Path manifestPath = new File(this.userFolder, MANIFEST_NAME).toPath();
+        Path tmpPath = QPHRMFileTransfer.getPartialFile(manifestPath.toFile()).toPath();
+        try (Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+            GsonTools.getInstance(true).toJson(this.records, writer);
+        }
+        QPHRMFileTransfer.moveAtomically(tmpPath, manifestPath);
+    }
+
+    /**
+     * check if a local file has to be copied to HRM, i.e. if it is new or if its content has changed since the last send.
+     *
+     * @param source
+     * @param destination
+     * @return true if the file has to be copied
+     * @throws IOException
+     */
+    public boolean needsTransfer(File source, File destination) throws IOException {
+        if (!destination.isFile())
+            return true;
+
+        String key = getKey(destination);
+        Record record = this.records.get(key);
+
+        // file already on HRM but not in the manifest : it is kept if it has the same size and has been copied after
+        // the last modification of the source. The checksum is not known, so any later change of the source is sent.
+        if (record == null) {
+            if (source.length() != destination.length() || destination.lastModified() < source.lastModified())
+                return true;
+            this.records.put(key, Record.of(source, source.length(), -1, destination.length()));
+            return false;
+        }
+
+        // file modified on HRM side
+        if (record.destinationSize != destination.length())
+            return true;
+
+        // unchanged source
+        if (record.sourceSize == source.length() && record.sourceLastModified == source.lastModified())
+            return false;
+
+        // source touched ; it is only considered as unchanged if its whole content is the same
+        if (record.checksum >= 0 && record.sourceSize == source.length()) {
+            long checksum = QPHRMFileTransfer.checksum(source);
+            if (checksum == record.checksum) {
+                this.records.put(key, Record.of(source, record.sourceSize, checksum, record.destinationSize));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * record a local file that has been copied to HRM, with the checksum verified during the copy
+     *
+     * @param source
+     * @param transferResult result of the copy of the source
+     */
+    public void recordTransfer(File source, QPHRMFileTransfer.TransferResult transferResult) {
+        this.records.put(getKey(transferResult.getFile()),
+                Record.of(source, transferResult.getSize(), transferResult.getChecksum(), transferResult.getSize()));
+    }
+
+    /**
+     * check if an OMERO image has to be downloaded to HRM. OMERO original files cannot be modified,
+     * so the image is downloaded only if the files recorded for it are not all in the destination folder
+     * with their recorded size.
+     *
+     * @param imageId
+     * @param destinationFolder
+     * @return true if the image has to be downloaded
+     */
+    public boolean needsDownload(long imageId, File destinationFolder) {
+        Record record = this.records.get(OMERO_KEY_PREFIX + imageId);
+        if (record == null || record.files == null || record.files.isEmpty())
+            return true;
+
+        Path folder = destinationFolder.toPath().toAbsolutePath().normalize();
+        for (Map.Entry<String, Long> file : record.files.entrySet()) {
+            File destination = new File(this.userFolder, file.getKey());
+            if (!destination.toPath().toAbsolutePath().normalize().startsWith(folder) || !destination.isFile() ||
+                    destination.length() != file.getValue())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * record an OMERO image that has been downloaded to HRM, with all its downloaded files
+     *
+     * @param imageId
+     * @param destinations downloaded files
+     */
+    public void recordDownload(long imageId, List<File> destinations) {
+        Record record = new Record();
+        record.omeroId = imageId;
+        record.files = new LinkedHashMap<>();
+        for (File destination : destinations)
+            record.files.put(getKey(destination), destination.length());
+        this.records.put(OMERO_KEY_PREFIX + imageId, record);
+    }
+
+    /**
+     * @param destination
+     * @return the path of the destination relative to the HRM user folder
+     */
+    private String getKey(File destination) {
+        return this.userFolder.toPath().toAbsolutePath().relativize(destination.toPath().toAbsolutePath())
+                .toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Record of a file sent to HRM
+     */
+    private static class Record {
+        private long sourceSize = -1;
+        private long sourceLastModified = -1;
+        private long checksum = -1;
+        private long destinationSize = -1;
+        private long omeroId = -1;
+
+        /** size of the files downloaded for an OMERO image, by path relative to the user folder */
+        private Map<String, Long> files;
+
+        private static Record of(File source, long sourceSize, long checksum, long destinationSize) {
+            Record record = new Record();
+            record.sourceSize = sourceSize;
+            record.sourceLastModified = source.lastModified();
+            record.checksum = checksum;
+            record.destinationSize = destinationSize;
+            return record;
+        }
+    }
+}
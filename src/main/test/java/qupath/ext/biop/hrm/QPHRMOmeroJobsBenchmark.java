@@ -0,0 +1,161 @@
+package qupath.ext.biop.hrm;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import qupath.ext.biop.hrm.retrievers.QPHRMRetrieveEngine;
+import qupath.ext.biop.hrm.senders.QPHRMSendEngine;
+import qupath.ext.biop.hrm.utils.QPHRMJobSummary;
+import qupath.ext.biop.hrm.utils.QPHRMLocalOmeroGateway;
+import qupath.ext.biop.servers.omero.raw.OmeroRawImageServerBuilder;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full send and retrieve jobs of OMERO images, run against {@link QPHRMLocalOmeroGateway} with the latency and
+ * bandwidth of an OMERO server.
+ * <p>
+ * The send job downloads the raw images of a dataset to HRM-Share ; the retrieve job imports the deconvolved images
+ * back in the dataset and registers them in a new QuPath project.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QPHRMOmeroJobsBenchmark {
+
+    private static final String OWNER = "benchmark";
+    private static final String HRM_CODE = "65f1c2a9b3d4e";
+
+    @Param({"32"})
+    public int nImages;
+
+    @Param({"1048576"})
+    public int imageSize;
+
+    @Param({"0", "20"})
+    public long latencyMs;
+
+    /** bytes per second ; 0 for no limit */
+    @Param({"0", "52428800"})
+    public long bandwidth;
+
+    @Param({"4"})
+    public int nWorkers;
+
+    private File workFolder;
+    private File rootFolder;
+    private File rawFolder;
+    private QPHRMLocalOmeroGateway gateway;
+    private long datasetId;
+    private final List<File> rawFiles = new ArrayList<>();
+    private List<ProjectImageEntry<BufferedImage>> omeroImages;
+    private Project<BufferedImage> retrieveProject;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        this.workFolder = Files.createTempDirectory("qphrm-omero-bench-").toFile();
+        this.rootFolder = new File(this.workFolder, "HRM-Share");
+        this.rawFolder = new File(this.workFolder, "raw");
+        if (!new File(this.rootFolder, OWNER).mkdirs() || !this.rawFolder.mkdirs())
+            throw new IOException("Cannot create the folders of the benchmark in " + this.workFolder);
+
+        // OMERO dataset of raw images
+        this.gateway = new QPHRMLocalOmeroGateway(new File(this.workFolder, "omero"))
+                .setUserName(OWNER)
+                .setLatencyMs(this.latencyMs)
+                .setBandwidth(this.bandwidth);
+        this.datasetId = this.gateway.addDataset("dataset", this.gateway.addProject("project"));
+        Random random = new Random(42);
+        byte[] content = new byte[this.imageSize];
+        List<Long> imageIds = new ArrayList<>();
+        for (int i = 0; i < this.nImages; i++) {
+            random.nextBytes(content);
+            File rawFile = new File(this.rawFolder, "image" + i + ".tif");
+            Files.write(rawFile.toPath(), content);
+            this.rawFiles.add(rawFile);
+            imageIds.add(this.gateway.addImage(this.datasetId, rawFile));
+        }
+
+        // QuPath project of the raw images, registered with their OMERO URI
+        Project<BufferedImage> sendProject = Projects.createProject(new File(this.workFolder, "send-project"), BufferedImage.class);
+        for (long imageId : imageIds) {
+            URI uri = URI.create("https://omero.local/webclient/?show=image-" + imageId);
+            sendProject.addImage(ImageServerBuilder.DefaultImageServerBuilder.createInstance(OmeroRawImageServerBuilder.class, uri));
+        }
+        this.omeroImages = sendProject.getImageList();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException {
+        // raw images sent by the previous invocation
+        FileUtils.deleteDirectory(new File(new File(this.rootFolder, OWNER), HRMConstants.RAW_FOLDER));
+
+        // deconvolved images of the raw images, in the HRM-Share layout of OMERO images
+        File datasetFolder = new File(new File(new File(new File(this.rootFolder, OWNER),
+                HRMConstants.DECONVOLVED_FOLDER), HRMConstants.OMERO_FOLDER), this.datasetId + "_dataset");
+        FileUtils.deleteDirectory(datasetFolder);
+        for (int i = 0; i < this.rawFiles.size(); i++) {
+            File imageFolder = new File(datasetFolder, String.valueOf(i));
+            if (!imageFolder.mkdirs())
+                throw new IOException("Cannot create " + imageFolder);
+            String baseName = "image" + i + "_" + HRM_CODE + "_hrm";
+            Files.copy(this.rawFiles.get(i).toPath(), new File(imageFolder, baseName + ".ids").toPath());
+            Files.writeString(new File(imageFolder, baseName + ".ics").toPath(), "ics\tversion\t2.0\n");
+        }
+
+        File projectFolder = new File(this.workFolder, "retrieve-project");
+        FileUtils.deleteDirectory(projectFolder);
+        this.retrieveProject = Projects.createProject(projectFolder, BufferedImage.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        FileUtils.deleteQuietly(this.workFolder);
+    }
+
+    @Benchmark
+    public QPHRMJobSummary sendJob() throws Exception {
+        return new QPHRMSendEngine(this.rootFolder.getAbsolutePath(), OWNER)
+                .setOmeroGateway(this.gateway)
+                .setOverwrite(true)
+                .setNbWorkers(this.nWorkers)
+                .start(this.omeroImages)
+                .waitForCompletion();
+    }
+
+    @Benchmark
+    public QPHRMJobSummary retrieveJob() throws Exception {
+        return new QPHRMRetrieveEngine(this.rootFolder.getAbsolutePath(), OWNER, this.retrieveProject)
+                .setOmeroGateway(this.gateway)
+                .setNbTransferThreads(this.nWorkers)
+                .setDeleteDeconvolved(true)
+                .start()
+                .waitForCompletion();
+    }
+}
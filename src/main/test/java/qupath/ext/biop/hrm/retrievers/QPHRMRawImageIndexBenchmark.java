@@ -0,0 +1,120 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.servers.omero.raw.OmeroRawImageServerBuilder;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.images.servers.bioformats.BioFormatsServerBuilder;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search of the raw images of a retrieve job in a project, with {@link QPHRMRawImageIndex} against the comparison
+ * of each project image with {@link QPHRMLocalRetriever#similarity(String, String)}.
+ * <p>
+ * Half of the raw names are names of the project with a small edit ; the others are not in the project.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QPHRMRawImageIndexBenchmark {
+
+    @Param({"1000", "10000"})
+    public int nImages;
+
+    /** number of deconvolved images of the retrieve job */
+    @Param({"100"})
+    public int nRawNames;
+
+    private File projectFolder;
+    private Project<BufferedImage> project;
+    private final List<String> rawNames = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.projectFolder = Files.createTempDirectory("qphrm-index-bench-").toFile();
+        this.project = Projects.createProject(this.projectFolder, BufferedImage.class);
+
+        Random random = new Random(42);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < this.nImages; i++) {
+            String name = String.format("experiment_%02d_sample_%05d_z%d.tif", random.nextInt(50), i, random.nextInt(7));
+            boolean omero = i % 10 == 0;
+            ImageServerBuilder.ServerBuilder<BufferedImage> builder = omero ?
+                    ImageServerBuilder.DefaultImageServerBuilder.createInstance(OmeroRawImageServerBuilder.class,
+                            URI.create("https://omero.local/webclient/?show=image-" + i)) :
+                    ImageServerBuilder.DefaultImageServerBuilder.createInstance(BioFormatsServerBuilder.class,
+                            new File(this.projectFolder, name).toURI());
+            ProjectImageEntry<BufferedImage> entry = this.project.addImage(builder);
+            entry.setImageName(name);
+            if (i % 10 == 1)
+                entry.putMetadataValue(HRMConstants.DECONVOLVED_FOLDER.toLowerCase(), "true");
+            names.add(name);
+        }
+
+        for (int i = 0; i < this.nRawNames; i++) {
+            String name = names.get(random.nextInt(names.size()));
+            this.rawNames.add(i % 2 == 0 ? name.replace(".tif", "_1.tif") :
+                    String.format("acquisition_%04d_%d.czi", random.nextInt(10000), i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(this.projectFolder);
+    }
+
+    @Benchmark
+    public void rawImageIndex(Blackhole blackhole) {
+        QPHRMRawImageIndex index = new QPHRMRawImageIndex(this.project);
+        for (String rawName : this.rawNames)
+            blackhole.consume(index.findClosestImage(rawName));
+    }
+
+    @Benchmark
+    public void similarityScan(Blackhole blackhole) {
+        List<ProjectImageEntry<BufferedImage>> images = this.project.getImageList();
+        for (String rawName : this.rawNames) {
+            ProjectImageEntry<BufferedImage> finalImage = null;
+            double higherSimilarity = 0;
+            for (ProjectImageEntry<BufferedImage> image : images) {
+                if (!(image.getServerBuilder().toString().contains(OmeroRawImageServerBuilder.class.getName()))) {
+                    double sim = QPHRMLocalRetriever.similarity(image.getImageName(), rawName);
+                    if (sim > 0.7 && sim > higherSimilarity && !image.getMetadataMap().containsKey(HRMConstants.DECONVOLVED_FOLDER.toLowerCase())) {
+                        higherSimilarity = sim;
+                        finalImage = image;
+                    }
+                }
+            }
+            blackhole.consume(finalImage);
+        }
+    }
+}
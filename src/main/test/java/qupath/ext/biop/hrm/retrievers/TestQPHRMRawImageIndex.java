@@ -0,0 +1,181 @@
+package qupath.ext.biop.hrm.retrievers;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.servers.omero.raw.OmeroRawImageServerBuilder;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.images.servers.bioformats.BioFormatsServerBuilder;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TestQPHRMRawImageIndex {
+
+    /** characters of the random names ; few of them, so that names are often similar */
+    private static final String ALPHABET = "abAB_.1";
+
+    @TempDir
+    Path tempDir;
+
+    private Project<BufferedImage> project;
+    private int nImages = 0;
+
+    @BeforeEach
+    public void createProject() {
+        this.project = Projects.createProject(this.tempDir.toFile(), BufferedImage.class);
+    }
+
+    @Test
+    public void testRandomNamesAsSimilarity() throws IOException {
+        Random random = new Random(42);
+        for (int p = 0; p < 200; p++) {
+            createProject();
+            QPHRMRawImageIndex index = new QPHRMRawImageIndex(this.project);
+            String baseName = randomName(random, random.nextInt(12));
+            for (int q = 0; q < 30; q++) {
+                // images added, renamed or tagged between the searches
+                int nAdded = random.nextInt(4);
+                for (int i = 0; i < nAdded; i++) {
+                    ProjectImageEntry<BufferedImage> entry = addImage(mutate(random, baseName), random.nextInt(8) == 0);
+                    if (random.nextInt(8) == 0)
+                        entry.putMetadataValue(HRMConstants.DECONVOLVED_FOLDER.toLowerCase(), "true");
+                }
+                List<ProjectImageEntry<BufferedImage>> images = this.project.getImageList();
+                if (!images.isEmpty() && random.nextInt(10) == 0)
+                    images.get(random.nextInt(images.size())).setImageName(mutate(random, baseName));
+
+                String rawName = mutate(random, baseName);
+                assertSame(findWithSimilarity(rawName), index.findClosestImage(rawName), rawName + " in " + getNames());
+            }
+        }
+    }
+
+    @Test
+    public void testTies() throws IOException {
+        addImage("image_01.tif", false);
+        ProjectImageEntry<BufferedImage> first = addImage("image_2.tif", false);
+        addImage("image_3.tif", false);
+        addImage("image_2.tif", false);
+
+        QPHRMRawImageIndex index = new QPHRMRawImageIndex(this.project);
+        assertSame(findWithSimilarity("image_4.tif"), index.findClosestImage("image_4.tif"));
+        assertSame(first, index.findClosestImage("image_2.tif"));
+    }
+
+    @Test
+    public void testExclusions() throws IOException {
+        addImage("cells.tif", true);
+        addImage("cells.tif", false).putMetadataValue(HRMConstants.DECONVOLVED_FOLDER.toLowerCase(), "true");
+        ProjectImageEntry<BufferedImage> raw = addImage("cells_1.tif", false);
+
+        QPHRMRawImageIndex index = new QPHRMRawImageIndex(this.project);
+        assertSame(raw, index.findClosestImage("cells.tif"));
+        assertSame(findWithSimilarity("cells.tif"), index.findClosestImage("cells.tif"));
+    }
+
+    @Test
+    public void testEmptyName() throws IOException {
+        addImage("a", false);
+        ProjectImageEntry<BufferedImage> empty = addImage("", false);
+
+        // two empty names have a similarity of 1
+        QPHRMRawImageIndex index = new QPHRMRawImageIndex(this.project);
+        assertSame(empty, findWithSimilarity(""));
+        assertSame(empty, index.findClosestImage(""));
+        assertNull(index.findClosestImage("b"));
+    }
+
+    @Test
+    public void testCase() throws IOException {
+        ProjectImageEntry<BufferedImage> first = addImage("Image_Stack.TIF", false);
+        addImage("image_stack.tif", false);
+
+        // names are compared ignoring case
+        QPHRMRawImageIndex index = new QPHRMRawImageIndex(this.project);
+        assertSame(first, index.findClosestImage("image_stack.tif"));
+        assertSame(findWithSimilarity("IMAGE_STACK.tif"), index.findClosestImage("IMAGE_STACK.tif"));
+        assertSame(findWithSimilarity("image_stack_1.tif"), index.findClosestImage("image_stack_1.tif"));
+    }
+
+    /**
+     * selection of the raw image before {@link QPHRMRawImageIndex}, comparing the raw name to each image of the project
+     *
+     * @param rawName
+     * @return the closest image
+     */
+    private ProjectImageEntry<BufferedImage> findWithSimilarity(String rawName) {
+        ProjectImageEntry<BufferedImage> finalImage = null;
+        double higherSimilarity = 0;
+        for (ProjectImageEntry<BufferedImage> image : this.project.getImageList()) {
+            if (!(image.getServerBuilder().toString().contains(OmeroRawImageServerBuilder.class.getName()))) {
+                double sim = QPHRMLocalRetriever.similarity(image.getImageName(), rawName);
+                if (sim > 0.7 && sim > higherSimilarity && !image.getMetadataMap().containsKey(HRMConstants.DECONVOLVED_FOLDER.toLowerCase())) {
+                    higherSimilarity = sim;
+                    finalImage = image;
+                }
+            }
+        }
+        return finalImage;
+    }
+
+    private ProjectImageEntry<BufferedImage> addImage(String name, boolean omero) throws IOException {
+        URI uri = omero ? URI.create("https://omero.local/webclient/?show=image-" + this.nImages) :
+                new File(this.tempDir.toFile(), "image" + this.nImages + ".tif").toURI();
+        this.nImages++;
+        ProjectImageEntry<BufferedImage> entry = this.project.addImage(omero ?
+                ImageServerBuilder.DefaultImageServerBuilder.createInstance(OmeroRawImageServerBuilder.class, uri) :
+                ImageServerBuilder.DefaultImageServerBuilder.createInstance(BioFormatsServerBuilder.class, uri));
+        entry.setImageName(name);
+        return entry;
+    }
+
+    private List<String> getNames() {
+        return this.project.getImageList().stream().map(ProjectImageEntry::getImageName).toList();
+    }
+
+    private static String randomName(Random random, int length) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            name.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return name.toString();
+    }
+
+    /**
+     * @param random
+     * @param name
+     * @return the name with up to 3 random insertions, deletions or substitutions
+     */
+    private static String mutate(Random random, String name) {
+        StringBuilder mutated = new StringBuilder(name);
+        int nEdits = random.nextInt(4);
+        for (int i = 0; i < nEdits; i++) {
+            int position = random.nextInt(mutated.length() + 1);
+            char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            switch (random.nextInt(3)) {
+                case 0 -> mutated.insert(position, c);
+                case 1 -> {
+                    if (position < mutated.length())
+                        mutated.deleteCharAt(position);
+                }
+                default -> {
+                    if (position < mutated.length())
+                        mutated.setCharAt(position, c);
+                }
+            }
+        }
+        return mutated.toString();
+    }
+}
@@ -0,0 +1,119 @@
+package qupath.ext.biop.hrm.senders;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import qupath.ext.biop.hrm.HRMConstants;
+import qupath.ext.biop.hrm.utils.QPHRMJobSummary;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.images.servers.bioformats.BioFormatsServerBuilder;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.projects.Projects;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send job of the local images of a project to HRM-Share, with one worker against a pool of workers.
+ * <p>
+ * The images are spread in a directory tree, as in an acquisition folder. By default the HRM-Share folder is
+ * a temporary folder on the local disk ; the speedup of the pool is larger on a network share, given with
+ * {@code -p shareFolder=/path/to/HRM-Share}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QPHRMLocalSendBenchmark {
+
+    private static final String OWNER = "benchmark";
+
+    @Param({"64"})
+    public int nImages;
+
+    @Param({"2097152"})
+    public int imageSize;
+
+    /** number of folders of the directory tree, each one with a sub-folder */
+    @Param({"8"})
+    public int nFolders;
+
+    @Param({"1", "4"})
+    public int nWorkers;
+
+    /** HRM-Share folder ; empty for a temporary folder */
+    @Param({""})
+    public String shareFolder;
+
+    private File workFolder;
+    private File rootFolder;
+    private List<ProjectImageEntry<BufferedImage>> images;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        this.workFolder = Files.createTempDirectory("qphrm-local-send-bench-").toFile();
+        this.rootFolder = this.shareFolder.isEmpty() ? new File(this.workFolder, "HRM-Share") : new File(this.shareFolder);
+        File ownerFolder = new File(this.rootFolder, OWNER);
+        if (!ownerFolder.mkdirs() && !ownerFolder.isDirectory())
+            throw new IOException("Cannot create the HRM user folder " + ownerFolder);
+
+        // directory tree of raw images : acquisition/folder<i>/position<i>/image files
+        Project<BufferedImage> project = Projects.createProject(new File(this.workFolder, "project"), BufferedImage.class);
+        Random random = new Random(42);
+        byte[] content = new byte[this.imageSize];
+        for (int i = 0; i < this.nImages; i++) {
+            int folder = i % this.nFolders;
+            File imageFolder = new File(this.workFolder, "acquisition/folder" + folder + "/position" + folder);
+            if (!imageFolder.mkdirs() && !imageFolder.isDirectory())
+                throw new IOException("Cannot create " + imageFolder);
+
+            // names are unique, as all the images are sent to the same HRM folder
+            File imageFile = new File(imageFolder, "folder" + folder + "_image" + i + ".tif");
+            random.nextBytes(content);
+            Files.write(imageFile.toPath(), content);
+            project.addImage(ImageServerBuilder.DefaultImageServerBuilder.createInstance(BioFormatsServerBuilder.class, imageFile.toURI()))
+                    .setImageName(imageFile.getName());
+        }
+        this.images = project.getImageList();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException {
+        // images sent by the previous invocation
+        FileUtils.deleteDirectory(new File(new File(this.rootFolder, OWNER), HRMConstants.RAW_FOLDER));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+        FileUtils.deleteDirectory(new File(new File(this.rootFolder, OWNER), HRMConstants.RAW_FOLDER));
+        FileUtils.deleteQuietly(this.workFolder);
+    }
+
+    @Benchmark
+    public QPHRMJobSummary sendJob() throws Exception {
+        return new QPHRMSendEngine(this.rootFolder.getAbsolutePath(), OWNER)
+                .setOverwrite(true)
+                .setNbWorkers(this.nWorkers)
+                .start(this.images)
+                .waitForCompletion();
+    }
+}
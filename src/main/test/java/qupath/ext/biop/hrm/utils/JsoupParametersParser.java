@@ -0,0 +1,72 @@
+package qupath.ext.biop.hrm.utils;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reference parser of the .parameters.txt files, building the Jsoup document as the extension did before
+ * {@link QPHRMParametersParser}.
+ */
+class JsoupParametersParser {
+
+    private JsoupParametersParser() {}
+
+    /**
+     * parse the html-encoded .parameters.txt file and
+     * return a map of image and restoration parameters of the deconvolution
+     *
+     * @param file
+     * @return a map of image and restoration parameters, by namespace ; empty if the file cannot be parsed
+     */
+    static Map<String, Map<String, String>> parse(File file) {
+        Map<String, Map<String, String>> nameSpaceKeyValueMap = new TreeMap<>();
+
+        try{
+            // parse the html parameters file
+            Document htmlDocument = Jsoup.parse(file);
+
+            // get all the "tables" node
+            Elements tables = htmlDocument.getElementsByTag("table");
+            tables.forEach(table->{
+                // get all table rows (including headers)
+                Elements parameters = table.getElementsByTag("tr");
+
+                // get the header
+                String header = parameters.get(0).firstElementChild().text();
+
+                // make a sub list with only parameters (without headers)
+                List<Element> reducedParameters = parameters.subList(2,parameters.size()-1);
+                Map<String, String> keyValues = new TreeMap<>(); // to have the natural order of elements
+
+                reducedParameters.forEach(parameter->{
+                    Element element = parameter.firstElementChild();
+                    if(element != null) {
+                        // parse the key, value and channel
+                        String param = element.text();
+                        String channel = parameter.after(element).firstElementChild().text();
+                        String value = parameter.lastElementChild().text();
+
+                        // check if the parameter is channel-dependent
+                        if(channel.equals("All"))
+                            keyValues.put(param, value);
+                        else
+                            keyValues.put(param+ " ch"+channel, value);
+                    }
+                });
+                nameSpaceKeyValueMap.put(header, keyValues);
+            });
+
+        } catch(IOException | NullPointerException e){
+            return new TreeMap<>();
+        }
+        return nameSpaceKeyValueMap;
+    }
+}
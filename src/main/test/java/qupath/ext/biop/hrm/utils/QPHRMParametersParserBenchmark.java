@@ -0,0 +1,81 @@
+package qupath.ext.biop.hrm.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a .parameters.txt file by {@link QPHRMParametersParser}, against the Jsoup document built before.
+ * <p>
+ * The file has the layout written by HRM : an image parameters table and a restoration parameters table,
+ * with one row per parameter and channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QPHRMParametersParserBenchmark {
+
+    /** number of parameter rows per table */
+    @Param({"20", "200"})
+    public int nRows;
+
+    private File workFolder;
+    private File parametersFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.workFolder = Files.createTempDirectory("qphrm-parameters-bench-").toFile();
+        this.parametersFile = new File(this.workFolder, "image_65f1c2a9b3d4e_hrm.parameters.txt");
+
+        StringBuilder html = new StringBuilder("<html><head><title>HRM - Parameter summary</title>"
+                + "<style type=\"text/css\">td.header { font-weight: bold; }</style></head><body>\n");
+        for (String namespace : new String[]{"Image parameters", "Restoration parameters"}) {
+            html.append("<table>\n<tr><td class=\"header\" colspan=\"4\">").append(namespace).append("</td></tr>\n")
+                    .append("<tr><td class=\"param\">Parameter</td><td class=\"ch\">Channel</td>")
+                    .append("<td class=\"src\">Source</td><td class=\"val\">Value</td></tr>\n");
+            for (int i = 0; i < this.nRows; i++) {
+                html.append("<tr><td class=\"param\">Parameter ").append(i / 3).append(" (&micro;m)</td>")
+                        .append("<td class=\"ch\">").append(i % 3 == 0 ? "All" : String.valueOf(i % 3 - 1)).append("</td>")
+                        .append("<td class=\"src\">template</td><td class=\"val\">").append(i * 0.5).append("</td></tr>\n");
+            }
+            html.append("<tr><td class=\"footer\" colspan=\"4\">&nbsp;</td></tr>\n</table>\n<br />\n");
+        }
+        html.append("</body></html>\n");
+        Files.writeString(this.parametersFile.toPath(), html);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(this.workFolder);
+    }
+
+    @Benchmark
+    public Map<String, Map<String, String>> streamingParser() {
+        return QPHRMParametersParser.parse(this.parametersFile);
+    }
+
+    @Benchmark
+    public Map<String, Map<String, String>> jsoupDocument() {
+        return JsoupParametersParser.parse(this.parametersFile);
+    }
+}
@@ -0,0 +1,129 @@
+package qupath.ext.biop.hrm.utils;
+
+import fr.igred.omero.Client;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestQPHRMOmeroSessionPool {
+
+    private static final int N_THREADS = 16;
+    private static final int N_BORROWS = 2000;
+    private static final int MAX_SESSIONS = 4;
+
+    @Test
+    public void testLoad() throws Exception {
+        QPHRMOmeroStubSessionFactory factory = new QPHRMOmeroStubSessionFactory().setCreationLatencyMs(5);
+        QPHRMOmeroSessionPool pool = new QPHRMOmeroSessionPool(factory, MAX_SESSIONS);
+        LoadResult result = borrowConcurrently(pool);
+        pool.close();
+
+        assertEquals(N_BORROWS, result.nBorrows);
+        assertTrue(result.maxBorrowed <= MAX_SESSIONS, "up to " + result.maxBorrowed + " sessions borrowed");
+        assertEquals(0, result.nShared, "sessions borrowed by two workers at once");
+        assertTrue(factory.getNbCreated() <= MAX_SESSIONS, factory.getNbCreated() + " sessions created");
+
+        // all the sessions were released, then closed with the pool
+        assertEquals(0, pool.getNbSessions());
+        assertEquals(factory.getNbCreated(), factory.getNbClosed());
+    }
+
+    @Test
+    public void testLoadWithDyingSessions() throws Exception {
+        QPHRMOmeroStubSessionFactory factory = new QPHRMOmeroStubSessionFactory().setFailureRate(0.1);
+        QPHRMOmeroSessionPool pool = new QPHRMOmeroSessionPool(factory, MAX_SESSIONS);
+        LoadResult result = borrowConcurrently(pool);
+
+        assertEquals(N_BORROWS, result.nBorrows);
+        assertTrue(result.maxBorrowed <= MAX_SESSIONS, "up to " + result.maxBorrowed + " sessions borrowed");
+        assertEquals(0, result.nShared, "sessions borrowed by two workers at once");
+        // dead sessions are replaced, but never more than the maximum are open
+        assertTrue(factory.getNbCreated() > MAX_SESSIONS);
+        assertTrue(pool.getNbSessions() <= MAX_SESSIONS);
+
+        pool.close();
+        assertEquals(0, pool.getNbSessions());
+        assertEquals(factory.getNbCreated(), factory.getNbClosed());
+    }
+
+    @Test
+    public void testClosedPool() throws Exception {
+        QPHRMOmeroStubSessionFactory factory = new QPHRMOmeroStubSessionFactory();
+        QPHRMOmeroSessionPool pool = new QPHRMOmeroSessionPool(factory, MAX_SESSIONS);
+        Client borrowed = pool.borrow();
+        pool.close();
+
+        // a session borrowed before the pool was closed is closed when released
+        assertEquals(1, pool.getNbSessions());
+        pool.release(borrowed);
+        assertEquals(0, pool.getNbSessions());
+        assertEquals(1, factory.getNbClosed());
+
+        assertThrows(IllegalStateException.class, pool::borrow);
+        Client fallback = new Client();
+        assertSame(fallback, pool.borrowOr(fallback));
+    }
+
+    /**
+     * borrow and release sessions of the pool from {@link #N_THREADS} threads
+     *
+     * @param pool
+     * @return the number of borrows, the maximum number of sessions borrowed at once, and the number of
+     * sessions borrowed while already borrowed
+     * @throws Exception
+     */
+    private static LoadResult borrowConcurrently(QPHRMOmeroSessionPool pool) throws Exception {
+        Set<Client> borrowed = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        AtomicInteger nBorrowed = new AtomicInteger();
+        AtomicInteger maxBorrowed = new AtomicInteger();
+        AtomicInteger nTickets = new AtomicInteger();
+        AtomicInteger nBorrows = new AtomicInteger();
+        AtomicInteger nShared = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < N_THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    while (nTickets.incrementAndGet() <= N_BORROWS) {
+                        Client session = pool.borrow();
+                        nBorrows.incrementAndGet();
+                        try {
+                            maxBorrowed.accumulateAndGet(nBorrowed.incrementAndGet(), Math::max);
+                            if (!borrowed.add(session))
+                                nShared.incrementAndGet();
+                            Thread.yield();
+                            borrowed.remove(session);
+                            nBorrowed.decrementAndGet();
+                        } finally {
+                            pool.release(session);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, nBorrowed.get());
+        return new LoadResult(nBorrows.get(), maxBorrowed.get(), nShared.get());
+    }
+
+    private record LoadResult(int nBorrows, int maxBorrowed, int nShared) {
+    }
+}
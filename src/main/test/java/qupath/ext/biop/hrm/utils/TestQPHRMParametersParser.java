@@ -0,0 +1,138 @@
+package qupath.ext.biop.hrm.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestQPHRMParametersParser {
+
+    /** parameter files in the layout written by HRM */
+    private static final List<String> SAMPLES = List.of("widefield.parameters.txt", "confocal.parameters.txt");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testSamplesAsJsoup() throws URISyntaxException {
+        for (String sample : SAMPLES) {
+            File file = getSample(sample);
+            Map<String, Map<String, String>> parameters = QPHRMParametersParser.parse(file);
+            assertEquals(2, parameters.size(), sample);
+            assertEquals(JsoupParametersParser.parse(file), parameters, sample);
+        }
+    }
+
+    @Test
+    public void testGoldenMap() throws URISyntaxException {
+        Map<String, Map<String, String>> parameters = QPHRMParametersParser.parse(getSample("widefield.parameters.txt"));
+        assertEquals(Map.of(
+                "Deconvolution algorithm", "CMLE",
+                "Signal/Noise ratio ch0", "20",
+                "Signal/Noise ratio ch1", "15",
+                "Background mode", "auto",
+                "Quality change stopping criterion", "0.01",
+                "Maximum iterations", "40",
+                "Brick layout", "auto"), parameters.get("Restoration parameters"));
+
+        Map<String, String> imageParameters = parameters.get("Image parameters");
+        assertEquals(13, imageParameters.size());
+        assertEquals("widefield", imageParameters.get("Microscope type ch1"));
+        assertEquals("1.4", imageParameters.get("Numerical aperture"));
+        assertEquals("561", imageParameters.get("Excitation wavelength (nm) ch1"));
+        assertEquals("64.5", imageParameters.get("Sampling interval X (nm)"));
+    }
+
+    @Test
+    public void testEntitiesAndWhitespaces() throws URISyntaxException {
+        Map<String, Map<String, String>> parameters = QPHRMParametersParser.parse(getSample("confocal.parameters.txt"));
+        Map<String, String> imageParameters = parameters.get("Image parameters");
+        assertEquals("2.53", imageParameters.get("Pinhole spacing (\u00b5m)"));
+        assertEquals("water & silicone immersion", imageParameters.get("Objective"));
+        assertEquals("9", parameters.get("Restoration parameters").get("Signal/Noise ratio ch2"));
+    }
+
+    @Test
+    public void testEntitiesAsJsoup() throws IOException {
+        File file = write("entities.parameters.txt", "<table>"
+                + "<tr><td>Image parameters</td></tr>"
+                + "<tr><td>Parameter</td><td>Channel</td><td>Value</td></tr>"
+                + "<tr><td>Pinhole (&#181;m)</td><td>All</td><td>&#xB5;&#x3bc; &lt;1&gt; &quot;a&quot;</td></tr>"
+                + "<tr><td>Objective &amp oil</td><td>All</td><td>&unknown; &#128; &#0; &nbsp;x&#9;y</td></tr>"
+                + "<tr><td>Mode</td><td>All</td><td>&copy &amp;amp; &#;</td></tr>"
+                + "<tr><td>footer</td></tr>"
+                + "</table>");
+
+        Map<String, Map<String, String>> parameters = QPHRMParametersParser.parse(file);
+        assertEquals(JsoupParametersParser.parse(file), parameters);
+        assertEquals("\u00b5\u03bc <1> \"a\"", parameters.get("Image parameters").get("Pinhole (\u00b5m)"));
+    }
+
+    @Test
+    public void testNestedTable() throws IOException {
+        File file = write("nested.parameters.txt", "<html><body><table>"
+                + "<tr><td colspan=\"4\">Image parameters</td></tr>"
+                + "<tr><td>Parameter</td><td>Channel</td><td>Source</td><td>Value</td></tr>"
+                + "<tr><td>Microscope type</td><td>All</td><td>template</td><td>"
+                + "<table><tr><td>Lens</td></tr><tr><td>Objective</td><td>All</td><td>60x</td></tr><tr><td></td></tr></table>"
+                + "</td></tr>"
+                + "<tr><td>Numerical aperture</td><td>All</td><td>template</td><td>1.4</td></tr>"
+                + "<tr><td>Sampling interval X (nm)</td><td>0</td><td>metadata</td><td>64.5</td></tr>"
+                + "<tr><td colspan=\"4\">footer</td></tr>"
+                + "</table></body></html>");
+
+        Map<String, Map<String, String>> parameters = QPHRMParametersParser.parse(file);
+        assertEquals(Map.of(
+                "Microscope type", "Lens Objective All 60x",
+                "Numerical aperture", "1.4",
+                "Sampling interval X (nm) ch0", "64.5"), parameters.get("Image parameters"));
+        assertTrue(parameters.containsKey("Lens"));
+    }
+
+    @Test
+    public void testMissingChannel() throws IOException {
+        File file = write("missing.parameters.txt", "<table>"
+                + "<tr><td>Image parameters</td></tr>"
+                + "<tr><td>Parameter</td><td>Channel</td><td>Value</td></tr>"
+                + "<tr><td>Numerical aperture</td></tr>"
+                + "<tr><td>footer</td></tr>"
+                + "</table>");
+
+        assertEquals(JsoupParametersParser.parse(file), QPHRMParametersParser.parse(file));
+        assertTrue(QPHRMParametersParser.parse(file).isEmpty());
+    }
+
+    @Test
+    public void testCache() throws IOException, URISyntaxException {
+        File file = this.tempDir.resolve("widefield.parameters.txt").toFile();
+        Files.copy(getSample("widefield.parameters.txt").toPath(), file.toPath());
+
+        Map<String, Map<String, String>> parameters = QPHRMParametersParser.parse(file, "65f1c2a9b3d4e");
+        assertSame(parameters, QPHRMParametersParser.parse(file, "65f1c2a9b3d4e"));
+
+        // the file is parsed again once modified
+        Files.writeString(file.toPath(), Files.readString(file.toPath()).replace("CMLE", "QMLE-fast"));
+        Map<String, Map<String, String>> modifiedParameters = QPHRMParametersParser.parse(file, "65f1c2a9b3d4e");
+        assertNotSame(parameters, modifiedParameters);
+        assertEquals("QMLE-fast", modifiedParameters.get("Restoration parameters").get("Deconvolution algorithm"));
+    }
+
+    private static File getSample(String name) throws URISyntaxException {
+        return new File(TestQPHRMParametersParser.class.getResource(name).toURI());
+    }
+
+    private File write(String name, String content) throws IOException {
+        return Files.writeString(this.tempDir.resolve(name), content).toFile();
+    }
+}